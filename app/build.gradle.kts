@@ -73,6 +73,7 @@ dependencies {
     compileOnly(project(":hidden-api"))
     implementation(libs.hiddenapibypass)
     implementation(project(":patternlock"))
+    implementation(project(":lockcore"))
 
 
 
@@ -18,4 +18,8 @@
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+#-renamesourcefileattribute SourceFile
+# Instantiated by Shizuku in its own process
+-keep class dev.pranav.applock.shizuku.TaskMonitorUserService {
+    <init>(...);
+}
@@ -1,68 +1,126 @@
 package dev.pranav.applock
 
 import android.app.Application
-import android.content.Context
-import android.os.Build
+import android.content.SharedPreferences
+import android.os.UserManager
 import android.util.Log
+import dev.pranav.applock.core.broadcast.BootReceiver
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
+import dev.pranav.applock.core.utils.ProcessMemory
+import dev.pranav.applock.core.utils.StartupTrace
 import dev.pranav.applock.data.repository.AppLockRepository
-import org.lsposed.hiddenapibypass.HiddenApiBypass
-import rikka.sui.Sui
+import dev.pranav.applock.data.repository.DirectBootSnapshot
+import dev.pranav.applock.services.AppLockManager
+import dev.pranav.applock.services.DeviceStateCache
+import dev.pranav.applock.services.ProtectionClient
+import dev.pranav.applock.services.SystemExclusionRegistry
+import dev.pranav.applock.shizuku.ShizukuBootstrap
+import rikka.shizuku.ShizukuProvider
 import kotlin.concurrent.thread
 
+/**
+ * Only what every process needs before its first activity or service runs is done in [onCreate];
+ * the hidden API exemptions and Sui are left to [ShizukuBootstrap] on the paths that use them.
+ * [StartupTrace] records how long each step took.
+ */
 class AppLockApplication : Application() {
 
-    lateinit var appLockRepository: AppLockRepository
-        private set
+    // Opens the shared preferences on first use rather than in onCreate
+    val appLockRepository: AppLockRepository by lazy { AppLockRepository(this) }
 
-    override fun attachBaseContext(base: Context?) {
-        super.attachBaseContext(base)
-        initializeHiddenApiBypass()
-    }
+    /** Whether this is the ":protect" process running the protection services. */
+    val isProtectProcess by lazy { ProcessMemory.processName().endsWith(PROTECT_PROCESS) }
+
+    private var isProtectionInitialized = false
+
+    // Held in a field: shared preferences only keep weak references to their listeners. The
+    // settings screen's toggles reach the protection process only as preference changes
+    private val settingsListener =
+        SharedPreferences.OnSharedPreferenceChangeListener { _, _ -> applySettings() }
 
     override fun onCreate() {
         super.onCreate()
-        initializeComponents()
+        StartupTrace.measure("shizukuProvider", ::initializeShizukuProvider)
+        // Detection logs the most, so the protection process keeps the audit log
+        LogUtils.initialize(this, ownsAuditLog = isProtectProcess)
 
-        LogUtils.initialize(this)
-        LogUtils.setLoggingEnabled(appLockRepository.isLoggingEnabled())
-        // Purge logs older than 3 days on every app start (run in background to avoid ANR)
-        thread(start = true, name = "LogPurge") {
-            LogUtils.purgeOldLogs()
+        if (isProtectProcess) {
+            if (getSystemService(UserManager::class.java).isUserUnlocked) {
+                // Sui hands out its binder only after Sui.init; the Shizuku service calls this
+                // itself when it starts first
+                thread(name = "ShizukuBootstrap") {
+                    ShizukuBootstrap.ensureInitialized(this, isProviderProcess = true)
+                }
+                ensureProtectionInitialized()
+            } else {
+                // Started by LOCKED_BOOT_COMPLETED, the rest waits for the credential-encrypted
+                // storage; the unlock, or the first component to run after it, finishes it
+                BootReceiver.awaitUnlock(this)
+            }
+            return
         }
+
+        loadSettings()
+        StartupTrace.measure("protectionClient") { ProtectionClient.initialize(this) }
+        // Purge logs older than 3 days on every app start; it runs on the log scope
+        LogUtils.purgeOldLogs()
     }
 
-    private fun initializeHiddenApiBypass() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            try {
-                HiddenApiBypass.addHiddenApiExemptions("L")
-                Log.d(TAG, "Hidden API bypass initialized successfully")
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to initialize hidden API bypass", e)
+    /**
+     * Initializes detection and the lock screen in the protection process once the user is
+     * unlocked. Main thread only; later calls do nothing.
+     */
+    fun ensureProtectionInitialized() {
+        if (isProtectionInitialized) return
+        isProtectionInitialized = true
+
+        loadSettings()
+        LogUtils.purgeOldLogs()
+        // Detection and the lock screen; the UI process pushes policy changes here
+        StartupTrace.measure("traceRecorder") { DetectionTraceRecorder.initialize(this) }
+        StartupTrace.measure("exclusions") { SystemExclusionRegistry.initialize(this) }
+        StartupTrace.measure("deviceState") { DeviceStateCache.initialize(this) }
+        // Both read the preference files, and the lock manager the unlock state file, so they
+        // run off the main thread; until the sessions are restored, apps stay locked
+        thread(name = "StartupPolicy") {
+            StartupTrace.measure("lockManager") {
+                AppLockManager.initialize(this, appLockRepository)
+            }
+            StartupTrace.measure("directBootSnapshot") {
+                DirectBootSnapshot.mirror(this, appLockRepository)
             }
         }
     }
 
-    private fun initializeComponents() {
-        try {
-            appLockRepository = AppLockRepository(this)
-            initializeSui()
-            Log.d(TAG, "Application components initialized successfully")
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to initialize application components", e)
+    private fun loadSettings() {
+        // The settings file is read off the main thread; nothing logged before then is lost to
+        // logcat, only to the exported log file
+        thread(name = "StartupSettings") {
+            StartupTrace.measure("settings") {
+                applySettings()
+                appLockRepository.registerOnChangeListener(settingsListener)
+            }
         }
     }
 
-    private fun initializeSui() {
+    private fun applySettings() {
+        LogUtils.setLoggingEnabled(appLockRepository.isLoggingEnabled())
+        PerfTrace.setEnabled(appLockRepository.isPerfTracingEnabled())
+    }
+
+    private fun initializeShizukuProvider() {
         try {
-            Sui.init(packageName)
-            Log.d(TAG, "Sui initialized successfully")
+            // ShizukuProvider lives in the protection process, which needs the binder most
+            ShizukuProvider.enableMultiProcessSupport(isProtectProcess)
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to initialize Sui", e)
+            Log.e(TAG, "Failed to enable Shizuku multi-process support", e)
         }
     }
 
     companion object {
         private const val TAG = "AppLockApplication"
+        private const val PROTECT_PROCESS = ":protect"
     }
 }
@@ -1,8 +1,10 @@
 package dev.pranav.applock
 
 import android.os.Bundle
+import android.view.Choreographer
 import androidx.activity.compose.setContent
 import androidx.activity.enableEdgeToEdge
+import androidx.core.view.doOnPreDraw
 import androidx.fragment.app.FragmentActivity
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.compose.LifecycleEventEffect
@@ -10,7 +12,10 @@ import androidx.navigation.compose.rememberNavController
 import dev.pranav.applock.core.navigation.AppNavHost
 import dev.pranav.applock.core.navigation.NavigationManager
 import dev.pranav.applock.core.navigation.Screen
+import dev.pranav.applock.core.utils.StartupTrace
+import dev.pranav.applock.shizuku.ShizukuBootstrap
 import dev.pranav.applock.ui.theme.AppLockTheme
+import kotlin.concurrent.thread
 
 class MainActivity : FragmentActivity() {
 
@@ -20,6 +25,12 @@ class MainActivity : FragmentActivity() {
         super.onCreate(savedInstanceState)
         enableEdgeToEdge()
 
+        // The first screen checks Shizuku on resume, so the binder is requested before it is
+        // shown; the rest of the setup runs along with it off the main thread
+        thread(name = "ShizukuBootstrap") {
+            ShizukuBootstrap.ensureInitialized(applicationContext, isProviderProcess = false)
+        }
+
         navigationManager = NavigationManager(this)
 
         setContent {
@@ -37,6 +48,16 @@ class MainActivity : FragmentActivity() {
                 }
             }
         }
+
+        if (!isFirstFrameSeen) {
+            isFirstFrameSeen = true
+            window.decorView.doOnPreDraw {
+                // The next frame callback runs once the first frame has been drawn
+                Choreographer.getInstance().postFrameCallback {
+                    StartupTrace.mark("first frame")
+                }
+            }
+        }
     }
 
     private fun handleOnResume(navController: androidx.navigation.NavHostController) {
@@ -50,6 +71,9 @@ class MainActivity : FragmentActivity() {
             navController.navigate(Screen.PasswordOverlay.route)
         }
     }
-}
-
 
+    companion object {
+        // Once per process, not for every recreation after a configuration change
+        private var isFirstFrameSeen = false
+    }
+}
@@ -9,8 +9,12 @@ import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.services.AppLockAccessibilityService
 import dev.pranav.applock.services.ShizukuAppLockService
 import dev.pranav.applock.services.UsageLockService
-import dev.pranav.applock.services.isServiceRunning
 
+/**
+ * Starts the services the policy asks for. Called in the protection process, where the services
+ * run, so whether one is already running is a field read rather than a query of every running
+ * service on the device.
+ */
 object AppLockServiceStarter {
     private const val TAG = "AppLockServiceStarter"
 
@@ -18,11 +22,19 @@ object AppLockServiceStarter {
         context: Context,
         repository: dev.pranav.applock.data.repository.AppLockRepository
     ) {
-        if (repository.isAntiUninstallEnabled()) {
+        startServices(
+            context,
+            repository.getBackendImplementation(),
+            repository.isAntiUninstallEnabled()
+        )
+    }
+
+    fun startServices(context: Context, backend: BackendImplementation, antiUninstall: Boolean) {
+        if (antiUninstall) {
             startService(context, AppLockAccessibilityService::class.java)
         }
 
-        when (repository.getBackendImplementation()) {
+        when (backend) {
             BackendImplementation.SHIZUKU -> {
                 startService(context, ShizukuAppLockService::class.java)
             }
@@ -37,9 +49,16 @@ object AppLockServiceStarter {
         }
     }
 
+    private fun isRunning(serviceClass: Class<*>): Boolean = when (serviceClass) {
+        AppLockAccessibilityService::class.java -> AppLockAccessibilityService.isServiceRunning
+        ShizukuAppLockService::class.java -> ShizukuAppLockService.isServiceRunning
+        UsageLockService::class.java -> UsageLockService.isServiceRunning
+        else -> false
+    }
+
     private fun startService(context: Context, serviceClass: Class<*>) {
         try {
-            if (context.isServiceRunning(serviceClass)) {
+            if (isRunning(serviceClass)) {
                 Log.d(TAG, "Service already running: ${serviceClass.simpleName}")
                 return
             }
@@ -3,22 +3,44 @@ package dev.pranav.applock.core.broadcast
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
-import android.os.Build
+import android.content.IntentFilter
+import android.os.SystemClock
+import android.os.UserManager
 import android.util.Log
-import androidx.core.content.ContextCompat
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.StartupTrace
 import dev.pranav.applock.core.utils.appLockRepository
+import dev.pranav.applock.core.utils.ensureProtectionInitialized
 import dev.pranav.applock.data.repository.BackendImplementation
-import dev.pranav.applock.services.AppLockAccessibilityService
-import dev.pranav.applock.services.ShizukuAppLockService
-import dev.pranav.applock.services.UsageLockService
-import dev.pranav.applock.services.isServiceRunning
+import dev.pranav.applock.data.repository.DirectBootSnapshot
+import dev.pranav.applock.shizuku.ShizukuBootstrap
+import kotlin.concurrent.thread
 
+/**
+ * Arms protection after a reboot or an update.
+ *
+ * It is direct boot aware so LOCKED_BOOT_COMPLETED starts the protection process before the user
+ * unlocks. The services can only start once the credential-encrypted storage is available, so
+ * that process reads [DirectBootSnapshot] while still locked, sets up what the mirrored backend
+ * needs and waits for USER_UNLOCKED through [awaitUnlock]; that broadcast only reaches receivers
+ * registered at runtime. Protection is then armed right at the unlock instead of at
+ * BOOT_COMPLETED.
+ */
 class BootReceiver : BroadcastReceiver() {
 
     override fun onReceive(context: Context, intent: Intent) {
+        if (intent.action == Intent.ACTION_LOCKED_BOOT_COMPLETED) {
+            // The process start already set up everything for the unlock, see awaitUnlock
+            StartupTrace.mark("locked boot")
+            return
+        }
+        if (!context.getSystemService(UserManager::class.java).isUserUnlocked) {
+            Log.w(TAG, "Ignoring ${intent.action} before the user unlocked")
+            return
+        }
+        context.ensureProtectionInitialized()
         val repository = context.appLockRepository()
-        
+
         when (intent.action) {
             Intent.ACTION_MY_PACKAGE_REPLACED -> {
                 Log.d(TAG, "App package replaced, clearing old logs and showing donate link")
@@ -32,13 +54,13 @@ class BootReceiver : BroadcastReceiver() {
                 }
             }
 
-            Intent.ACTION_BOOT_COMPLETED,
-            Intent.ACTION_USER_UNLOCKED,
-            Intent.ACTION_USER_PRESENT -> {
+            Intent.ACTION_BOOT_COMPLETED -> {
                 try {
+                    // Already armed at the unlock if the process was started while locked
                     AppLockServiceStarter.startAppropriateServices(context, repository)
+                    onArmed(repository.getBackendImplementation())
                 } catch (e: Exception) {
-                    Log.e(TAG, "Error starting services on boot or unlock", e)
+                    Log.e(TAG, "Error starting services on boot", e)
                 }
             }
             else -> {
@@ -47,51 +69,57 @@ class BootReceiver : BroadcastReceiver() {
         }
     }
 
-    private fun startAppropriateServices(
-        context: Context,
-        repository: dev.pranav.applock.data.repository.AppLockRepository
-    ) {
-        if (repository.isAntiUninstallEnabled()) {
-            startService(context, AppLockAccessibilityService::class.java)
-        }
+    companion object {
+        private const val TAG = "BootReceiver"
 
-        when (repository.getBackendImplementation()) {
-            BackendImplementation.SHIZUKU -> {
-                startService(context, ShizukuAppLockService::class.java)
-            }
+        // Only the first arming after a boot is measured from it
+        private var isArmed = false
 
-            BackendImplementation.ACCESSIBILITY -> {
-                startService(context, AppLockAccessibilityService::class.java)
+        /**
+         * Called when the protection process starts before the user unlocked: prepares the
+         * backend mirrored in [DirectBootSnapshot] and starts it as soon as USER_UNLOCKED arrives.
+         */
+        fun awaitUnlock(context: Context) {
+            val policy = DirectBootSnapshot.read(context)
+            Log.d(TAG, "Started before the unlock, waiting to start ${policy?.backend}")
+            if (policy == null || policy.backend == BackendImplementation.SHIZUKU) {
+                thread(name = "ShizukuBootstrap") {
+                    ShizukuBootstrap.ensureInitialized(context, isProviderProcess = true)
+                }
             }
 
-            BackendImplementation.USAGE_STATS -> {
-                startService(context, UsageLockService::class.java)
-            }
+            context.registerReceiver(object : BroadcastReceiver() {
+                override fun onReceive(receiverContext: Context, intent: Intent) {
+                    context.unregisterReceiver(this)
+                    StartupTrace.mark("user unlocked")
+                    try {
+                        context.ensureProtectionInitialized()
+                        val backend = if (policy != null) {
+                            AppLockServiceStarter.startServices(
+                                context,
+                                policy.backend,
+                                policy.antiUninstall
+                            )
+                            policy.backend
+                        } else {
+                            // Nothing mirrored yet, the case for the first boot after updating
+                            val repository = context.appLockRepository()
+                            AppLockServiceStarter.startAppropriateServices(context, repository)
+                            repository.getBackendImplementation()
+                        }
+                        onArmed(backend)
+                    } catch (e: Exception) {
+                        Log.e(TAG, "Error starting services on unlock", e)
+                    }
+                }
+            }, IntentFilter(Intent.ACTION_USER_UNLOCKED))
         }
-    }
 
-    private fun startService(context: Context, serviceClass: Class<*>) {
-        try {
-            if (context.isServiceRunning(serviceClass)) {
-                Log.d(TAG, "Service already running: ${serviceClass.simpleName}")
-                return
-            }
-
-            val serviceIntent = Intent(context, serviceClass)
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
-                serviceClass != AppLockAccessibilityService::class.java
-            ) {
-                ContextCompat.startForegroundService(context, serviceIntent)
-            } else {
-                context.startService(serviceIntent)
-            }
-            Log.d(TAG, "Started service: ${serviceClass.simpleName}")
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to start service: ${serviceClass.simpleName}", e)
+        private fun onArmed(backend: BackendImplementation) {
+            if (isArmed) return
+            isArmed = true
+            StartupTrace.mark("armed $backend")
+            Log.d(TAG, "Armed $backend ${SystemClock.elapsedRealtime()}ms after boot")
         }
     }
-
-    companion object {
-        private const val TAG = "BootReceiver"
-    }
 }
@@ -115,3 +115,9 @@ private const val DEFAULT_VIBRATION_DURATION = 500L
  */
 fun Context.appLockRepository(): AppLockRepository =
     (applicationContext as AppLockApplication).appLockRepository
+
+/**
+ * Finishes the protection process's initialization if it was started before the user unlocked.
+ */
+fun Context.ensureProtectionInitialized() =
+    (applicationContext as AppLockApplication).ensureProtectionInitialized()
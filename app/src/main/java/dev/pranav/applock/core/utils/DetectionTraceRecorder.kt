@@ -0,0 +1,108 @@
+package dev.pranav.applock.core.utils
+
+import android.content.Context
+import android.content.pm.ApplicationInfo
+import android.util.Log
+import dev.pranav.applock.data.repository.AppLockRepository
+import dev.pranav.applock.data.repository.BackendImplementation
+import dev.pranav.lockcore.replay.TraceFormat
+import dev.pranav.lockcore.replay.TraceRecord
+import java.io.BufferedWriter
+import java.io.File
+import java.util.concurrent.Executors
+
+/**
+ * Records what the foreground detectors see (accessibility events, usage event windows, task
+ * snapshots), screen and lock screen changes, and the resulting lock decisions in the trace format
+ * of `:lockcore`, so a misbehaving sequence from a real device can be replayed on the JVM with
+ * `./gradlew :lockcore:replayTraces -Ptraces=<file>`.
+ *
+ * Only active in debuggable builds. Traces go to `files/traces/`, one file per process start,
+ * keeping the last [MAX_TRACE_FILES] of each process (`detection-protect-*` from ":protect"),
+ * so one process never deletes the file another is writing.
+ */
+object DetectionTraceRecorder {
+    private const val TAG = "DetectionTraceRecorder"
+    private const val DIRECTORY = "traces"
+    private const val MAX_TRACE_FILES = 5
+
+    @Volatile
+    var isEnabled = false
+        private set
+
+    private val executor by lazy { Executors.newSingleThreadExecutor() }
+    private var writer: BufferedWriter? = null
+
+    fun initialize(context: Context) {
+        if (context.applicationInfo.flags and ApplicationInfo.FLAG_DEBUGGABLE == 0) return
+
+        try {
+            val process = ProcessMemory.processName().substringAfter(':', "main")
+            val prefix = "detection-$process-"
+            val directory = File(context.filesDir, DIRECTORY).apply { mkdirs() }
+            directory.listFiles { file -> file.name.startsWith(prefix) }
+                ?.sortedByDescending { it.lastModified() }
+                ?.drop(MAX_TRACE_FILES - 1)
+                ?.forEach { it.delete() }
+
+            writer = File(directory, "$prefix${System.currentTimeMillis()}.trace").bufferedWriter()
+            isEnabled = true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error opening trace file", e)
+        }
+    }
+
+    /**
+     * Writes the configuration the detectors depend on. Called whenever a backend starts.
+     */
+    fun startSession(
+        backend: BackendImplementation,
+        repository: AppLockRepository,
+        ownPackage: String,
+        excludedApps: Collection<String>,
+        launcherPackage: String = ""
+    ) {
+        if (!isEnabled) return
+
+        write(TraceRecord.Config(TraceFormat.KEY_BACKEND, backend.name))
+        write(TraceRecord.Config(TraceFormat.KEY_OWN_PACKAGE, ownPackage))
+        write(TraceRecord.Config(TraceFormat.KEY_LAUNCHER, launcherPackage))
+        write(TraceRecord.Config(TraceFormat.KEY_LOCKED, repository.getLockedApps().joinToString(",")))
+        write(
+            TraceRecord.Config(
+                TraceFormat.KEY_TRIGGER_EXCLUDED,
+                repository.getTriggerExcludedApps().joinToString(",")
+            )
+        )
+        write(TraceRecord.Config(TraceFormat.KEY_EXCLUDED, excludedApps.joinToString(",")))
+        write(
+            TraceRecord.Config(
+                TraceFormat.KEY_UNLOCK_DURATION,
+                repository.getUnlockTimeDuration().toString()
+            )
+        )
+    }
+
+    /**
+     * Records the result of [record], which is only evaluated when recording is enabled.
+     */
+    inline fun record(record: () -> TraceRecord) {
+        if (isEnabled) write(record())
+    }
+
+    @PublishedApi
+    internal fun write(record: TraceRecord) {
+        val line = TraceFormat.format(record)
+        executor.execute {
+            try {
+                writer?.apply {
+                    write(line)
+                    newLine()
+                    flush()
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Error writing trace", e)
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package dev.pranav.applock.core.utils
+
+import dev.pranav.applock.data.repository.BackendImplementation
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.Transition
+import java.io.PrintWriter
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Fixed-size in-memory ring buffer of recent foreground transitions and lock decisions.
+ *
+ * Entries are stored column-wise in primitive arrays and package names are interned to small
+ * integer IDs, so [record] does not allocate once a package has been seen. Identical consecutive
+ * entries (e.g. a burst of content-change events from one app) are collapsed into a repeat count.
+ * It is always on, independent of the logging setting, so a misfired lock can be reconstructed
+ * after the fact from `dumpsys` or the exported log bundle.
+ */
+object FlightRecorder {
+    private const val CAPACITY = 4096
+    private const val INDEX_MASK = CAPACITY - 1
+    private const val MAX_PACKAGES = 2048
+    private const val NO_PACKAGE = 0
+    private const val UNKNOWN_PACKAGE = 1
+    private const val NO_BACKEND = -1
+
+    enum class Decision {
+        FOREGROUND,
+        LOCK,
+        SKIP,
+        UNLOCK,
+        RESET
+    }
+
+    enum class Reason {
+        FOREGROUND_CHANGED,
+        HOME,
+        RECENTS,
+        LOCKED_APP,
+        UNLOCK_EXPIRED,
+        NOT_LOCKED,
+        TEMPORARILY_UNLOCKED,
+        UNLOCK_DURATION_ACTIVE,
+        TRIGGER_EXCLUDED,
+        SYSTEM_EXCLUDED,
+        LOCK_SCREEN_SHOWN,
+        BIOMETRIC_IN_PROGRESS,
+        DEVICE_LOCKED,
+        OVERLAY_FAILED,
+        USER_UNLOCKED,
+        GRACE_PERIOD_RESTORED,
+        LEFT_UNLOCKED_APP,
+        SCREEN_OFF
+    }
+
+    private val timestamps = LongArray(CAPACITY)
+    private val packageIds = IntArray(CAPACITY)
+    private val triggerIds = IntArray(CAPACITY)
+    private val backends = ByteArray(CAPACITY)
+    private val decisions = ByteArray(CAPACITY)
+    private val reasons = ByteArray(CAPACITY)
+    private val repeats = IntArray(CAPACITY)
+
+    private val lock = Any()
+    private var cursor = 0L
+
+    private val packageIdTable = ConcurrentHashMap<String, Int>()
+    private val packageNames = arrayOfNulls<String>(MAX_PACKAGES).apply {
+        this[NO_PACKAGE] = ""
+        this[UNKNOWN_PACKAGE] = "?"
+    }
+    private var nextPackageId = UNKNOWN_PACKAGE + 1
+
+    /**
+     * Records one entry. [backend] is null for state changes that are not tied to a backend,
+     * such as the user unlocking an app from the lock screen.
+     */
+    fun record(
+        backend: BackendImplementation?,
+        decision: Decision,
+        reason: Reason,
+        packageName: String,
+        triggeringPackage: String = "",
+        timeMillis: Long = System.currentTimeMillis()
+    ) {
+        val packageId = packageId(packageName)
+        val triggerId = packageId(triggeringPackage)
+        val backendCode = (backend?.ordinal ?: NO_BACKEND).toByte()
+        val decisionCode = decision.ordinal.toByte()
+        val reasonCode = reason.ordinal.toByte()
+
+        synchronized(lock) {
+            if (cursor > 0) {
+                val last = ((cursor - 1) and INDEX_MASK.toLong()).toInt()
+                if (packageIds[last] == packageId && triggerIds[last] == triggerId &&
+                    backends[last] == backendCode && decisions[last] == decisionCode &&
+                    reasons[last] == reasonCode
+                ) {
+                    repeats[last]++
+                    return
+                }
+            }
+
+            val slot = (cursor++ and INDEX_MASK.toLong()).toInt()
+            timestamps[slot] = timeMillis
+            packageIds[slot] = packageId
+            triggerIds[slot] = triggerId
+            backends[slot] = backendCode
+            decisions[slot] = decisionCode
+            reasons[slot] = reasonCode
+            repeats[slot] = 1
+        }
+    }
+
+    /**
+     * Records what [machine] made of an app event for [packageName]: the foreground change if
+     * there was one, the unlock it ended and the lock decision. [previousForeground] is the
+     * machine's foreground package before the event.
+     */
+    fun recordTransition(
+        backend: BackendImplementation,
+        machine: ForegroundStateMachine,
+        transition: Transition,
+        packageName: String,
+        previousForeground: String,
+        timeMillis: Long = System.currentTimeMillis()
+    ) {
+        val trigger = machine.triggeringPackage
+        if (machine.foregroundPackage != previousForeground) {
+            record(backend, Decision.FOREGROUND, Reason.FOREGROUND_CHANGED, packageName, trigger, timeMillis)
+        }
+        if (machine.leftUnlockedApp.isNotEmpty()) {
+            record(backend, Decision.RESET, Reason.LEFT_UNLOCKED_APP, machine.leftUnlockedApp, packageName, timeMillis)
+        }
+
+        val reason = when (transition) {
+            Transition.DEVICE_LOCKED -> Reason.DEVICE_LOCKED
+            Transition.TRIGGER_EXCLUDED -> Reason.TRIGGER_EXCLUDED
+            Transition.TEMPORARILY_UNLOCKED -> Reason.TEMPORARILY_UNLOCKED
+            Transition.GRACE_PERIOD_RESTORED -> Reason.GRACE_PERIOD_RESTORED
+            Transition.UNLOCK_DURATION_ACTIVE -> Reason.UNLOCK_DURATION_ACTIVE
+            Transition.LOCK_SCREEN_SHOWN -> Reason.LOCK_SCREEN_SHOWN
+            Transition.LOCK -> Reason.LOCKED_APP
+            Transition.NONE, Transition.IGNORED, Transition.NOT_LOCKED -> return
+        }
+        val decision = when (transition) {
+            Transition.DEVICE_LOCKED -> Decision.RESET
+            Transition.GRACE_PERIOD_RESTORED -> Decision.UNLOCK
+            Transition.LOCK -> Decision.LOCK
+            else -> Decision.SKIP
+        }
+        record(backend, decision, reason, packageName, trigger, timeMillis)
+    }
+
+    /**
+     * Writes the buffered entries, oldest first, to [writer]. Used by the services' `dump()` and
+     * appended to the exported log bundle.
+     */
+    fun dump(writer: PrintWriter) {
+        val total: Long
+        val count: Int
+        val times: LongArray
+        val packages: IntArray
+        val triggers: IntArray
+        val backendCodes: ByteArray
+        val decisionCodes: ByteArray
+        val reasonCodes: ByteArray
+        val repeatCounts: IntArray
+
+        synchronized(lock) {
+            total = cursor
+            count = minOf(cursor, CAPACITY.toLong()).toInt()
+            val first = ((cursor - count) and INDEX_MASK.toLong()).toInt()
+            times = LongArray(count) { timestamps[(first + it) and INDEX_MASK] }
+            packages = IntArray(count) { packageIds[(first + it) and INDEX_MASK] }
+            triggers = IntArray(count) { triggerIds[(first + it) and INDEX_MASK] }
+            backendCodes = ByteArray(count) { backends[(first + it) and INDEX_MASK] }
+            decisionCodes = ByteArray(count) { decisions[(first + it) and INDEX_MASK] }
+            reasonCodes = ByteArray(count) { reasons[(first + it) and INDEX_MASK] }
+            repeatCounts = IntArray(count) { repeats[(first + it) and INDEX_MASK] }
+        }
+
+        val backendValues = BackendImplementation.entries
+        val decisionValues = Decision.entries
+        val reasonValues = Reason.entries
+
+        writer.println("Flight recorder: $count of $total entries (capacity $CAPACITY)")
+        for (i in 0 until count) {
+            writer.print(Instant.ofEpochMilli(times[i]))
+            writer.print(' ')
+            writer.print(backendValues.getOrNull(backendCodes[i].toInt()) ?: "-")
+            writer.print(' ')
+            writer.print(decisionValues.getOrNull(decisionCodes[i].toInt()) ?: "?")
+            writer.print('/')
+            writer.print(reasonValues.getOrNull(reasonCodes[i].toInt()) ?: "?")
+            writer.print(" pkg=")
+            writer.print(packageNames[packages[i]] ?: "?")
+            writer.print(" trigger=")
+            writer.print(packageNames[triggers[i]] ?: "?")
+            if (repeatCounts[i] > 1) {
+                writer.print(" x")
+                writer.print(repeatCounts[i])
+            }
+            writer.println()
+        }
+        writer.flush()
+    }
+
+    private fun packageId(packageName: String): Int {
+        if (packageName.isEmpty()) return NO_PACKAGE
+        packageIdTable[packageName]?.let { return it }
+
+        synchronized(packageIdTable) {
+            packageIdTable[packageName]?.let { return it }
+            if (nextPackageId >= MAX_PACKAGES) return UNKNOWN_PACKAGE
+
+            val id = nextPackageId++
+            packageNames[id] = packageName
+            packageIdTable[packageName] = id
+            return id
+        }
+    }
+}
@@ -6,37 +6,53 @@ import android.net.Uri
 import android.os.Build
 import android.util.Log
 import androidx.core.content.FileProvider
+import dev.pranav.applock.services.ProtectionClient
+import dev.pranav.lockcore.AuditLog
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.launch
 import java.io.File
+import java.io.FileWriter
+import java.io.PrintWriter
 import java.time.Instant
 import java.time.temporal.ChronoUnit
 
 @SuppressLint("StaticFieldLeak")
 object LogUtils {
+    // One at a time, so a purge rewriting a file cannot drop a line appended meanwhile
     private val logScope: CoroutineScope by lazy {
-        CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        CoroutineScope(SupervisorJob() + Dispatchers.IO.limitedParallelism(1))
     }
     private const val TAG = "LogUtils"
     private const val FILE_NAME = "app_logs.txt"
     private const val SECURITY_LOGS = "audit_log.txt"
     private lateinit var context: Context
+    @Volatile
     private var loggingEnabled = false
+    private var ownsAuditLog = false
 
-    fun initialize(application: Context) {
+    /**
+     * Only the process that [ownsAuditLog] writes and purges the audit log file, so two processes
+     * never append to it while one rewrites it; the others log to logcat only.
+     */
+    fun initialize(application: Context, ownsAuditLog: Boolean) {
         context = application
+        this.ownsAuditLog = ownsAuditLog
     }
 
     fun setLoggingEnabled(enabled: Boolean) {
         loggingEnabled = enabled
     }
 
+    /** Whether [d] and [e] log anything; check it before building an expensive message. */
+    val isEnabled: Boolean
+        get() = loggingEnabled
+
     fun d(tag: String, message: String) {
         if (!loggingEnabled) return
 
-        val line = "${Instant.now()} D $tag: $message\n"
+        val line = AuditLog.formatLine(Instant.now(), 'D', tag, message)
         Log.d(tag, message)
         writeAuditLogLine(line)
     }
@@ -44,19 +60,21 @@ object LogUtils {
     fun e(tag: String, message: String, e: Throwable? = null) {
         if (!loggingEnabled) return
 
-        val line = "${Instant.now()} E $tag: $message\n${Log.getStackTraceString(e)}\n"
+        val line = AuditLog.formatLine(
+            Instant.now(),
+            'E',
+            tag,
+            "$message\n${Log.getStackTraceString(e)}"
+        )
         Log.e(tag, message)
         writeAuditLogLine(line)
     }
 
     private fun writeAuditLogLine(line: String) {
+        if (!ownsAuditLog) return
         logScope.launch {
             try {
-                val file = File(context.filesDir, SECURITY_LOGS)
-                if (!file.exists()) {
-                    file.createNewFile()
-                }
-                file.appendText(line)
+                AuditLog.append(File(context.filesDir, SECURITY_LOGS), line)
             } catch (e: Exception) {
                 Log.e(TAG, "Error writing audit log", e)
             }
@@ -98,6 +116,17 @@ object LogUtils {
                 }
             }
 
+            PrintWriter(FileWriter(file, true)).use { writer ->
+                writer.println()
+                ProcessMemory.dump(writer)
+                StartupTrace.dump(writer)
+                writer.println("===== Protection process =====")
+            }
+            // Detection runs in the ":protect" process, whose flight recorder this one cannot see
+            if (!ProtectionClient.dumpTo(file)) {
+                PrintWriter(FileWriter(file, true)).use { it.println("(not running)") }
+            }
+
             return FileProvider.getUriForFile(
                 context,
                 "${context.packageName}.fileprovider",
@@ -135,14 +164,18 @@ object LogUtils {
     }
 
     /**
-     * Purge log entries older than 3 days from both audit and app log files.
+     * Purge log entries older than 3 days from the log file this process writes: the audit log
+     * in the process that owns it, the app log in the others.
      * This prevents logs from growing indefinitely.
      * Runs asynchronously to avoid blocking the main thread.
      */
     fun purgeOldLogs() {
         logScope.launch {
-            purgeOldLogsFromFile(File(context.filesDir, SECURITY_LOGS), "audit")
-            purgeOldLogsFromFile(File(context.cacheDir, FILE_NAME), "app")
+            if (ownsAuditLog) {
+                purgeOldLogsFromFile(File(context.filesDir, SECURITY_LOGS), "audit")
+            } else {
+                purgeOldLogsFromFile(File(context.cacheDir, FILE_NAME), "app")
+            }
         }
     }
 
@@ -159,30 +192,11 @@ object LogUtils {
             try {
                 logFile.copyTo(backupFile, overwrite = true)
 
-                val threeDaysAgo = Instant.now().minus(7, ChronoUnit.DAYS)
-                var purgedCount = 0
-                var keptCount = 0
+                val cutoff = Instant.now().minus(7, ChronoUnit.DAYS)
 
-                backupFile.bufferedReader().use { reader ->
+                val (keptCount, purgedCount) = backupFile.bufferedReader().use { reader ->
                     tempLogFile.bufferedWriter().use { writer ->
-                        reader.forEachLine { line ->
-                            try {
-                                val timestampStr = line.substringBefore(" ")
-                                val timestamp = Instant.parse(timestampStr)
-
-                                if (timestamp.isAfter(threeDaysAgo)) {
-                                    writer.write(line)
-                                    writer.newLine()
-                                    keptCount++
-                                } else {
-                                    purgedCount++
-                                }
-                            } catch (_: Exception) {
-                                writer.write(line)
-                                writer.newLine()
-                                keptCount++
-                            }
-                        }
+                        AuditLog.purge(reader, writer, cutoff)
                     }
                 }
 
@@ -0,0 +1,82 @@
+package dev.pranav.applock.core.utils
+
+import android.os.Build
+import android.os.Trace
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Perfetto / systrace markers for the detection, decision and overlay stages.
+ *
+ * Every entry point checks a single volatile flag first, so the markers cost nothing unless
+ * "Performance tracing" is enabled in the advanced settings. A lock attempt gets an ID when a
+ * backend decides to lock; that ID is used as the async-track cookie and travels with the
+ * overlay so one attempt can be followed from detection to the lock screen being drawn.
+ */
+object PerfTrace {
+    const val EXTRA_LOCK_ATTEMPT_ID = "lock_attempt_id"
+    const val NO_LOCK_ATTEMPT = 0
+
+    private const val LOCK_ATTEMPT_TRACK = "AppLock:lockAttempt"
+
+    @Volatile
+    var isEnabled = false
+        private set
+
+    private val lockAttemptIds = AtomicInteger()
+
+    fun setEnabled(enabled: Boolean) {
+        isEnabled = enabled
+    }
+
+    inline fun <T> section(name: String, block: () -> T): T {
+        if (!isEnabled) return block()
+        Trace.beginSection(name)
+        try {
+            return block()
+        } finally {
+            Trace.endSection()
+        }
+    }
+
+    /**
+     * Opens the async track for a new lock attempt on [packageName] and returns its ID,
+     * or [NO_LOCK_ATTEMPT] when tracing is off.
+     */
+    fun beginLockAttempt(backend: String, packageName: String): Int {
+        if (!isEnabled) return NO_LOCK_ATTEMPT
+
+        val id = lockAttemptIds.incrementAndGet()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(LOCK_ATTEMPT_TRACK, id)
+        }
+        // Zero-length marker so the attempt ID can be matched to its package in the UI
+        Trace.beginSection(truncate("$LOCK_ATTEMPT_TRACK #$id $backend $packageName"))
+        Trace.endSection()
+        return id
+    }
+
+    /**
+     * Marks a stage of an attempt as a sync section tagged with the attempt ID.
+     */
+    inline fun <T> lockAttemptStage(stage: String, lockAttemptId: Int, block: () -> T): T {
+        if (!isEnabled || lockAttemptId == NO_LOCK_ATTEMPT) return section(stage, block)
+        return section("$stage #$lockAttemptId", block)
+    }
+
+    /**
+     * Closes the async track opened by [beginLockAttempt]. Safe to call with [NO_LOCK_ATTEMPT].
+     */
+    fun endLockAttempt(lockAttemptId: Int) {
+        if (!isEnabled || lockAttemptId == NO_LOCK_ATTEMPT) return
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(LOCK_ATTEMPT_TRACK, lockAttemptId)
+        }
+    }
+
+    // Trace section names are limited to 127 characters
+    private fun truncate(name: String): String =
+        if (name.length <= MAX_SECTION_NAME_LENGTH) name else name.substring(0, MAX_SECTION_NAME_LENGTH)
+
+    private const val MAX_SECTION_NAME_LENGTH = 127
+}
@@ -0,0 +1,47 @@
+package dev.pranav.applock.core.utils
+
+import android.app.Application
+import android.os.Build
+import android.os.Debug
+import android.util.Log
+import java.io.File
+import java.io.PrintWriter
+
+/**
+ * Name and resident memory of the current process, for comparing the ":protect" process with
+ * the UI.
+ */
+object ProcessMemory {
+    private const val TAG = "ProcessMemory"
+
+    /** Resident set size in kB from /proc/self/status, or -1 if it cannot be read. */
+    fun rssKb(): Long {
+        return try {
+            File("/proc/self/status").useLines { lines ->
+                lines.firstOrNull { it.startsWith("VmRSS:") }
+                    ?.substringAfter(':')
+                    ?.trim()
+                    ?.substringBefore(' ')
+                    ?.toLongOrNull() ?: -1
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error reading VmRSS", e)
+            -1
+        }
+    }
+
+    fun processName(): String {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) return Application.getProcessName()
+        return try {
+            File("/proc/self/cmdline").readText().substringBefore('\u0000')
+        } catch (e: Exception) {
+            Log.e(TAG, "Error reading the process name", e)
+            ""
+        }
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println("Memory of ${processName()}: rss=${rssKb()}kB pss=${Debug.getPss()}kB")
+        writer.flush()
+    }
+}
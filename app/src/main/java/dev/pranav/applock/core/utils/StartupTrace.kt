@@ -0,0 +1,76 @@
+package dev.pranav.applock.core.utils
+
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import java.io.PrintWriter
+
+/**
+ * Where the time between the process starting and it being useful goes: how long each startup
+ * component took to initialize, and when the milestones (first frame in the UI process, first
+ * protected tick in the protection process) were reached, counted from the process start.
+ *
+ * Everything is logged through [Log] rather than [LogUtils], whose setting may not be loaded yet.
+ */
+object StartupTrace {
+    private const val TAG = "StartupTrace"
+
+    private class Entry(val name: String, val startMs: Long, val durationMs: Long)
+
+    private val processStartMs = Process.getStartUptimeMillis()
+    private val entries = ArrayList<Entry>()
+
+    @Volatile
+    private var isProtected = false
+
+    /** Runs [block] as the startup component [name] and records how long it took. */
+    inline fun <T> measure(name: String, block: () -> T): T {
+        val start = SystemClock.uptimeMillis()
+        try {
+            return PerfTrace.section("AppLock:init:$name", block)
+        } finally {
+            record(name, start, SystemClock.uptimeMillis() - start)
+        }
+    }
+
+    /** Records that the milestone [name] was reached now. */
+    fun mark(name: String) {
+        record(name, SystemClock.uptimeMillis(), -1)
+    }
+
+    /** Marks the first time a backend protects after the process started; a volatile read after. */
+    fun onProtected(backend: Any) {
+        if (isProtected) return
+        synchronized(this) {
+            if (isProtected) return
+            isProtected = true
+        }
+        mark("protected by $backend")
+    }
+
+    @PublishedApi
+    internal fun record(name: String, startMs: Long, durationMs: Long) {
+        val entry = Entry(name, startMs, durationMs)
+        synchronized(entries) { entries.add(entry) }
+        if (durationMs < 0) {
+            Log.d(TAG, "$name at +${startMs - processStartMs}ms")
+        } else {
+            Log.d(TAG, "$name took ${durationMs}ms at +${startMs - processStartMs}ms")
+        }
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println("Startup of ${ProcessMemory.processName()}:")
+        synchronized(entries) {
+            entries.forEach { entry ->
+                val at = entry.startMs - processStartMs
+                if (entry.durationMs < 0) {
+                    writer.println("  +${at}ms ${entry.name}")
+                } else {
+                    writer.println("  +${at}ms ${entry.name} ${entry.durationMs}ms")
+                }
+            }
+        }
+        writer.flush()
+    }
+}
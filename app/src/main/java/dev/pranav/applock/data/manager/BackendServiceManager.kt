@@ -5,6 +5,8 @@ import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.services.AppLockAccessibilityService
 import dev.pranav.applock.services.ShizukuAppLockService
 import dev.pranav.applock.services.UsageLockService
+import dev.pranav.lockcore.BackendMeasurement
+import dev.pranav.lockcore.BackendSelector
 
 /**
  * Manages backend service operations and switching between different implementations.
@@ -41,6 +43,16 @@ class BackendServiceManager {
         return false
     }
 
+    /**
+     * The backend auto mode runs on, picked from calibration [measurements] by
+     * [BackendSelector], or null if no backend noticed every test launch.
+     */
+    fun chooseBackend(measurements: List<BackendMeasurement>): BackendImplementation? {
+        val best = BackendSelector.choose(measurements) ?: return null
+        Log.d(TAG, "Calibration picked ${best.backend} at ${best.medianLatencyMs}ms")
+        return BackendImplementation.entries.find { it.name == best.backend }
+    }
+
     private fun getBackendForService(serviceClass: Class<*>): BackendImplementation? {
         return when (serviceClass) {
             AppLockAccessibilityService::class.java -> BackendImplementation.ACCESSIBILITY
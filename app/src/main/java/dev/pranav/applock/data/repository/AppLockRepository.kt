@@ -1,8 +1,11 @@
 package dev.pranav.applock.data.repository
 
 import android.content.Context
+import android.content.SharedPreferences
 import dev.pranav.applock.data.manager.BackendServiceManager
 import dev.pranav.applock.services.AppLockManager
+import dev.pranav.lockcore.BackendMeasurement
+import dev.pranav.lockcore.BackendSelector
 
 /**
  * Main repository that coordinates between different specialized repositories and managers.
@@ -90,6 +93,25 @@ class AppLockRepository(private val context: Context) {
     fun getBackendImplementation(): BackendImplementation =
         preferencesRepository.getBackendImplementation()
 
+    fun setAutoBackendEnabled(enabled: Boolean) =
+        preferencesRepository.setAutoBackendEnabled(enabled)
+
+    fun isAutoBackendEnabled(): Boolean = preferencesRepository.isAutoBackendEnabled()
+
+    fun getBackendCalibration(): List<BackendMeasurement> =
+        BackendSelector.decode(preferencesRepository.getBackendCalibration())
+
+    /** Stores [measurements] as taken on the build [fingerprint]. */
+    fun setBackendCalibration(measurements: List<BackendMeasurement>, fingerprint: String) =
+        preferencesRepository.setBackendCalibration(BackendSelector.encode(measurements), fingerprint)
+
+    fun chooseCalibratedBackend(): BackendImplementation? =
+        backendServiceManager.chooseBackend(getBackendCalibration())
+
+    /** Whether auto mode needs a calibration, never having run one on this OS build. */
+    fun isBackendCalibrationStale(fingerprint: String): Boolean =
+        isAutoBackendEnabled() && preferencesRepository.getBackendCalibrationFingerprint() != fingerprint
+
     fun isShowCommunityLink(): Boolean = preferencesRepository.isShowCommunityLink()
     fun setCommunityLinkShown(shown: Boolean) = preferencesRepository.setCommunityLinkShown(shown)
     fun isShowDonateLink(): Boolean = preferencesRepository.isShowDonateLink(context)
@@ -98,9 +120,35 @@ class AppLockRepository(private val context: Context) {
     fun isLoggingEnabled(): Boolean = preferencesRepository.isLoggingEnabled()
     fun setLoggingEnabled(enabled: Boolean) = preferencesRepository.setLoggingEnabled(enabled)
 
+    fun isPerfTracingEnabled(): Boolean = preferencesRepository.isPerfTracingEnabled()
+    fun setPerfTracingEnabled(enabled: Boolean) =
+        preferencesRepository.setPerfTracingEnabled(enabled)
+
+    fun isShizukuTaskMonitorEnabled(): Boolean = preferencesRepository.isShizukuTaskMonitorEnabled()
+    fun setShizukuTaskMonitorEnabled(enabled: Boolean) =
+        preferencesRepository.setShizukuTaskMonitorEnabled(enabled)
+
+    fun isSuspensionLockEnabled(): Boolean = preferencesRepository.isSuspensionLockEnabled()
+    fun setSuspensionLockEnabled(enabled: Boolean) =
+        preferencesRepository.setSuspensionLockEnabled(enabled)
+
     fun setActiveBackend(backend: BackendImplementation) =
         backendServiceManager.setActiveBackend(backend)
 
+    /**
+     * Registers [listener] for changes to the locked apps, exclusions and settings. Shared
+     * preferences only hold listeners weakly, so callers must keep a reference while listening.
+     */
+    fun registerOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        lockedAppsRepository.registerOnChangeListener(listener)
+        preferencesRepository.registerOnChangeListener(listener)
+    }
+
+    fun unregisterOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        lockedAppsRepository.unregisterOnChangeListener(listener)
+        preferencesRepository.unregisterOnChangeListener(listener)
+    }
+
     companion object {
         private const val TAG = "AppLockRepository"
 
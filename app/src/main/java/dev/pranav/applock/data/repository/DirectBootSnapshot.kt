@@ -0,0 +1,72 @@
+package dev.pranav.applock.data.repository
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.core.content.edit
+
+/**
+ * The part of the policy needed to arm protection, mirrored to device-protected storage so it
+ * can be read before the user unlocks after a reboot, when the credential-encrypted preferences
+ * behind [AppLockRepository] cannot be opened.
+ *
+ * Only the services to start are mirrored; passwords, patterns and the locked apps stay in
+ * credential-encrypted storage.
+ */
+object DirectBootSnapshot {
+    private const val TAG = "DirectBootSnapshot"
+    private const val PREFS_NAME = "direct_boot_policy"
+    private const val KEY_BACKEND = "backend"
+    private const val KEY_ANTI_UNINSTALL = "anti_uninstall"
+
+    class Policy(val backend: BackendImplementation, val antiUninstall: Boolean)
+
+    private var repository: AppLockRepository? = null
+    private lateinit var prefs: SharedPreferences
+
+    // Held in a field: shared preferences only keep weak references to their listeners
+    private val policyListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+        repository?.let(::write)
+    }
+
+    /** Writes the current policy and keeps the mirror up to date with [repository]. */
+    fun mirror(context: Context, repository: AppLockRepository) {
+        if (this.repository != null) return
+        prefs = storage(context)
+        this.repository = repository
+        write(repository)
+        repository.registerOnChangeListener(policyListener)
+    }
+
+    /** The last mirrored policy, or null if none was mirrored yet. */
+    fun read(context: Context): Policy? {
+        return try {
+            val prefs = storage(context)
+            val backend = prefs.getString(KEY_BACKEND, null) ?: return null
+            Policy(
+                backend = BackendImplementation.valueOf(backend),
+                antiUninstall = prefs.getBoolean(KEY_ANTI_UNINSTALL, false)
+            )
+        } catch (e: Exception) {
+            Log.e(TAG, "Error reading the direct boot policy", e)
+            null
+        }
+    }
+
+    private fun write(repository: AppLockRepository) {
+        val backend = repository.getBackendImplementation().name
+        val antiUninstall = repository.isAntiUninstallEnabled()
+        if (prefs.getString(KEY_BACKEND, null) == backend &&
+            prefs.getBoolean(KEY_ANTI_UNINSTALL, false) == antiUninstall
+        ) return
+
+        prefs.edit {
+            putString(KEY_BACKEND, backend)
+            putBoolean(KEY_ANTI_UNINSTALL, antiUninstall)
+        }
+    }
+
+    private fun storage(context: Context): SharedPreferences =
+        context.createDeviceProtectedStorageContext()
+            .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+}
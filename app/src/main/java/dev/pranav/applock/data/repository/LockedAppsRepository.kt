@@ -99,6 +99,14 @@ class LockedAppsRepository(context: Context) {
         preferences.edit { putStringSet(KEY_LOCKED_APPS, updated) }
     }
 
+    fun registerOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        preferences.registerOnSharedPreferenceChangeListener(listener)
+    }
+
+    fun unregisterOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        preferences.unregisterOnSharedPreferenceChangeListener(listener)
+    }
+
     companion object {
         private const val PREFS_NAME = "app_lock_prefs"
         private const val KEY_LOCKED_APPS = "locked_apps"
@@ -130,6 +130,29 @@ class PreferencesRepository(context: Context) {
         }
     }
 
+    fun setAutoBackendEnabled(enabled: Boolean) {
+        settingsPrefs.edit { putBoolean(KEY_AUTO_BACKEND, enabled) }
+    }
+
+    fun isAutoBackendEnabled(): Boolean {
+        return settingsPrefs.getBoolean(KEY_AUTO_BACKEND, false)
+    }
+
+    fun setBackendCalibration(measurements: String, fingerprint: String) {
+        settingsPrefs.edit {
+            putString(KEY_BACKEND_CALIBRATION, measurements)
+            putString(KEY_BACKEND_CALIBRATION_FINGERPRINT, fingerprint)
+        }
+    }
+
+    fun getBackendCalibration(): String {
+        return settingsPrefs.getString(KEY_BACKEND_CALIBRATION, "") ?: ""
+    }
+
+    fun getBackendCalibrationFingerprint(): String? {
+        return settingsPrefs.getString(KEY_BACKEND_CALIBRATION_FINGERPRINT, null)
+    }
+
     fun isShowCommunityLink(): Boolean {
         return !settingsPrefs.getBoolean(KEY_COMMUNITY_LINK_SHOWN, false)
     }
@@ -154,6 +177,38 @@ class PreferencesRepository(context: Context) {
         settingsPrefs.edit { putBoolean(KEY_LOGGING_ENABLED, enabled) }
     }
 
+    fun isPerfTracingEnabled(): Boolean {
+        return settingsPrefs.getBoolean(KEY_PERF_TRACING_ENABLED, false)
+    }
+
+    fun setPerfTracingEnabled(enabled: Boolean) {
+        settingsPrefs.edit { putBoolean(KEY_PERF_TRACING_ENABLED, enabled) }
+    }
+
+    fun isShizukuTaskMonitorEnabled(): Boolean {
+        return settingsPrefs.getBoolean(KEY_SHIZUKU_TASK_MONITOR, false)
+    }
+
+    fun setShizukuTaskMonitorEnabled(enabled: Boolean) {
+        settingsPrefs.edit { putBoolean(KEY_SHIZUKU_TASK_MONITOR, enabled) }
+    }
+
+    fun isSuspensionLockEnabled(): Boolean {
+        return settingsPrefs.getBoolean(KEY_SUSPENSION_LOCK, false)
+    }
+
+    fun setSuspensionLockEnabled(enabled: Boolean) {
+        settingsPrefs.edit { putBoolean(KEY_SUSPENSION_LOCK, enabled) }
+    }
+
+    fun registerOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        settingsPrefs.registerOnSharedPreferenceChangeListener(listener)
+    }
+
+    fun unregisterOnChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        settingsPrefs.unregisterOnSharedPreferenceChangeListener(listener)
+    }
+
     companion object {
         private const val PREFS_NAME_APP_LOCK = "app_lock_prefs"
         private const val PREFS_NAME_SETTINGS = "app_lock_settings"
@@ -166,9 +221,15 @@ class PreferencesRepository(context: Context) {
         private const val KEY_ANTI_UNINSTALL = "anti_uninstall"
         private const val KEY_UNLOCK_TIME_DURATION = "unlock_time_duration"
         private const val KEY_BACKEND_IMPLEMENTATION = "backend_implementation"
+        private const val KEY_AUTO_BACKEND = "auto_backend"
+        private const val KEY_BACKEND_CALIBRATION = "backend_calibration"
+        private const val KEY_BACKEND_CALIBRATION_FINGERPRINT = "backend_calibration_fingerprint"
         private const val KEY_COMMUNITY_LINK_SHOWN = "community_link_shown"
         private const val KEY_SHOW_DONATE_LINK = "show_donate_link"
         private const val KEY_LOGGING_ENABLED = "logging_enabled"
+        private const val KEY_PERF_TRACING_ENABLED = "perf_tracing_enabled"
+        private const val KEY_SHIZUKU_TASK_MONITOR = "shizuku_task_monitor"
+        private const val KEY_SUSPENSION_LOCK = "suspension_lock"
         private const val LAST_VERSION_CODE = "last_version_code"
         private const val KEY_APPLOCK_ENABLED = "applock_enabled"
         private const val KEY_AUTO_UNLOCK = "auto_unlock"
@@ -7,6 +7,8 @@ import android.content.Context
 import android.content.Intent
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
+import android.os.Handler
+import android.os.Looper
 import android.provider.Settings
 import android.widget.Toast
 import androidx.compose.foundation.Image
@@ -87,32 +89,43 @@ fun MainScreen(
     }
 
     DisposableEffect(lifecycleOwner) {
+        fun checkPermissions() {
+            val appLockRepository = context.appLockRepository()
+            val backend = appLockRepository.getBackendImplementation()
+            val isAntiUninstallEnabled = appLockRepository.isAntiUninstallEnabled()
+            val dpm =
+                context.getSystemService(Context.DEVICE_POLICY_SERVICE) as DevicePolicyManager
+            val component = ComponentName(context, DeviceAdmin::class.java)
+
+            firstMissingPermission = when {
+                !Settings.canDrawOverlays(context) -> MissingPermission.OVERLAY
+                backend == BackendImplementation.ACCESSIBILITY && !context.isAccessibilityServiceEnabled() -> MissingPermission.ACCESSIBILITY
+                backend == BackendImplementation.USAGE_STATS && !context.hasUsagePermission() -> MissingPermission.USAGE_STATS
+                backend == BackendImplementation.SHIZUKU && (runCatching { !Shizuku.pingBinder() || Shizuku.checkSelfPermission() == PackageManager.PERMISSION_DENIED }.getOrDefault(
+                    true
+                )) -> MissingPermission.SHIZUKU
+
+                isAntiUninstallEnabled && !context.isAccessibilityServiceEnabled() -> MissingPermission.ACCESSIBILITY
+                isAntiUninstallEnabled && !dpm.isAdminActive(component) -> MissingPermission.DEVICE_ADMIN
+                else -> null
+            }
+        }
+
         val observer = LifecycleEventObserver { _, event ->
-            if (event == Lifecycle.Event.ON_RESUME) {
-                val appLockRepository = context.appLockRepository()
-                val backend = appLockRepository.getBackendImplementation()
-                val isAntiUninstallEnabled = appLockRepository.isAntiUninstallEnabled()
-                val dpm =
-                    context.getSystemService(Context.DEVICE_POLICY_SERVICE) as DevicePolicyManager
-                val component = ComponentName(context, DeviceAdmin::class.java)
-
-                firstMissingPermission = when {
-                    !Settings.canDrawOverlays(context) -> MissingPermission.OVERLAY
-                    backend == BackendImplementation.ACCESSIBILITY && !context.isAccessibilityServiceEnabled() -> MissingPermission.ACCESSIBILITY
-                    backend == BackendImplementation.USAGE_STATS && !context.hasUsagePermission() -> MissingPermission.USAGE_STATS
-                    backend == BackendImplementation.SHIZUKU && (runCatching { !Shizuku.pingBinder() || Shizuku.checkSelfPermission() == PackageManager.PERMISSION_DENIED }.getOrDefault(
-                        true
-                    )) -> MissingPermission.SHIZUKU
-
-                    isAntiUninstallEnabled && !context.isAccessibilityServiceEnabled() -> MissingPermission.ACCESSIBILITY
-                    isAntiUninstallEnabled && !dpm.isAdminActive(component) -> MissingPermission.DEVICE_ADMIN
-                    else -> null
-                }
+            if (event == Lifecycle.Event.ON_RESUME) checkPermissions()
+        }
+        // The Shizuku binder is requested while the activity starts and may arrive after the
+        // first resume, which then saw it missing
+        val binderReceivedListener = Shizuku.OnBinderReceivedListener {
+            if (lifecycleOwner.lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                checkPermissions()
             }
         }
         lifecycleOwner.lifecycle.addObserver(observer)
+        Shizuku.addBinderReceivedListener(binderReceivedListener, Handler(Looper.getMainLooper()))
         onDispose {
             lifecycleOwner.lifecycle.removeObserver(observer)
+            Shizuku.removeBinderReceivedListener(binderReceivedListener)
         }
     }
 
@@ -6,6 +6,7 @@ import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.features.applist.domain.AppSearchManager
+import dev.pranav.lockcore.AppListFilter
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.FlowPreview
 import kotlinx.coroutines.flow.*
@@ -31,9 +32,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
 
     val lockedAppsFlow: StateFlow<List<ApplicationInfo>> =
         combine(_allApps, _lockedApps, _debouncedQuery) { apps, locked, query ->
-            apps.filter { it.packageName in locked }
-                .filter { it.matchesQuery(query) }
-                .sortedBy { it.loadLabel(getApplication<Application>().packageManager).toString() }
+            filterApps(apps, locked, lockedState = true, query)
         }.stateIn(
             scope = viewModelScope,
             started = SharingStarted.WhileSubscribed(5000L),
@@ -42,19 +41,28 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
 
     val unlockedAppsFlow: StateFlow<List<ApplicationInfo>> =
         combine(_allApps, _lockedApps, _debouncedQuery) { apps, locked, query ->
-            apps.filterNot { it.packageName in locked }
-                .filter { it.matchesQuery(query) }
-                .sortedBy { it.loadLabel(getApplication<Application>().packageManager).toString() }
+            filterApps(apps, locked, lockedState = false, query)
         }.stateIn(
             scope = viewModelScope,
             started = SharingStarted.WhileSubscribed(5000L),
             initialValue = emptyList()
         )
 
-    private fun ApplicationInfo.matchesQuery(query: String): Boolean {
-        if (query.isBlank()) return true
-        return loadLabel(getApplication<Application>().packageManager).toString()
-            .contains(query, ignoreCase = true)
+    private fun filterApps(
+        apps: Set<ApplicationInfo>,
+        locked: Set<String>,
+        lockedState: Boolean,
+        query: String
+    ): List<ApplicationInfo> {
+        val application = getApplication<Application>()
+        return AppListFilter.filter(
+            apps = apps,
+            lockedPackages = locked,
+            locked = lockedState,
+            query = query,
+            packageName = { it.packageName },
+            label = { AppIconCache.getLabel(application, it) }
+        )
     }
 
     init {
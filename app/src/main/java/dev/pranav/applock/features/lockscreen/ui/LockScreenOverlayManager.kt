@@ -16,6 +16,7 @@ import androidx.savedstate.SavedStateRegistry
 import androidx.savedstate.SavedStateRegistryController
 import androidx.savedstate.SavedStateRegistryOwner
 import androidx.savedstate.setViewTreeSavedStateRegistryOwner
+import dev.pranav.applock.core.utils.PerfTrace
 import dev.pranav.applock.core.utils.appLockRepository
 import dev.pranav.applock.data.repository.PreferencesRepository
 import dev.pranav.applock.ui.theme.AppLockTheme
@@ -42,6 +43,19 @@ class LockScreenOverlayManager(private val context: Context):
     }
 
     fun showOverlay(
+        lockedPackageName: String,
+        triggeringPackageName: String,
+        lockAttemptId: Int = PerfTrace.NO_LOCK_ATTEMPT,
+        onUnlock: () -> Unit,
+        onExit: () -> Unit
+    ) {
+        PerfTrace.lockAttemptStage("AppLock:showOverlay", lockAttemptId) {
+            addOverlay(lockedPackageName, triggeringPackageName, onUnlock, onExit)
+        }
+        PerfTrace.endLockAttempt(lockAttemptId)
+    }
+
+    private fun addOverlay(
         lockedPackageName: String,
         triggeringPackageName: String,
         onUnlock: () -> Unit,
@@ -1,6 +1,7 @@
 package dev.pranav.applock.features.lockscreen.ui
 
 import android.content.Context
+import android.content.Intent
 import android.content.res.Configuration
 import android.os.Build
 import android.os.Bundle
@@ -46,6 +47,8 @@ import androidx.fragment.app.FragmentActivity
 import androidx.lifecycle.lifecycleScope
 import dev.pranav.applock.R
 import dev.pranav.applock.core.ui.shapes
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.PerfTrace
 import dev.pranav.applock.core.utils.appLockRepository
 import dev.pranav.applock.core.utils.vibrate
 import dev.pranav.applock.data.repository.AppLockRepository
@@ -54,6 +57,8 @@ import dev.pranav.applock.services.AppLockManager
 import dev.pranav.applock.ui.icons.Backspace
 import dev.pranav.applock.ui.icons.Fingerprint
 import dev.pranav.applock.ui.theme.AppLockTheme
+import dev.pranav.lockcore.replay.SystemAction
+import dev.pranav.lockcore.replay.TraceRecord
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import java.util.concurrent.Executor
@@ -74,7 +79,21 @@ class PasswordOverlayActivity: FragmentActivity() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
 
-        lockedPackageNameFromIntent = intent.getStringExtra("locked_package")
+        val lockAttemptId =
+            intent.getIntExtra(PerfTrace.EXTRA_LOCK_ATTEMPT_ID, PerfTrace.NO_LOCK_ATTEMPT)
+        PerfTrace.lockAttemptStage("AppLock:overlayActivity.onCreate", lockAttemptId) {
+            setupOverlay()
+        }
+        // The async track ends once the first frame of the lock screen has been posted
+        window.decorView.post { PerfTrace.endLockAttempt(lockAttemptId) }
+    }
+
+    private fun setupOverlay() {
+        lockedPackageNameFromIntent = if (intent.action == Intent.ACTION_SHOW_SUSPENDED_APP_DETAILS) {
+            intent.getStringExtra(Intent.EXTRA_PACKAGE_NAME)
+        } else {
+            intent.getStringExtra("locked_package")
+        }
         triggeringPackageNameFromIntent = intent.getStringExtra("triggering_package")
         if (lockedPackageNameFromIntent == null) {
             Log.e(TAG, "No locked_package name provided in intent. Finishing.")
@@ -319,6 +338,9 @@ class PasswordOverlayActivity: FragmentActivity() {
         }
         Log.d(TAG, "Overlay stopped; finishing lock overlay")
         AppLockManager.isLockScreenShown.set(false)
+        DetectionTraceRecorder.record {
+            TraceRecord.System(System.currentTimeMillis(), SystemAction.DISMISS)
+        }
         if (!isFinishing && !isDestroyed) {
             finish()
         }
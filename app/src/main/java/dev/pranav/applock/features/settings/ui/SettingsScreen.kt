@@ -40,16 +40,21 @@ import dev.pranav.applock.R
 import dev.pranav.applock.core.broadcast.DeviceAdmin
 import dev.pranav.applock.core.navigation.Screen
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
 import dev.pranav.applock.core.utils.hasUsagePermission
 import dev.pranav.applock.core.utils.isAccessibilityServiceEnabled
 import dev.pranav.applock.core.utils.openAccessibilitySettings
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.features.admin.AdminDisableActivity
+import dev.pranav.applock.services.BackendCalibrator
+import dev.pranav.applock.services.ProtectionClient
 import dev.pranav.applock.services.ShizukuAppLockService
 import dev.pranav.applock.services.UsageLockService
 import dev.pranav.applock.ui.components.DonateButton
 import dev.pranav.applock.ui.icons.*
+import dev.pranav.lockcore.BackendMeasurement
+import kotlinx.coroutines.launch
 import rikka.shizuku.Shizuku
 import rikka.shizuku.ShizukuProvider
 import kotlin.math.abs
@@ -90,6 +95,13 @@ fun SettingsScreen(
     var antiUninstallEnabled by remember { mutableStateOf(appLockRepository.isAntiUninstallEnabled()) }
     var disableHapticFeedback by remember { mutableStateOf(appLockRepository.shouldDisableHaptics()) }
     var loggingEnabled by remember { mutableStateOf(appLockRepository.isLoggingEnabled()) }
+    var perfTracingEnabled by remember { mutableStateOf(appLockRepository.isPerfTracingEnabled()) }
+    var shizukuTaskMonitorEnabled by remember {
+        mutableStateOf(appLockRepository.isShizukuTaskMonitorEnabled())
+    }
+    var suspensionLockEnabled by remember {
+        mutableStateOf(appLockRepository.isSuspensionLockEnabled())
+    }
 
     var showPermissionDialog by remember { mutableStateOf(false) }
     var showDeviceAdminDialog by remember { mutableStateOf(false) }
@@ -434,6 +446,46 @@ fun SettingsScreen(
                                 appLockRepository.setLoggingEnabled(isChecked)
                                 LogUtils.setLoggingEnabled(isChecked)
                             }
+                        ),
+                        ToggleSettingItem(
+                            icon = Icons.Default.Timeline,
+                            title = "Performance tracing",
+                            subtitle = "Add Perfetto trace markers around lock detection and overlays",
+                            checked = perfTracingEnabled,
+                            enabled = true,
+                            onCheckedChange = { isChecked ->
+                                perfTracingEnabled = isChecked
+                                appLockRepository.setPerfTracingEnabled(isChecked)
+                                PerfTrace.setEnabled(isChecked)
+                            }
+                        ),
+                        ToggleSettingItem(
+                            icon = Icons.Default.Memory,
+                            title = "Shizuku task monitor",
+                            subtitle = "Watch apps from a Shizuku process that survives app restarts",
+                            checked = shizukuTaskMonitorEnabled,
+                            enabled = true,
+                            onCheckedChange = { isChecked ->
+                                shizukuTaskMonitorEnabled = isChecked
+                                appLockRepository.setShizukuTaskMonitorEnabled(isChecked)
+                            }
+                        ),
+                        ToggleSettingItem(
+                            icon = Icons.Default.Block,
+                            title = "Suspend locked apps",
+                            subtitle = "Let Android block locked apps instead of watching for them. Needs Shizuku running as root",
+                            checked = suspensionLockEnabled,
+                            enabled = true,
+                            onCheckedChange = { isChecked ->
+                                suspensionLockEnabled = isChecked
+                                appLockRepository.setSuspensionLockEnabled(isChecked)
+                                if (appLockRepository.getBackendImplementation() == BackendImplementation.SHIZUKU) {
+                                    // Restart so the service switches lock mode
+                                    val intent = Intent(context, ShizukuAppLockService::class.java)
+                                    context.stopService(intent)
+                                    context.startService(intent)
+                                }
+                            }
                         )
                     )
                 )
@@ -757,20 +809,65 @@ fun BackendSelectionCard(
     shizukuPermissionLauncher: androidx.activity.result.ActivityResultLauncher<String>
 ) {
     var selectedBackend by remember { mutableStateOf(appLockRepository.getBackendImplementation()) }
+    var autoBackend by remember { mutableStateOf(appLockRepository.isAutoBackendEnabled()) }
+    var measurements by remember { mutableStateOf(appLockRepository.getBackendCalibration()) }
+    val calibrating by ProtectionClient.calibrating.collectAsState()
+    val scope = rememberCoroutineScope()
+
+    fun calibrate() {
+        scope.launch {
+            ProtectionClient.calibrate()?.let { selectedBackend = it }
+            measurements = appLockRepository.getBackendCalibration()
+        }
+    }
+
+    // Auto mode measures again after an OS update, once the app is in front to launch the test
+    LaunchedEffect(Unit) {
+        if (BackendCalibrator.isCalibrationStale(appLockRepository)) calibrate()
+    }
 
     Column {
         SectionTitle(text = stringResource(R.string.settings_screen_backend_implementation_title))
 
         Column {
+            val autoRows = if (autoBackend) 2 else 1
+            val listSize = BackendImplementation.entries.size + autoRows
+            SettingsCard(index = 0, listSize = listSize) {
+                ToggleSettingRow(
+                    icon = Icons.Default.Speed,
+                    title = "Choose automatically",
+                    subtitle = calibrating?.let { "Measuring ${getBackendDisplayName(it)}…" }
+                        ?: "Measure each backend on this device and use the fastest",
+                    checked = autoBackend,
+                    enabled = calibrating == null,
+                    onCheckedChange = { isChecked ->
+                        autoBackend = isChecked
+                        appLockRepository.setAutoBackendEnabled(isChecked)
+                        if (isChecked) calibrate()
+                    }
+                )
+            }
+            if (autoBackend) {
+                SettingsCard(index = 1, listSize = listSize) {
+                    ActionSettingRow(
+                        icon = Icons.Default.Refresh,
+                        title = "Measure again",
+                        subtitle = "Briefly opens a blank screen a few times per backend",
+                        onClick = { if (calibrating == null) calibrate() }
+                    )
+                }
+            }
             BackendImplementation.entries.forEachIndexed { index, backend ->
                 SettingsCard(
-                    index = index,
-                    listSize = BackendImplementation.entries.size
+                    index = index + autoRows,
+                    listSize = listSize
                 ) {
                     BackendSelectionItem(
                         backend = backend,
                         isSelected = selectedBackend == backend,
-                        onClick = {
+                        measurement = measurements.find { it.backend == backend.name },
+                        onClick = onClick@{
+                            if (calibrating != null) return@onClick
                             when (backend) {
                                 BackendImplementation.SHIZUKU -> {
                                     if (!Shizuku.pingBinder() || Shizuku.checkSelfPermission() == PackageManager.PERMISSION_DENIED) {
@@ -806,7 +903,7 @@ fun BackendSelectionCard(
                                             context.getString(R.string.settings_screen_usage_permission_toast),
                                             Toast.LENGTH_LONG
                                         ).show()
-                                        return@BackendSelectionItem
+                                        return@onClick
                                     }
                                     selectedBackend = backend
                                     appLockRepository.setBackendImplementation(BackendImplementation.USAGE_STATS)
@@ -817,12 +914,17 @@ fun BackendSelectionCard(
                                 BackendImplementation.ACCESSIBILITY -> {
                                     if (!context.isAccessibilityServiceEnabled()) {
                                         openAccessibilitySettings(context)
-                                        return@BackendSelectionItem
+                                        return@onClick
                                     }
                                     selectedBackend = backend
                                     appLockRepository.setBackendImplementation(BackendImplementation.ACCESSIBILITY)
                                 }
                             }
+                            // Picking a backend by hand overrides auto mode
+                            if (selectedBackend == backend && autoBackend) {
+                                autoBackend = false
+                                appLockRepository.setAutoBackendEnabled(false)
+                            }
                         }
                     )
                 }
@@ -836,6 +938,7 @@ fun BackendSelectionCard(
 fun BackendSelectionItem(
     backend: BackendImplementation,
     isSelected: Boolean,
+    measurement: BackendMeasurement?,
     onClick: () -> Unit
 ) {
     ListItem(
@@ -867,10 +970,19 @@ fun BackendSelectionItem(
             }
         },
         supportingContent = {
-            Text(
-                text = getBackendDescription(backend),
-                style = MaterialTheme.typography.bodySmall
-            )
+            Column {
+                Text(
+                    text = getBackendDescription(backend),
+                    style = MaterialTheme.typography.bodySmall
+                )
+                if (measurement != null) {
+                    Text(
+                        text = formatMeasurement(measurement),
+                        style = MaterialTheme.typography.labelSmall,
+                        color = MaterialTheme.colorScheme.secondary
+                    )
+                }
+            }
         },
         leadingContent = {
             Box(
@@ -912,6 +1024,15 @@ private fun getBackendDisplayName(backend: BackendImplementation): String {
     }
 }
 
+private fun formatMeasurement(measurement: BackendMeasurement): String {
+    val trials = measurement.latenciesMs.size
+    if (measurement.detected < trials) {
+        return "Missed ${trials - measurement.detected} of $trials test launches"
+    }
+    return "Notices apps in ${measurement.medianLatencyMs} ms · " +
+            "${measurement.cpuMsPerMinute} ms CPU and ${measurement.wakeupsPerMinute} wakeups per minute"
+}
+
 private fun getBackendDescription(backend: BackendImplementation): String {
     return when (backend) {
         BackendImplementation.ACCESSIBILITY -> "Standard method that works on most devices"
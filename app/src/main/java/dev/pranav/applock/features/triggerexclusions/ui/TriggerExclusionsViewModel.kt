@@ -5,6 +5,7 @@ import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import dev.pranav.applock.core.utils.PerfTrace
 import dev.pranav.applock.core.utils.appLockRepository
 import dev.pranav.applock.features.applist.domain.AppInfo
 import kotlinx.coroutines.Dispatchers
@@ -98,21 +99,23 @@ class TriggerExclusionsViewModel : ViewModel() {
         }
     }
 
-    private suspend fun getInstalledApps(context: Context): List<AppInfo> {
-        val packageManager = context.packageManager
-        val installedApps = packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
-
-        return installedApps
-            .filter { it.flags and ApplicationInfo.FLAG_SYSTEM == 0 || isImportantSystemApp(it) }
-            .map { appInfo ->
-                AppInfo(
-                    name = packageManager.getApplicationLabel(appInfo).toString(),
-                    packageName = appInfo.packageName,
-                    icon = packageManager.getApplicationIcon(appInfo)
-                )
-            }
-            .sortedBy { it.name.lowercase() }
-    }
+    private suspend fun getInstalledApps(context: Context): List<AppInfo> =
+        PerfTrace.section("AppLock:loadTriggerExclusionApps") {
+            val packageManager = context.packageManager
+            val installedApps =
+                packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
+
+            installedApps
+                .filter { it.flags and ApplicationInfo.FLAG_SYSTEM == 0 || isImportantSystemApp(it) }
+                .map { appInfo ->
+                    AppInfo(
+                        name = packageManager.getApplicationLabel(appInfo).toString(),
+                        packageName = appInfo.packageName,
+                        icon = packageManager.getApplicationIcon(appInfo)
+                    )
+                }
+                .sortedBy { it.name.lowercase() }
+        }
 
     private fun isImportantSystemApp(appInfo: ApplicationInfo): Boolean {
         val importantSystemApps = setOf(
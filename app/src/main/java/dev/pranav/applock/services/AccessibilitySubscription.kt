@@ -0,0 +1,99 @@
+package dev.pranav.applock.services
+
+import android.os.Build
+import android.view.accessibility.AccessibilityEvent
+
+/**
+ * The event types and packages [AppLockAccessibilityService] asks the system for.
+ *
+ * The system marshals every matching event into our process, so subscribing to all window and
+ * content changes of all apps costs IPC and wakeups for events the service throws away. Instead
+ * the subscription follows the policy:
+ *
+ * - [Mode.LOCKING]: window and content changes from the locked apps, the trigger exclusions,
+ *   the launchers, the settings / package installer apps and our own package, whose activities
+ *   [BackendCalibrator] times. While the next foreground app
+ *   matters regardless of its package (an app is temporarily unlocked, or a trigger-excluded app
+ *   is in front) the package filter is lifted until that app has been seen.
+ * - [Mode.ANTI_UNINSTALL]: window and content changes from the settings / package installer apps
+ *   only; the deactivation and device admin pages are often reached without a new window.
+ * - [Mode.IDLE]: window state changes from our own package, i.e. practically nothing.
+ *
+ * @property packageNames null for events from every package
+ */
+data class AccessibilitySubscription(val eventTypes: Int, val packageNames: Set<String>?) {
+
+    enum class Mode {
+        LOCKING,
+        ANTI_UNINSTALL,
+        IDLE
+    }
+
+    companion object {
+        val SETTINGS_PACKAGES = setOf(
+            "com.android.settings",
+            "com.android.packageinstaller",
+            "com.google.android.packageinstaller"
+        )
+
+        // Before Pie the recents screen belongs to System UI rather than the launcher
+        private const val LEGACY_RECENTS_PACKAGE = "com.android.systemui"
+
+        fun mode(
+            isProtectEnabled: Boolean,
+            isAccessibilityBackend: Boolean,
+            isAntiUninstallEnabled: Boolean
+        ): Mode = when {
+            isProtectEnabled && isAccessibilityBackend -> Mode.LOCKING
+            isAntiUninstallEnabled -> Mode.ANTI_UNINSTALL
+            else -> Mode.IDLE
+        }
+
+        /**
+         * The packages [Mode.LOCKING] needs events from while no package filter is lifted.
+         */
+        fun lockingPackages(
+            lockedApps: Set<String>,
+            triggerExcludedApps: Set<String>,
+            launcherPackages: Collection<String>,
+            ownPackage: String
+        ): Set<String> {
+            val packages = HashSet<String>(
+                lockedApps.size + triggerExcludedApps.size + launcherPackages.size + 5
+            )
+            packages.add(ownPackage)
+            packages.addAll(lockedApps)
+            packages.addAll(triggerExcludedApps)
+            packages.addAll(launcherPackages)
+            packages.addAll(SETTINGS_PACKAGES)
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                packages.add(LEGACY_RECENTS_PACKAGE)
+            }
+            return packages
+        }
+
+        fun create(
+            mode: Mode,
+            lockingPackages: Set<String>,
+            ownPackage: String,
+            allPackages: Boolean
+        ): AccessibilitySubscription = when (mode) {
+            Mode.LOCKING -> AccessibilitySubscription(
+                AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED or
+                        AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED,
+                if (allPackages) null else lockingPackages
+            )
+
+            Mode.ANTI_UNINSTALL -> AccessibilitySubscription(
+                AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED or
+                        AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED,
+                SETTINGS_PACKAGES
+            )
+
+            Mode.IDLE -> AccessibilitySubscription(
+                AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED,
+                setOf(ownPackage)
+            )
+        }
+    }
+}
@@ -5,38 +5,81 @@ import android.accessibilityservice.AccessibilityServiceInfo
 import android.annotation.SuppressLint
 import android.app.admin.DevicePolicyManager
 import android.content.ComponentName
-import android.content.Context
 import android.content.Intent
-import android.content.pm.PackageManager
-import android.content.pm.ResolveInfo
+import android.content.SharedPreferences
 import android.os.Handler
 import android.util.Log
 import android.view.accessibility.AccessibilityEvent
 import android.view.accessibility.AccessibilityNodeInfo
-import android.view.inputmethod.InputMethodManager
 import android.widget.Toast
 import androidx.core.content.getSystemService
 import dev.pranav.applock.core.broadcast.DeviceAdmin
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.FlightRecorder
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
+import dev.pranav.applock.core.utils.StartupTrace
 import dev.pranav.applock.core.utils.appLockRepository
 import dev.pranav.applock.core.utils.enableAccessibilityServiceWithShizuku
+import dev.pranav.applock.core.utils.ensureProtectionInitialized
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.features.lockscreen.ui.LockScreenOverlayManager
 import dev.pranav.applock.services.AppLockConstants.ACCESSIBILITY_SETTINGS_CLASSES
-import dev.pranav.applock.services.AppLockConstants.EXCLUDED_APPS
+import dev.pranav.applock.shizuku.ShizukuBootstrap
+import dev.pranav.lockcore.ForegroundEvent
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.Transition
+import dev.pranav.lockcore.detection.AccessibilityTransitionDetector
+import dev.pranav.lockcore.detection.ContentChangeCoalescer
+import dev.pranav.lockcore.detection.WindowTransition
+import dev.pranav.lockcore.replay.SystemAction
+import dev.pranav.lockcore.replay.TraceRecord
 import rikka.shizuku.Shizuku
+import java.io.FileDescriptor
+import java.io.PrintWriter
 
 @SuppressLint("AccessibilityPolicy")
 class AppLockAccessibilityService : AccessibilityService() {
     private val appLockRepository: AppLockRepository by lazy { applicationContext.appLockRepository() }
-    private val keyboardPackages: List<String> by lazy { getKeyboardPackageNames() }
 
-    private var recentsOpen = false
-    private var lastForegroundPackage = ""
+    private val transitionDetector = AccessibilityTransitionDetector()
+    private val contentChangeCoalescer = ContentChangeCoalescer()
+    private val exclusionsChangedListener: () -> Unit = {
+        if (currentSubscription != null) refreshEventSubscription()
+    }
+    private val foregroundMachine = ForegroundStateMachine(
+        sessions = AppLockManager.unlockSessions,
+        ownPackage = APP_PACKAGE_PREFIX,
+        isExcluded = { SystemExclusionRegistry.snapshot.isExcluded(it) },
+        isLocked = { it in appLockRepository.getLockedApps() },
+        isTriggerExcluded = { it in appLockRepository.getTriggerExcludedApps() },
+        isLockScreenShown = {
+            AppLockManager.isLockScreenShown.get() ||
+                    AppLockManager.currentBiometricState == BiometricState.AUTH_STARTED
+        }
+    )
+
+    private val eventBus = ForegroundEventBus(BackendImplementation.ACCESSIBILITY)
+
+    private var subscriptionMode = AccessibilitySubscription.Mode.IDLE
+    private var lockingPackages: Set<String> = emptySet()
+    private var triggerExcludedApps: Set<String> = emptySet()
+    private var currentSubscription: AccessibilitySubscription? = null
+
+    // Bumped whenever the policy above is re-read; with the package filter state, the inputs the
+    // current subscription was built from
+    private var policyVersion = 0
+    private var subscribedPolicyVersion = -1
+    private var subscribedAllPackages = false
+
+    // Held in a field: shared preferences only keep weak references to their listeners
+    private val policyChangeListener =
+        SharedPreferences.OnSharedPreferenceChangeListener { _, _ -> refreshEventSubscription() }
 
     private var overlayManager: LockScreenOverlayManager? = null
     private lateinit var mainHandler: Handler
+    private val actionSequencer = GlobalActionSequencer(::performGlobalAction)
 
     enum class BiometricState {
         IDLE, AUTH_STARTED
@@ -47,27 +90,47 @@ class AppLockAccessibilityService : AccessibilityService() {
         private const val DEVICE_ADMIN_SETTINGS_PACKAGE = "com.android.settings"
         private const val APP_PACKAGE_PREFIX = "dev.pranav.applock"
 
+        // Caps on waiting for the window a global action opens; the delays used before
+        private const val EXIT_HOME_WAIT_MS = 200L
+        private const val BLOCK_HOME_WAIT_MS = 100L
+
+        // Settings fires several events per screen, block each screen only once
+        private const val BLOCK_DEDUPE_WINDOW_MS = 1_000L
+
         @Volatile
         var isServiceRunning = false
     }
 
-    private val screenStateReceiver = object: android.content.BroadcastReceiver() {
-        override fun onReceive(context: Context?, intent: Intent?) {
+    private val deviceStateListener = object : DeviceStateCache.Listener {
+        override fun onUserPresent() {
+            val time = System.currentTimeMillis()
+            DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.USER_PRESENT) }
+            foregroundMachine.onEvent(ForegroundEvent.USER_PRESENT, time = time)
+        }
+
+        override fun onScreenOff() {
             try {
-                if (intent?.action == Intent.ACTION_SCREEN_OFF) {
-                    LogUtils.d(TAG, "Screen off detected. Resetting AppLock state.")
-                    AppLockManager.isLockScreenShown.set(false)
-                    AppLockManager.clearTemporarilyUnlockedApp()
-                    AppLockManager.appUnlockTimes.clear()
-                }
+                LogUtils.d(TAG, "Screen off detected. Resetting AppLock state.")
+                val time = System.currentTimeMillis()
+                DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.SCREEN_OFF) }
+                recordDecision(FlightRecorder.Decision.RESET, FlightRecorder.Reason.SCREEN_OFF, "")
+                AppLockManager.isLockScreenShown.set(false)
+                eventBus.publish(
+                    foregroundMachine.onEvent(ForegroundEvent.SCREEN_OFF, time = time),
+                    "",
+                    foregroundMachine,
+                    time
+                )
+                updateEventSubscription()
             } catch (e: Exception) {
-                logError("Error in screenStateReceiver", e)
+                logError("Error handling screen off", e)
             }
         }
     }
 
     override fun onCreate() {
         super.onCreate()
+        ensureProtectionInitialized()
         try {
             isServiceRunning = true
             AppLockManager.currentBiometricState = BiometricState.IDLE
@@ -77,12 +140,8 @@ class AppLockAccessibilityService : AccessibilityService() {
             mainHandler = Handler(mainLooper)
 
             overlayManager = LockScreenOverlayManager(this)
-
-            val filter = android.content.IntentFilter().apply {
-                addAction(Intent.ACTION_SCREEN_OFF)
-                addAction(Intent.ACTION_USER_PRESENT)
-            }
-            registerReceiver(screenStateReceiver, filter)
+            SystemExclusionRegistry.addListener(exclusionsChangedListener)
+            DeviceStateCache.addListener(deviceStateListener)
         } catch (e: Exception) {
             logError("Error in onCreate", e)
         }
@@ -94,16 +153,24 @@ class AppLockAccessibilityService : AccessibilityService() {
         super.onServiceConnected()
         try {
             serviceInfo = serviceInfo.apply {
-                eventTypes = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED or
-                        AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED or
-                        AccessibilityEvent.TYPE_WINDOWS_CHANGED
                 feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC
-                packageNames = null
-                flags += AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
+                flags = flags or AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
             }
 
             Log.d(TAG, "Accessibility service connected")
+            StartupTrace.onProtected(BackendImplementation.ACCESSIBILITY)
             appLockRepository.setActiveBackend(BackendImplementation.ACCESSIBILITY)
+            currentSubscription = null
+            refreshEventSubscription()
+            appLockRepository.registerOnChangeListener(policyChangeListener)
+            eventBus.start { showLockScreenOverlay(it.packageName, it.triggeringPackage) }
+            DetectionTraceRecorder.startSession(
+                backend = BackendImplementation.ACCESSIBILITY,
+                repository = appLockRepository,
+                ownPackage = APP_PACKAGE_PREFIX,
+                excludedApps = SystemExclusionRegistry.snapshot.excludedPackages,
+                launcherPackage = SystemExclusionRegistry.snapshot.systemLauncher
+            )
         } catch (e: Exception) {
             logError("Error in onServiceConnected", e)
         }
@@ -111,19 +178,49 @@ class AppLockAccessibilityService : AccessibilityService() {
 
     override fun onAccessibilityEvent(event: AccessibilityEvent) {
         try {
-            handleAccessibilityEvent(event)
+            BackendCalibrator.onWakeup(BackendImplementation.ACCESSIBILITY)
+            if (event.eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+                actionSequencer.onWindowStateChanged()
+                BackendCalibrator.onForegroundObserved(
+                    BackendImplementation.ACCESSIBILITY,
+                    event.className
+                )
+            }
+            DetectionTraceRecorder.record {
+                TraceRecord.AccessibilityEvent(
+                    System.currentTimeMillis(),
+                    event.eventType,
+                    event.contentChangeTypes,
+                    event.packageName?.toString(),
+                    event.className?.toString(),
+                    event.text.toString()
+                )
+            }
+            // Before the coalescer: a deactivation page must be blocked even when it only shows
+            // up in content changes that would be coalesced away
+            if (appLockRepository.isAntiUninstallEnabled() &&
+                event.packageName == DEVICE_ADMIN_SETTINGS_PACKAGE
+            ) {
+                checkForDeviceAdminDeactivation(event)
+            }
+            if (!contentChangeCoalescer.shouldProcess(
+                    event.eventType,
+                    event.packageName,
+                    event.contentChangeTypes,
+                    event.eventTime
+                )
+            ) return
+
+            PerfTrace.section("AppLock:a11yEvent") {
+                handleAccessibilityEvent(event)
+            }
+            updateEventSubscription()
         } catch (e: Exception) {
             logError("Unhandled error in onAccessibilityEvent", e)
         }
     }
 
     private fun handleAccessibilityEvent(event: AccessibilityEvent) {
-        if (appLockRepository.isAntiUninstallEnabled() &&
-            event.packageName == DEVICE_ADMIN_SETTINGS_PACKAGE
-        ) {
-            checkForDeviceAdminDeactivation(event)
-        }
-
         // Early return if protection is disabled or service is not running
         if (!appLockRepository.isProtectEnabled() || !isServiceRunning) {
             return
@@ -132,7 +229,7 @@ class AppLockAccessibilityService : AccessibilityService() {
         // Handle window state changes
         if (event.eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED || event.eventType == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
             try {
-                handleWindowStateChanged(event)
+                if (handleWindowStateChanged(event)) return
             } catch (e: Exception) {
                 logError("Error handling window state change", e)
                 return
@@ -142,7 +239,7 @@ class AppLockAccessibilityService : AccessibilityService() {
         }
 
         // Skip processing if recents are open
-        if (recentsOpen) {
+        if (transitionDetector.isRecentsOpen) {
             LogUtils.d(TAG, "Recents opened, ignoring accessibility event")
             return
         }
@@ -150,8 +247,8 @@ class AppLockAccessibilityService : AccessibilityService() {
         // Extract and validate package name
         val packageName = event.packageName?.toString() ?: return
 
-        // Skip if device is locked or app is excluded
-        if (!isValidPackageForLocking(packageName)) {
+        // Check if accessibility should handle locking
+        if (!shouldAccessibilityHandleLocking()) {
             return
         }
 
@@ -162,229 +259,207 @@ class AppLockAccessibilityService : AccessibilityService() {
         }
     }
 
-    private fun handleWindowStateChanged(event: AccessibilityEvent) {
-        val isRecentlyOpened = isRecentlyOpened(event)
-        val isHomeScreen = isHomeScreen(event)
+    /**
+     * Feeds home and recents to the state machine. Returns true if the event was one of them, so
+     * it is not also an app coming to the foreground.
+     */
+    private fun handleWindowStateChanged(event: AccessibilityEvent): Boolean {
+        val transition = transitionDetector.onWindowEvent(
+            packageName = event.packageName,
+            className = event.className,
+            contentChangeTypes = event.contentChangeTypes,
+            text = event.text,
+            launcherPackage = SystemExclusionRegistry.snapshot.systemLauncher
+        )
 
-        when {
-            isRecentlyOpened -> {
+        when (transition) {
+            WindowTransition.RECENTS_OPENED -> {
                 LogUtils.d(TAG, "Entering recents")
-                recentsOpen = true
+                recordTransition(FlightRecorder.Reason.RECENTS, event)
+                val time = System.currentTimeMillis()
+                eventBus.publish(
+                    foregroundMachine.onEvent(ForegroundEvent.RECENTS, time = time),
+                    "",
+                    foregroundMachine,
+                    time
+                )
+                return true
             }
 
-            isHomeScreenTransition(event) && recentsOpen -> {
+            WindowTransition.HOME_FROM_RECENTS -> {
                 LogUtils.d(TAG, "Transitioning to home screen from recents")
-                recentsOpen = false
-                clearTemporarilyUnlockedAppIfNeeded()
+                onHome(event)
+                return true
             }
 
-            isHomeScreen -> {
+            WindowTransition.HOME -> {
                 LogUtils.d(TAG, "On home screen")
-                recentsOpen = false
-                clearTemporarilyUnlockedAppIfNeeded()
-            }
-
-            isAppSwitchedFromRecents(event) -> {
-                LogUtils.d(TAG, "App switched from recents")
-                recentsOpen = false
-                clearTemporarilyUnlockedAppIfNeeded(event.packageName?.toString())
+                recordTransition(FlightRecorder.Reason.HOME, event)
+                onHome(event)
+                return true
             }
-        }
-    }
-
-    @SuppressLint("InlinedApi")
-    private fun isRecentlyOpened(event: AccessibilityEvent): Boolean {
-        return (event.packageName == getSystemDefaultLauncherPackageName() &&
-                event.contentChangeTypes == AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_APPEARED) ||
-                (event.text.toString().lowercase().contains("recent apps"))
-    }
-
-    private fun isHomeScreen(event: AccessibilityEvent): Boolean {
-        return event.packageName == getSystemDefaultLauncherPackageName() &&
-                event.className == "com.android.launcher3.uioverrides.QuickstepLauncher" &&
-                event.text.toString().lowercase().contains("home screen")
-    }
-
-    @SuppressLint("InlinedApi")
-    private fun isHomeScreenTransition(event: AccessibilityEvent): Boolean {
-        return event.contentChangeTypes == AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_DISAPPEARED &&
-                event.packageName == getSystemDefaultLauncherPackageName()
-    }
-
-    private fun isAppSwitchedFromRecents(event: AccessibilityEvent): Boolean {
-        return event.packageName != getSystemDefaultLauncherPackageName() && recentsOpen
-    }
-
-    private fun clearTemporarilyUnlockedAppIfNeeded(newPackage: String? = null) {
-        val shouldClear = newPackage == null ||
-                (newPackage != AppLockManager.temporarilyUnlockedApp &&
-                        newPackage !in appLockRepository.getTriggerExcludedApps())
 
-        if (shouldClear) {
-            LogUtils.d(TAG, "Clearing temporarily unlocked app")
-            AppLockManager.clearTemporarilyUnlockedApp()
+            WindowTransition.SWITCHED_FROM_RECENTS -> LogUtils.d(TAG, "App switched from recents")
+            WindowTransition.NONE -> Unit
         }
+        return false
     }
 
-    private fun isValidPackageForLocking(packageName: String): Boolean {
-        // Check if device is locked
-        if (applicationContext.isDeviceLocked()) {
-            AppLockManager.appUnlockTimes.clear()
-            AppLockManager.clearTemporarilyUnlockedApp()
-            return false
-        }
-
-        // Check if accessibility should handle locking
-        if (!shouldAccessibilityHandleLocking()) {
-            return false
-        }
-
-        // Skip excluded packages
-        if (packageName == APP_PACKAGE_PREFIX ||
-            packageName in keyboardPackages ||
-            packageName in EXCLUDED_APPS
-        ) {
-            return false
-        }
-
-        // Skip known recents classes
-        return true
+    private fun onHome(event: AccessibilityEvent) {
+        val launcher = event.packageName?.toString().orEmpty()
+        val time = System.currentTimeMillis()
+        eventBus.publish(
+            foregroundMachine.onEvent(ForegroundEvent.HOME, launcher, time),
+            launcher,
+            foregroundMachine,
+            time
+        )
     }
 
     private fun processPackageLocking(packageName: String) {
-        val currentForegroundPackage = packageName
-        val triggeringPackage = lastForegroundPackage
-        lastForegroundPackage = currentForegroundPackage
-
-        // Skip if triggering package is excluded
-        if (triggeringPackage in appLockRepository.getTriggerExcludedApps()) {
-            return
-        }
-
-        // Fix for "Lock Immediately" not working when switching between apps
-        val unlockedApp = AppLockManager.temporarilyUnlockedApp
-        if (unlockedApp.isNotEmpty() &&
-            unlockedApp != currentForegroundPackage &&
-            currentForegroundPackage !in appLockRepository.getTriggerExcludedApps()
-        ) {
-            LogUtils.d(
-                TAG,
-                "Switched from unlocked app $unlockedApp to $currentForegroundPackage."
-            )
-            AppLockManager.setRecentlyLeftApp(unlockedApp)
-            AppLockManager.clearTemporarilyUnlockedApp()
-        }
-
-        checkAndLockApp(currentForegroundPackage, triggeringPackage, System.currentTimeMillis())
-    }
-
-    private fun shouldAccessibilityHandleLocking(): Boolean {
-        return appLockRepository.getBackendImplementation() == BackendImplementation.ACCESSIBILITY
-    }
-
-    private fun checkAndLockApp(packageName: String, triggeringPackage: String, currentTime: Long) {
-        // Return early if lock screen is already shown or biometric auth is in progress
-        if (AppLockManager.currentBiometricState == BiometricState.AUTH_STARTED) {
-            return
-        }
-
-        // Return if package is not locked
-        if (packageName !in appLockRepository.getLockedApps()) {
-            return
-        }
-
-        // Return if app is temporarily unlocked
-        if (AppLockManager.isAppTemporarilyUnlocked(packageName)) {
-            return
-        }
-
-        AppLockManager.clearTemporarilyUnlockedApp()
-
-        val unlockDurationMinutes = appLockRepository.getUnlockTimeDuration()
-        val unlockTimestamp = AppLockManager.appUnlockTimes[packageName] ?: 0L
-
-        LogUtils.d(
-            TAG,
-            "checkAndLockApp: pkg=$packageName, duration=$unlockDurationMinutes min, unlockTime=$unlockTimestamp, currentTime=$currentTime, isLockScreenShown=${AppLockManager.isLockScreenShown.get()}"
+        val machine = foregroundMachine
+        val time = System.currentTimeMillis()
+        // The keyguard can come and go without the broadcasts, e.g. within the lock delay
+        machine.syncDeviceLocked(DeviceStateCache.isKeyguardLocked, time)
+
+        val previousForeground = machine.foregroundPackage
+        val transition = PerfTrace.section("AppLock:decide") {
+            machine.onEvent(ForegroundEvent.APP_FOREGROUND, packageName, time)
+        }
+        FlightRecorder.recordTransition(
+            BackendImplementation.ACCESSIBILITY,
+            machine,
+            transition,
+            packageName,
+            previousForeground,
+            time
         )
+        eventBus.publish(transition, packageName, machine, time)
 
-        if (unlockDurationMinutes > 0 && unlockTimestamp > 0) {
-            if (unlockDurationMinutes >= 10_000) {
-                return
-            }
-
-            val durationMillis = unlockDurationMinutes.toLong() * 60L * 1000L
-
-            val elapsedMillis = currentTime - unlockTimestamp
-
-            LogUtils.d(
-                TAG,
-                "Grace period check: elapsed=${elapsedMillis}ms (${elapsedMillis / 1000}s), duration=${durationMillis}ms (${durationMillis / 1000}s)"
-            )
-
-            if (elapsedMillis < durationMillis) {
-                return
+        when (transition) {
+            Transition.LOCK -> {
+                LogUtils.d(TAG, "Locked app: $packageName. Showing overlay.")
+                DetectionTraceRecorder.record { TraceRecord.ExpectLock(time, packageName) }
             }
 
-            LogUtils.d(TAG, "Unlock grace period expired for $packageName. Clearing timestamp.")
-            AppLockManager.appUnlockTimes.remove(packageName)
-            AppLockManager.clearTemporarilyUnlockedApp()
-        }
+            Transition.LOCK_SCREEN_SHOWN ->
+                LogUtils.d(TAG, "Lock screen already shown or biometric auth in progress, skipping")
 
-        if (AppLockManager.isLockScreenShown.get() ||
-            AppLockManager.currentBiometricState == BiometricState.AUTH_STARTED
-        ) {
-            LogUtils.d(TAG, "Lock screen already shown or biometric auth in progress, skipping")
-            return
+            else -> Unit
         }
+    }
 
-        showLockScreenOverlay(packageName, triggeringPackage)
+    private fun shouldAccessibilityHandleLocking(): Boolean {
+        return appLockRepository.getBackendImplementation() == BackendImplementation.ACCESSIBILITY
     }
 
     private fun showLockScreenOverlay(packageName: String, triggeringPackage: String) {
-        if (AppLockManager.isLockScreenShown.get()) return
+        if (!AppLockManager.isLockScreenShown.compareAndSet(false, true)) return
 
         LogUtils.d(TAG, "Showing overlay for: $packageName")
+        val lockAttemptId = PerfTrace.beginLockAttempt("accessibility", packageName)
 
         mainHandler.post {
-            AppLockManager.isLockScreenShown.set(true)
-            overlayManager?.showOverlay(
+            val overlayManager = overlayManager
+            if (overlayManager == null) {
+                // Disconnected before the post ran; nothing is shown, so nothing will clear it
+                AppLockManager.isLockScreenShown.set(false)
+                PerfTrace.endLockAttempt(lockAttemptId)
+                return@post
+            }
+            overlayManager.showOverlay(
                 lockedPackageName = packageName,
                 triggeringPackageName = triggeringPackage,
+                lockAttemptId = lockAttemptId,
                 onUnlock = {
                     AppLockManager.isLockScreenShown.set(false)
                     AppLockManager.unlockApp(packageName)
+                    updateEventSubscription()
                 },
                 onExit = {
-                    performGlobalAction(GLOBAL_ACTION_HOME)
-                    Thread.sleep(200)
-                    AppLockManager.isLockScreenShown.set(false)
+                    actionSequencer.run(
+                        "exit",
+                        listOf(GlobalActionSequencer.Step(GLOBAL_ACTION_HOME, EXIT_HOME_WAIT_MS))
+                    ) {
+                        AppLockManager.isLockScreenShown.set(false)
+                        DetectionTraceRecorder.record {
+                            TraceRecord.System(System.currentTimeMillis(), SystemAction.DISMISS)
+                        }
+                    }
                 }
             )
         }
     }
 
-    //private fun showLockScreenOverlay(packageName: String, triggeringPackage: String) {
-    //    LogUtils.d(TAG, "Locked app detected: $packageName. Showing overlay.")
-    //    AppLockManager.isLockScreenShown.set(true)
-    //
-    //    val intent = Intent(this, PasswordOverlayActivity::class.java).apply {
-    //        flags = Intent.FLAG_ACTIVITY_NEW_TASK or
-    //                Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS or
-    //                Intent.FLAG_ACTIVITY_NO_ANIMATION or
-    //                Intent.FLAG_FROM_BACKGROUND or
-    //                Intent.FLAG_ACTIVITY_REORDER_TO_FRONT
-    //        putExtra("locked_package", packageName)
-    //        putExtra("triggering_package", triggeringPackage)
-    //    }
-    //
-    //    try {
-    //        startActivity(intent)
-    //    } catch (e: Exception) {
-    //        logError("Failed to start password overlay", e)
-    //        AppLockManager.isLockScreenShown.set(false)
-    //    }
-    //}
+    /**
+     * Re-reads the policy the event subscription depends on, then pushes the subscription if it
+     * changed. Called on connect and whenever the locked apps or settings change.
+     */
+    private fun refreshEventSubscription() {
+        try {
+            subscriptionMode = AccessibilitySubscription.mode(
+                isProtectEnabled = appLockRepository.isProtectEnabled(),
+                isAccessibilityBackend = shouldAccessibilityHandleLocking(),
+                isAntiUninstallEnabled = appLockRepository.isAntiUninstallEnabled()
+            )
+            triggerExcludedApps = appLockRepository.getTriggerExcludedApps()
+            lockingPackages = if (subscriptionMode == AccessibilitySubscription.Mode.LOCKING) {
+                AccessibilitySubscription.lockingPackages(
+                    lockedApps = appLockRepository.getLockedApps(),
+                    triggerExcludedApps = triggerExcludedApps,
+                    launcherPackages = SystemExclusionRegistry.snapshot.launcherPackages,
+                    ownPackage = APP_PACKAGE_PREFIX
+                )
+            } else {
+                emptySet()
+            }
+        } catch (e: Exception) {
+            logError("Error reading event subscription policy", e)
+        }
+        policyVersion++
+        updateEventSubscription()
+    }
+
+    /**
+     * Pushes the event subscription for the current policy and foreground state if it differs
+     * from the one in effect. Cheap enough to run after every event: nothing is built unless the
+     * policy was re-read or the package filter was lifted or restored since the last call.
+     */
+    private fun updateEventSubscription() {
+        // Leaving a temporarily unlocked or trigger-excluded app, or an app opened from one, has
+        // to be seen whatever the next package is, so the package filter is lifted until then
+        val allPackages = AppLockManager.temporarilyUnlockedApp.isNotEmpty() ||
+                foregroundMachine.foregroundPackage in triggerExcludedApps ||
+                foregroundMachine.triggeringPackage in triggerExcludedApps
+        if (policyVersion == subscribedPolicyVersion && allPackages == subscribedAllPackages) return
+        subscribedPolicyVersion = policyVersion
+        subscribedAllPackages = allPackages
+
+        val subscription = AccessibilitySubscription.create(
+            subscriptionMode,
+            lockingPackages,
+            APP_PACKAGE_PREFIX,
+            allPackages
+        )
+        if (subscription == currentSubscription) return
+
+        try {
+            serviceInfo = serviceInfo.apply {
+                eventTypes = subscription.eventTypes
+                packageNames = subscription.packageNames?.toTypedArray()
+            }
+            currentSubscription = subscription
+            LogUtils.d(
+                TAG,
+                "Event subscription: mode=$subscriptionMode, " +
+                        "packages=${subscription.packageNames?.size ?: "all"}"
+            )
+        } catch (e: Exception) {
+            logError("Error updating event subscription", e)
+            // Try again on the next event
+            subscribedPolicyVersion = -1
+        }
+    }
 
     private fun checkForDeviceAdminDeactivation(event: AccessibilityEvent) {
         Log.d(TAG, "Checking for device admin deactivation for event: $event")
@@ -425,9 +500,15 @@ class AppLockAccessibilityService : AccessibilityService() {
     @SuppressLint("InlinedApi")
     private fun blockDeactivationAttempt() {
         try {
-            performGlobalAction(GLOBAL_ACTION_BACK)
-            performGlobalAction(GLOBAL_ACTION_HOME)
-            performGlobalAction(GLOBAL_ACTION_LOCK_SCREEN)
+            actionSequencer.run(
+                "block_deactivation",
+                listOf(
+                    GlobalActionSequencer.Step(GLOBAL_ACTION_BACK),
+                    GlobalActionSequencer.Step(GLOBAL_ACTION_HOME),
+                    GlobalActionSequencer.Step(GLOBAL_ACTION_LOCK_SCREEN)
+                ),
+                BLOCK_DEDUPE_WINDOW_MS
+            )
         } catch (e: Exception) {
             logError("Error blocking deactivation attempt", e)
         }
@@ -451,11 +532,18 @@ class AppLockAccessibilityService : AccessibilityService() {
             val component = ComponentName(this, DeviceAdmin::class.java)
 
             if (dpm?.isAdminActive(component) == true) {
-                performGlobalAction(GLOBAL_ACTION_BACK)
-                performGlobalAction(GLOBAL_ACTION_BACK)
-                performGlobalAction(GLOBAL_ACTION_HOME)
-                Thread.sleep(100)
-                performGlobalAction(GLOBAL_ACTION_LOCK_SCREEN)
+                val started = actionSequencer.run(
+                    "block_device_admin",
+                    listOf(
+                        GlobalActionSequencer.Step(GLOBAL_ACTION_BACK),
+                        GlobalActionSequencer.Step(GLOBAL_ACTION_BACK),
+                        GlobalActionSequencer.Step(GLOBAL_ACTION_HOME, BLOCK_HOME_WAIT_MS),
+                        GlobalActionSequencer.Step(GLOBAL_ACTION_LOCK_SCREEN)
+                    ),
+                    BLOCK_DEDUPE_WINDOW_MS
+                )
+                if (!started) return
+
                 Toast.makeText(
                     this,
                     "Disable anti-uninstall from AppLock settings to remove this restriction.",
@@ -468,6 +556,34 @@ class AppLockAccessibilityService : AccessibilityService() {
         }
     }
 
+    private fun recordTransition(reason: FlightRecorder.Reason, event: AccessibilityEvent) {
+        recordDecision(
+            FlightRecorder.Decision.FOREGROUND,
+            reason,
+            event.packageName?.toString().orEmpty()
+        )
+    }
+
+    private fun recordDecision(
+        decision: FlightRecorder.Decision,
+        reason: FlightRecorder.Reason,
+        packageName: String,
+        triggeringPackage: String = ""
+    ) {
+        FlightRecorder.record(
+            BackendImplementation.ACCESSIBILITY,
+            decision,
+            reason,
+            packageName,
+            triggeringPackage
+        )
+    }
+
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        FlightRecorder.dump(writer)
+        ForegroundEventBus.dump(writer)
+    }
+
     private fun findNodeWithTextContaining(
         node: AccessibilityNodeInfo,
         text: String
@@ -489,47 +605,6 @@ class AppLockAccessibilityService : AccessibilityService() {
         }
     }
 
-    private fun getKeyboardPackageNames(): List<String> {
-        return try {
-            getSystemService<InputMethodManager>()?.enabledInputMethodList?.map { it.packageName }
-                ?: emptyList()
-        } catch (e: Exception) {
-            logError("Error getting keyboard package names", e)
-            emptyList()
-        }
-    }
-
-    fun getSystemDefaultLauncherPackageName(): String {
-        return try {
-            val packageManager = packageManager
-            val homeIntent = Intent(Intent.ACTION_MAIN).apply {
-                addCategory(Intent.CATEGORY_HOME)
-            }
-
-            val resolveInfoList: List<ResolveInfo> = packageManager.queryIntentActivities(
-                homeIntent,
-                PackageManager.MATCH_DEFAULT_ONLY
-            )
-
-            val systemLauncher = resolveInfoList.find { resolveInfo ->
-                val isSystemApp = (resolveInfo.activityInfo.applicationInfo.flags and
-                        android.content.pm.ApplicationInfo.FLAG_SYSTEM) != 0
-                val isOurApp = resolveInfo.activityInfo.packageName == packageName
-
-                isSystemApp && !isOurApp
-            }
-
-            systemLauncher?.activityInfo?.packageName?.also {
-                if (it.isEmpty()) {
-                    Log.w(TAG, "Could not find a clear system launcher package name.")
-                }
-            } ?: ""
-        } catch (e: Exception) {
-            logError("Error getting system default launcher package", e)
-            ""
-        }
-    }
-
     private fun startPrimaryBackendService() {
         try {
             AppLockManager.stopAllOtherServices(this, AppLockAccessibilityService::class.java)
@@ -567,6 +642,7 @@ class AppLockAccessibilityService : AccessibilityService() {
             Log.d(TAG, "Accessibility service unbound")
             isServiceRunning = false
 
+            ShizukuBootstrap.ensureInitialized(this, isProviderProcess = true)
             if (Shizuku.pingBinder() && appLockRepository.isAntiUninstallEnabled()) {
                 enableAccessibilityServiceWithShizuku(ComponentName(packageName, javaClass.name))
             }
@@ -585,13 +661,11 @@ class AppLockAccessibilityService : AccessibilityService() {
             LogUtils.d(TAG, "Accessibility service destroyed")
 
             overlayManager?.removeOverlay()
-
-            try {
-                unregisterReceiver(screenStateReceiver)
-            } catch (_: IllegalArgumentException) {
-                // Ignore if not registered
-                Log.w(TAG, "Receiver not registered or already unregistered")
-            }
+            eventBus.stop()
+            actionSequencer.cancel()
+            SystemExclusionRegistry.removeListener(exclusionsChangedListener)
+            appLockRepository.unregisterOnChangeListener(policyChangeListener)
+            DeviceStateCache.removeListener(deviceStateListener)
 
             AppLockManager.isLockScreenShown.set(false)
         } catch (e: Exception) {
@@ -1,21 +1,21 @@
 package dev.pranav.applock.services
 
-import android.app.ActivityManager
-import android.app.KeyguardManager
 import android.content.Context
 import android.content.Intent
+import android.content.SharedPreferences
+import android.os.Handler
+import android.os.Looper
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.FlightRecorder
 import dev.pranav.applock.core.utils.LogUtils
-import java.util.concurrent.ConcurrentHashMap
+import dev.pranav.applock.data.repository.AppLockRepository
+import dev.pranav.applock.shizuku.PackageSuspensionLock
+import dev.pranav.lockcore.UnlockSessionTable
+import dev.pranav.lockcore.replay.SystemAction
+import dev.pranav.lockcore.replay.TraceRecord
 import java.util.concurrent.atomic.AtomicBoolean
 
 object AppLockConstants {
-    val KNOWN_RECENTS_CLASSES = setOf(
-        "com.android.systemui.recents.RecentsActivity",
-        "com.android.quickstep.RecentsActivity",
-        "com.android.systemui.recents.RecentsView",
-        "com.android.systemui.recents.RecentsPanelView",
-    )
-
     val EXCLUDED_APPS = setOf(
         "com.android.systemui",
         "com.android.intentresolver",
@@ -36,68 +36,76 @@ object AppLockConstants {
 
 }
 
-fun Context.isDeviceLocked(): Boolean {
-    val keyguardManager = getSystemService(KeyguardManager::class.java)
-    return keyguardManager?.isKeyguardLocked ?: false
-}
-
-@Suppress("DEPRECATION")
-fun Context.isServiceRunning(serviceClass: Class<*>): Boolean {
-    val manager = getSystemService(ActivityManager::class.java) ?: return false
-    return manager.getRunningServices(Int.MAX_VALUE)
-        .any { serviceClass.name == it.service.className }
-}
-
 object AppLockManager {
     private const val TAG = "AppLockManager"
 
-    var temporarilyUnlockedApp: String = ""
-    val appUnlockTimes = ConcurrentHashMap<String, Long>()
+    /**
+     * Unlock sessions of every app. Backends on any thread read it lock-free; the timing wheel
+     * that expires sessions is turned on the main thread while any are pending.
+     */
+    val unlockSessions = UnlockSessionTable()
     val isLockScreenShown = AtomicBoolean(false)
     var currentBiometricState: Any? = null
 
-    // Grace period tracking
-    private var recentlyLeftApp: String = ""
-    private var recentlyLeftTime: Long = 0L
-    private const val GRACE_PERIOD_MS = 300L
-
-    fun setRecentlyLeftApp(packageName: String) {
-        recentlyLeftApp = packageName
-        recentlyLeftTime = System.currentTimeMillis()
-        LogUtils.d(TAG, "Left app $packageName at $recentlyLeftTime")
+    private val expiryHandler = Handler(Looper.getMainLooper())
+    private val expiryRunnable = object : Runnable {
+        override fun run() {
+            val expired = unlockSessions.advance(System.currentTimeMillis())
+            if (expired.isNotEmpty()) {
+                LogUtils.d(TAG, "Unlock sessions expired: ${expired.joinToString()}")
+            }
+            if (unlockSessions.hasPendingExpiries) {
+                expiryHandler.postDelayed(this, UnlockSessionTable.DEFAULT_TICK_MS)
+            }
+        }
     }
 
-    fun checkAndRestoreRecentlyLeftApp(packageName: String): Boolean {
-        // If we are returning to the same app we just left within the grace period
-        if (packageName == recentlyLeftApp && packageName.isNotEmpty()) {
-            val elapsed = System.currentTimeMillis() - recentlyLeftTime
-            if (elapsed <= GRACE_PERIOD_MS) {
-                LogUtils.d(TAG, "Restoring unlock state for $packageName (elapsed: ${elapsed}ms)")
-                temporarilyUnlockedApp = packageName
-                // Clear the tracking so it doesn't trigger again inappropriately
-                recentlyLeftApp = ""
-                recentlyLeftTime = 0L
-                return true
-            } else {
-                LogUtils.d(TAG, "Grace period expired for $packageName (elapsed: ${elapsed}ms)")
-                recentlyLeftApp = "" // Expired
-            }
+    // Held in a field: shared preferences only keep weak references to their listeners
+    private var unlockDurationListener: SharedPreferences.OnSharedPreferenceChangeListener? = null
+
+    /**
+     * Keeps the session table's unlock duration in sync with the setting, restores the sessions
+     * a killed process left in [UnlockStateFile] and mirrors every later change there.
+     */
+    fun initialize(context: Context, appLockRepository: AppLockRepository) {
+        unlockSessions.setUnlockDuration(appLockRepository.getUnlockTimeDuration())
+        UnlockStateFile.open(context)?.let { stateFile ->
+            val restored = stateFile.restoreInto(unlockSessions)
+            if (restored > 0) LogUtils.d(TAG, "Restored $restored unlock sessions")
+            unlockSessions.onStateChanged = stateFile::write
+            scheduleExpiry()
+        }
+        val listener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+            unlockSessions.setUnlockDuration(appLockRepository.getUnlockTimeDuration())
+            scheduleExpiry()
         }
-        return false
+        unlockDurationListener = listener
+        appLockRepository.registerOnChangeListener(listener)
     }
 
+    val temporarilyUnlockedApp: String
+        get() = unlockSessions.temporarilyUnlockedApp
+
     private val ALL_APP_LOCK_SERVICES = setOf(
         ShizukuAppLockService::class.java,
         UsageLockService::class.java
     )
 
     fun unlockApp(packageName: String) {
-        temporarilyUnlockedApp = packageName
-        appUnlockTimes[packageName] = System.currentTimeMillis()
-        LogUtils.d(
-            TAG,
-            "App $packageName unlocked at timestamp: ${appUnlockTimes[packageName]}, current time: ${System.currentTimeMillis()}"
+        FlightRecorder.record(
+            null,
+            FlightRecorder.Decision.UNLOCK,
+            FlightRecorder.Reason.USER_UNLOCKED,
+            packageName
         )
+        val time = System.currentTimeMillis()
+        unlockSessions.unlock(packageName, time)
+        scheduleExpiry()
+        PackageSuspensionLock.onUnlocked(packageName)
+        DetectionTraceRecorder.record {
+            TraceRecord.System(time, SystemAction.UNLOCK, packageName)
+        }
+        LogUtils.d(TAG, "App $packageName unlocked at timestamp: $time")
     }
 
     fun temporarilyUnlockAppWithBiometrics(packageName: String) {
@@ -109,22 +117,18 @@ object AppLockManager {
     fun reportBiometricAuthFinished() {}
 
     fun isAppTemporarilyUnlocked(packageName: String): Boolean =
-        temporarilyUnlockedApp == packageName
+        unlockSessions.isTemporarilyUnlocked(packageName)
 
-    fun clearTemporarilyUnlockedApp() {
-        temporarilyUnlockedApp = ""
+    fun clearAppUnlockState(packageName: String) {
+        unlockSessions.clearPackage(packageName)
+        LogUtils.d(TAG, "Cleared stale unlock state for $packageName")
     }
 
-    fun clearAppUnlockState(packageName: String) {
-        if (temporarilyUnlockedApp == packageName) {
-            temporarilyUnlockedApp = ""
+    private fun scheduleExpiry() {
+        expiryHandler.removeCallbacks(expiryRunnable)
+        if (unlockSessions.hasPendingExpiries) {
+            expiryHandler.postDelayed(expiryRunnable, UnlockSessionTable.DEFAULT_TICK_MS)
         }
-        appUnlockTimes.remove(packageName)
-        if (packageName == recentlyLeftApp) {
-            recentlyLeftApp = ""
-            recentlyLeftTime = 0L
-        }
-        LogUtils.d(TAG, "Cleared stale unlock state for $packageName")
     }
 
     fun stopAllOtherServices(context: Context, excludeService: Class<*>) {
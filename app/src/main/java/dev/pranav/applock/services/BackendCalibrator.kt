@@ -0,0 +1,193 @@
+package dev.pranav.applock.services
+
+import android.content.Context
+import android.content.Intent
+import android.content.pm.PackageManager
+import android.os.Build
+import android.os.Process
+import android.os.SystemClock
+import dev.pranav.applock.core.broadcast.AppLockServiceStarter
+import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.hasUsagePermission
+import dev.pranav.applock.core.utils.isAccessibilityServiceEnabled
+import dev.pranav.applock.data.repository.AppLockRepository
+import dev.pranav.applock.data.repository.BackendImplementation
+import dev.pranav.applock.shizuku.ShizukuBootstrap
+import dev.pranav.lockcore.BackendMeasurement
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import rikka.shizuku.Shizuku
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures each backend the user has granted on this device, for auto backend mode.
+ *
+ * Each backend in turn becomes the chosen one and gets [TRIALS] scripted launches of
+ * [CalibrationActivity]; its latency is the time from the launch to the backend reporting the
+ * activity in front through [onForegroundObserved]. It then idles for [IDLE_WINDOW_MS], during
+ * which the process CPU time and the backend's wakeups ([onWakeup]) are counted. The results are
+ * stored with the OS build fingerprint and the backend [BackendSelector][dev.pranav.lockcore.BackendSelector]
+ * picks is kept; an OS update makes them stale.
+ *
+ * Runs in the ":protect" process next to the backends; the UI asks for it through
+ * [ProtectionClient.calibrate]. The hooks cost the backends a single volatile read while no
+ * calibration runs.
+ */
+object BackendCalibrator {
+    private const val TAG = "BackendCalibrator"
+
+    private const val TRIALS = 3
+    private const val WARMUP_MS = 1_500L
+    private const val DETECTION_TIMEOUT_MS = 2_000L
+    private const val BETWEEN_TRIALS_MS = 500L
+    private const val IDLE_WINDOW_MS = 10_000L
+
+    private val CALIBRATION_CLASS = CalibrationActivity::class.java.name
+
+    private class Probe(val backend: BackendImplementation) {
+        @Volatile
+        var launchedAt = 0L
+        val detected = CompletableDeferred<Long>()
+        val wakeups = AtomicLong()
+    }
+
+    @Volatile
+    private var probe: Probe? = null
+
+    private val _calibrating = MutableStateFlow<BackendImplementation?>(null)
+
+    /** The backend being measured, or null while no calibration runs. */
+    val calibrating: StateFlow<BackendImplementation?> = _calibrating.asStateFlow()
+
+    // Main thread only; finished after each trial
+    internal var activity: CalibrationActivity? = null
+
+    /** Called by a backend each time it wakes up to look for the foreground app. */
+    fun onWakeup(backend: BackendImplementation) {
+        val current = probe ?: return
+        if (current.backend == backend) current.wakeups.incrementAndGet()
+    }
+
+    /** Called by a backend with the class of each activity it sees in front, before filtering. */
+    fun onForegroundObserved(backend: BackendImplementation, className: CharSequence?) {
+        val current = probe ?: return
+        if (current.backend != backend || current.launchedAt == 0L) return
+        if (className == null || !CALIBRATION_CLASS.contentEquals(className)) return
+        current.detected.complete(SystemClock.elapsedRealtime() - current.launchedAt)
+    }
+
+    fun availableBackends(context: Context): List<BackendImplementation> =
+        BackendImplementation.entries.filter { backend ->
+            when (backend) {
+                BackendImplementation.ACCESSIBILITY -> context.isAccessibilityServiceEnabled()
+                BackendImplementation.USAGE_STATS -> context.hasUsagePermission()
+                BackendImplementation.SHIZUKU -> try {
+                    ShizukuBootstrap.ensureInitialized(context, isProviderProcess = true)
+                    Shizuku.pingBinder() &&
+                            Shizuku.checkSelfPermission() == PackageManager.PERMISSION_GRANTED
+                } catch (e: Exception) {
+                    false
+                }
+            }
+        }
+
+    fun isCalibrationStale(repository: AppLockRepository): Boolean =
+        repository.isBackendCalibrationStale(Build.FINGERPRINT)
+
+    /**
+     * Measures every available backend and switches to the best one, or back to the backend that
+     * was chosen before if none detected every launch. Must run while the app is in front, since
+     * it starts activities. Returns the backend in use afterwards, or null if a calibration was
+     * already running.
+     */
+    suspend fun calibrate(context: Context, repository: AppLockRepository): BackendImplementation? =
+        withContext(Dispatchers.Main) {
+            if (_calibrating.value != null) return@withContext null
+
+            val previous = repository.getBackendImplementation()
+            val backends = availableBackends(context)
+            LogUtils.d(TAG, "Calibrating ${backends.joinToString()}")
+
+            val measurements = ArrayList<BackendMeasurement>(backends.size)
+            try {
+                for (backend in backends) {
+                    _calibrating.value = backend
+                    measurements.add(measure(context, repository, backend))
+                }
+                repository.setBackendCalibration(measurements, Build.FINGERPRINT)
+            } catch (e: Exception) {
+                LogUtils.e(TAG, "Calibration failed", e)
+            } finally {
+                probe = null
+                activity?.finish()
+            }
+
+            val chosen = repository.chooseCalibratedBackend() ?: previous
+            switchTo(context, repository, chosen)
+            _calibrating.value = null
+            LogUtils.d(TAG, "Auto mode runs on $chosen")
+            chosen
+        }
+
+    private suspend fun measure(
+        context: Context,
+        repository: AppLockRepository,
+        backend: BackendImplementation
+    ): BackendMeasurement {
+        switchTo(context, repository, backend)
+        delay(WARMUP_MS)
+
+        val latencies = LongArray(TRIALS)
+        for (trial in 0 until TRIALS) {
+            val current = Probe(backend)
+            probe = current
+            current.launchedAt = SystemClock.elapsedRealtime()
+            context.startActivity(
+                Intent(context, CalibrationActivity::class.java).addFlags(
+                    Intent.FLAG_ACTIVITY_NEW_TASK or Intent.FLAG_ACTIVITY_NO_ANIMATION
+                )
+            )
+            latencies[trial] = withTimeoutOrNull(DETECTION_TIMEOUT_MS) { current.detected.await() } ?: -1
+            probe = null
+            activity?.finish()
+            delay(BETWEEN_TRIALS_MS)
+        }
+
+        val idle = Probe(backend)
+        probe = idle
+        val startCpu = Process.getElapsedCpuTime()
+        val start = SystemClock.elapsedRealtime()
+        delay(IDLE_WINDOW_MS)
+        val elapsed = (SystemClock.elapsedRealtime() - start).coerceAtLeast(1)
+        val cpu = Process.getElapsedCpuTime() - startCpu
+        probe = null
+
+        val measurement = BackendMeasurement(
+            backend.name,
+            latencies,
+            cpuMsPerMinute = cpu * 60_000 / elapsed,
+            wakeupsPerMinute = idle.wakeups.get() * 60_000 / elapsed
+        )
+        LogUtils.d(
+            TAG,
+            "$backend: latencies=${latencies.joinToString()}ms cpu=${measurement.cpuMsPerMinute}ms/min " +
+                    "wakeups=${measurement.wakeupsPerMinute}/min"
+        )
+        return measurement
+    }
+
+    private fun switchTo(
+        context: Context,
+        repository: AppLockRepository,
+        backend: BackendImplementation
+    ) {
+        repository.setBackendImplementation(backend)
+        AppLockServiceStarter.startAppropriateServices(context, repository)
+    }
+}
@@ -0,0 +1,66 @@
+package dev.pranav.applock.services
+
+import android.os.SystemClock
+import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.data.repository.BackendImplementation
+import java.io.PrintWriter
+
+/**
+ * Measures how long the device goes unprotected when detection switches source, for example
+ * from Shizuku to usage stats when the Shizuku binder dies and back when it returns.
+ *
+ * [beginSwitch] starts the clock and the first tick of the target backend stops it through
+ * [onProtected], which costs a single volatile read when no switch is pending.
+ */
+object BackendFailover {
+    private const val TAG = "BackendFailover"
+
+    @Volatile
+    private var switchStartedAt = 0L
+
+    @Volatile
+    private var switchTarget: BackendImplementation? = null
+
+    private var switches = 0
+    private var totalGapMs = 0L
+    private var maxGapMs = 0L
+    private var lastGapMs = 0L
+
+    fun beginSwitch(target: BackendImplementation) {
+        synchronized(this) {
+            switchTarget = target
+            switchStartedAt = SystemClock.elapsedRealtime()
+        }
+        LogUtils.d(TAG, "Switching detection to $target")
+    }
+
+    fun onProtected(backend: BackendImplementation) {
+        if (switchStartedAt == 0L) return
+
+        val gapMs = synchronized(this) {
+            if (switchStartedAt == 0L || switchTarget != backend) return
+            val gap = SystemClock.elapsedRealtime() - switchStartedAt
+            switchStartedAt = 0L
+            switches++
+            totalGapMs += gap
+            lastGapMs = gap
+            if (gap > maxGapMs) maxGapMs = gap
+            gap
+        }
+        LogUtils.d(TAG, "Detection running on $backend after ${gapMs}ms unprotected")
+    }
+
+    fun dump(writer: PrintWriter) {
+        synchronized(this) {
+            writer.println("Backend failover:")
+            val mean = if (switches == 0) 0L else totalGapMs / switches
+            writer.println(
+                "  switches=$switches unprotected last=${lastGapMs}ms mean=${mean}ms max=${maxGapMs}ms"
+            )
+            if (switchStartedAt != 0L) {
+                val pending = SystemClock.elapsedRealtime() - switchStartedAt
+                writer.println("  switching to $switchTarget for ${pending}ms")
+            }
+        }
+    }
+}
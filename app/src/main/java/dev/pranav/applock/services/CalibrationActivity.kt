@@ -0,0 +1,25 @@
+package dev.pranav.applock.services
+
+import android.app.Activity
+import android.os.Bundle
+
+/**
+ * The blank, translucent activity [BackendCalibrator] launches to time how soon each backend
+ * notices an app coming to the front. The calibrator finishes it after each launch; one that
+ * comes up after the calibration ended finishes right away.
+ */
+class CalibrationActivity : Activity() {
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        if (BackendCalibrator.calibrating.value == null) {
+            finish()
+            return
+        }
+        BackendCalibrator.activity = this
+    }
+
+    override fun onDestroy() {
+        if (BackendCalibrator.activity === this) BackendCalibrator.activity = null
+        super.onDestroy()
+    }
+}
@@ -0,0 +1,170 @@
+package dev.pranav.applock.services
+
+import android.app.KeyguardManager
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.hardware.display.DisplayManager
+import android.os.Handler
+import android.os.Looper
+import android.os.PowerManager
+import android.util.Log
+import android.view.Display
+import androidx.core.content.getSystemService
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import rikka.shizuku.Shizuku
+import java.util.concurrent.CopyOnWriteArraySet
+
+/**
+ * Screen, keyguard and Shizuku state, kept up to date from broadcasts, display callbacks and
+ * Shizuku binder listeners so the backends can check it on every event or tick without a binder
+ * call. The keyguard is only queried once per screen-on, to settle whether it engaged.
+ *
+ * Screen off, unlock and the Shizuku binder coming and going are also delivered to [Listener]s,
+ * which replaces the screen state receiver each backend used to register.
+ */
+object DeviceStateCache {
+    private const val TAG = "DeviceStateCache"
+
+    data class DeviceState(
+        val isInteractive: Boolean,
+        val isKeyguardLocked: Boolean,
+        val isShizukuAlive: Boolean
+    )
+
+    /** Called on the main thread. */
+    interface Listener {
+        fun onScreenOff() {}
+        fun onUserPresent() {}
+        fun onShizukuBinderChanged(alive: Boolean) {}
+    }
+
+    @Volatile
+    var isInteractive = true
+        private set
+
+    /** True from the screen turning off until the keyguard is dismissed. */
+    @Volatile
+    var isKeyguardLocked = false
+        private set
+
+    @Volatile
+    var isShizukuAlive = false
+        private set
+
+    private val _state = MutableStateFlow(DeviceState(true, false, false))
+    val state: StateFlow<DeviceState> = _state.asStateFlow()
+
+    private val listeners = CopyOnWriteArraySet<Listener>()
+    private lateinit var context: Context
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    private val screenStateReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context?, intent: Intent?) {
+            when (intent?.action) {
+                Intent.ACTION_SCREEN_ON -> onInteractiveChanged(true)
+                Intent.ACTION_SCREEN_OFF -> {
+                    onInteractiveChanged(false)
+                    listeners.forEach { it.onScreenOff() }
+                }
+
+                Intent.ACTION_USER_PRESENT -> {
+                    isKeyguardLocked = false
+                    publish()
+                    listeners.forEach { it.onUserPresent() }
+                }
+            }
+        }
+    }
+
+    private val displayListener = object : DisplayManager.DisplayListener {
+        override fun onDisplayAdded(displayId: Int) {}
+        override fun onDisplayRemoved(displayId: Int) {}
+
+        override fun onDisplayChanged(displayId: Int) {
+            if (displayId != Display.DEFAULT_DISPLAY) return
+            val display = context.getSystemService<DisplayManager>()
+                ?.getDisplay(Display.DEFAULT_DISPLAY) ?: return
+            onInteractiveChanged(
+                display.state == Display.STATE_ON || display.state == Display.STATE_VR
+            )
+        }
+    }
+
+    private val binderReceivedListener = Shizuku.OnBinderReceivedListener {
+        onShizukuBinderChanged(true)
+    }
+
+    private val binderDeadListener = Shizuku.OnBinderDeadListener {
+        onShizukuBinderChanged(false)
+    }
+
+    fun initialize(context: Context) {
+        if (this::context.isInitialized) return
+        this.context = context.applicationContext
+
+        try {
+            isInteractive = context.getSystemService<PowerManager>()?.isInteractive ?: true
+            isKeyguardLocked = context.getSystemService<KeyguardManager>()?.isKeyguardLocked ?: false
+            isShizukuAlive = Shizuku.pingBinder()
+            publish()
+
+            val filter = IntentFilter().apply {
+                addAction(Intent.ACTION_SCREEN_ON)
+                addAction(Intent.ACTION_SCREEN_OFF)
+                addAction(Intent.ACTION_USER_PRESENT)
+            }
+            this.context.registerReceiver(screenStateReceiver, filter)
+            this.context.getSystemService<DisplayManager>()
+                ?.registerDisplayListener(displayListener, mainHandler)
+            Shizuku.addBinderReceivedListenerSticky(binderReceivedListener)
+            Shizuku.addBinderDeadListener(binderDeadListener)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error registering device state observers", e)
+        }
+    }
+
+    fun addListener(listener: Listener) {
+        listeners.add(listener)
+    }
+
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
+    }
+
+    private fun onInteractiveChanged(interactive: Boolean) {
+        if (interactive == isInteractive) return
+        isInteractive = interactive
+
+        if (!interactive) {
+            // Nothing can be locked with the screen off, whether or not the keyguard engaged yet
+            isKeyguardLocked = true
+        } else {
+            // With a lock delay the screen can come back without the keyguard and without a
+            // USER_PRESENT, so ask once
+            isKeyguardLocked = try {
+                context.getSystemService<KeyguardManager>()?.isKeyguardLocked ?: false
+            } catch (e: Exception) {
+                Log.e(TAG, "Error querying keyguard state", e)
+                isKeyguardLocked
+            }
+        }
+        publish()
+    }
+
+    private fun onShizukuBinderChanged(alive: Boolean) {
+        // Update the field right away so the Shizuku monitor stops polling a dead binder, but
+        // run listeners on the main thread like the broadcast-driven ones
+        if (alive == isShizukuAlive) return
+        isShizukuAlive = alive
+        publish()
+        mainHandler.post { listeners.forEach { it.onShizukuBinderChanged(alive) } }
+    }
+
+    private fun publish() {
+        _state.value = DeviceState(isInteractive, isKeyguardLocked, isShizukuAlive)
+    }
+}
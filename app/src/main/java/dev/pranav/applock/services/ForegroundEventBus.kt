@@ -0,0 +1,184 @@
+package dev.pranav.applock.services
+
+import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.data.repository.BackendImplementation
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.LockHandoff
+import dev.pranav.lockcore.Transition
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import java.io.PrintWriter
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * What a backend's state machine made of one event: the app it was about (the launcher for home,
+ * empty for recents and screen changes), the app it was opened from and the verdict.
+ */
+class ForegroundUpdate(
+    val backend: BackendImplementation,
+    val packageName: String,
+    val triggeringPackage: String,
+    val transition: Transition,
+    val timeMillis: Long
+)
+
+/**
+ * Hands a backend's decisions from its detection thread to the lock handler on the main thread
+ * through a single slot.
+ *
+ * A burst of transitions, e.g. scrubbing through recents or switching apps quickly, publishes
+ * faster than the lock screen can come up. A newer update takes the slot as [LockHandoff] rules:
+ * a pending lock is dropped once its app is gone, so it is not shown over the wrong app, but not
+ * for an app next to it in split-screen or freeform, which [isVisible] reports for the backends
+ * that see several apps at once.
+ *
+ * [Transition.NONE], the verdict for home, recents and the keyguard, only drops a pending lock and
+ * is otherwise just counted, since it is published for most events.
+ *
+ * While logging is on, every other update is also broadcast on [updates] for observers such as
+ * the debug log, which run on their own dispatcher and may drop updates under load, so they never
+ * hold up a decision. The flight recorder is still written on the detection thread, since it must
+ * not miss an entry.
+ */
+class ForegroundEventBus(
+    private val backend: BackendImplementation,
+    private val isVisible: (String) -> Boolean = { false }
+) {
+    private val latest = MutableStateFlow<ForegroundUpdate?>(null)
+    private var handler: Job? = null
+
+    /** Publishes what [machine] returned for an event about [packageName]. */
+    fun publish(
+        transition: Transition,
+        packageName: String,
+        machine: ForegroundStateMachine,
+        timeMillis: Long
+    ) {
+        if (transition == Transition.IGNORED) return
+
+        transitionCounts.incrementAndGet(transition.ordinal)
+        if (transition == Transition.NONE) {
+            // Not about an app: all it can change is a pending lock, which it drops
+            val pending = latest.value
+            if (pending?.transition == Transition.LOCK) latest.compareAndSet(pending, null)
+            return
+        }
+
+        val update = ForegroundUpdate(
+            backend,
+            packageName,
+            machine.triggeringPackage,
+            transition,
+            timeMillis
+        )
+        published.incrementAndGet()
+        if (transition == Transition.LOCK) locksPublished.incrementAndGet()
+        latest.update { pending ->
+            if (pending == null || LockHandoff.replaces(
+                    pending.transition,
+                    pending.packageName,
+                    transition,
+                    packageName,
+                    isVisible
+                )
+            ) update else pending
+        }
+        if (LogUtils.isEnabled) _updates.tryEmit(update)
+    }
+
+    /**
+     * Starts calling [onLock] on the main thread with the update in the slot whenever it is a lock.
+     * Replaces the handler of an earlier call.
+     */
+    fun start(onLock: (ForegroundUpdate) -> Unit) {
+        stop()
+        handler = scope.launch {
+            latest.collect { update ->
+                if (update == null) return@collect
+                // Taken, so a later update is not held back by a lock that was already handled
+                latest.compareAndSet(update, null)
+                delivered.incrementAndGet()
+                if (update.transition != Transition.LOCK) return@collect
+
+                locksActedOn.incrementAndGet()
+                try {
+                    onLock(update)
+                } catch (e: Exception) {
+                    LogUtils.e(TAG, "Error handling lock of ${update.packageName}", e)
+                }
+            }
+        }
+    }
+
+    fun stop() {
+        handler?.cancel()
+        handler = null
+        // A lock left over from before must not fire when the handler starts again
+        latest.value = null
+    }
+
+    companion object {
+        private const val TAG = "ForegroundEventBus"
+        private const val OBSERVER_BUFFER = 64
+
+        // Non-immediate, so updates published on the main thread during a burst conflate too
+        private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+
+        private val _updates = MutableSharedFlow<ForegroundUpdate>(
+            extraBufferCapacity = OBSERVER_BUFFER,
+            onBufferOverflow = BufferOverflow.DROP_OLDEST
+        )
+
+        /**
+         * Every update about an app of every backend while logging is on, for observers that must
+         * not slow the decisions down.
+         */
+        val updates: SharedFlow<ForegroundUpdate> = _updates.asSharedFlow()
+
+        private val published = AtomicLong()
+        private val delivered = AtomicLong()
+        private val locksPublished = AtomicLong()
+        private val locksActedOn = AtomicLong()
+        private val transitionCounts = AtomicLongArray(Transition.entries.size)
+
+        init {
+            scope.launch(Dispatchers.Default) {
+                updates.collect { update ->
+                    if (!LogUtils.isEnabled) return@collect
+                    LogUtils.d(
+                        TAG,
+                        "${update.backend}: ${update.transition} ${update.packageName}, " +
+                                "trigger=${update.triggeringPackage}"
+                    )
+                }
+            }
+        }
+
+        fun dump(writer: PrintWriter) {
+            val publishedCount = published.get()
+            val deliveredCount = delivered.get()
+            val locks = locksPublished.get()
+            val actedOn = locksActedOn.get()
+            writer.println(
+                "Foreground event bus: published=$publishedCount acted on=$deliveredCount " +
+                        "conflated=${publishedCount - deliveredCount}"
+            )
+            writer.println("  locks: decided=$locks shown=$actedOn superseded=${locks - actedOn}")
+            Transition.entries.forEach { transition ->
+                val count = transitionCounts.get(transition.ordinal)
+                if (count > 0) writer.println("  $transition=$count")
+            }
+            writer.flush()
+        }
+    }
+}
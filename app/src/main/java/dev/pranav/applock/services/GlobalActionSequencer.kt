@@ -0,0 +1,104 @@
+package dev.pranav.applock.services
+
+import android.os.SystemClock
+import android.util.Log
+import dev.pranav.applock.core.utils.LogUtils
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Runs sequences of accessibility global actions in order without blocking the thread that
+ * requested them.
+ *
+ * A step can wait for the window it causes: the sequence then resumes on the next
+ * [onWindowStateChanged] instead of after a fixed sleep, and only falls back to the step's
+ * timeout if no window event arrives (e.g. it was filtered out of our subscription).
+ * Sequences run one at a time on the main thread, and a sequence requested again with the
+ * same key while the previous one is running or within its dedupe window is dropped, so a
+ * burst of events from one settings screen triggers the block once.
+ */
+class GlobalActionSequencer(private val performAction: (Int) -> Boolean) {
+
+    /**
+     * One global action. With [awaitWindowMs] above zero the next step waits for the next
+     * window state change, at most that long.
+     */
+    class Step(val action: Int, val awaitWindowMs: Long = 0)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+    private val mutex = Mutex()
+
+    // Counts window state changes so a step only accepts ones that happen after its action
+    private val windowChanges = MutableStateFlow(0L)
+
+    // Keyed by sequence, only touched on the main thread
+    private val running = HashSet<String>()
+    private val lastRunAt = HashMap<String, Long>()
+
+    /**
+     * Queues [steps] under [key] and calls [onDone] on the main thread once they ran. Returns
+     * false if the request was dropped as a duplicate.
+     */
+    fun run(
+        key: String,
+        steps: List<Step>,
+        dedupeWindowMs: Long = 0,
+        onDone: () -> Unit = {}
+    ): Boolean {
+        val now = SystemClock.uptimeMillis()
+        val lastRun = lastRunAt[key]
+        if (key in running || (lastRun != null && now - lastRun < dedupeWindowMs)) {
+            return false
+        }
+        running.add(key)
+        lastRunAt[key] = now
+
+        scope.launch {
+            try {
+                mutex.withLock {
+                    for (step in steps) perform(step)
+                }
+                onDone()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error running global actions for $key", e)
+            } finally {
+                running.remove(key)
+            }
+        }
+        return true
+    }
+
+    /** Must be fed every window state change the service receives. */
+    fun onWindowStateChanged() {
+        windowChanges.value++
+    }
+
+    fun cancel() {
+        scope.cancel()
+    }
+
+    private suspend fun perform(step: Step) {
+        val seen = windowChanges.value
+        if (!performAction(step.action)) {
+            Log.w(TAG, "Global action ${step.action} was not performed")
+            return
+        }
+        if (step.awaitWindowMs <= 0) return
+
+        withTimeoutOrNull(step.awaitWindowMs) {
+            windowChanges.first { it != seen }
+        } ?: LogUtils.d(TAG, "No window change after action ${step.action}, continuing")
+    }
+
+    private companion object {
+        const val TAG = "GlobalActionSequencer"
+    }
+}
@@ -0,0 +1,192 @@
+package dev.pranav.applock.services
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.content.SharedPreferences
+import android.os.Bundle
+import android.os.IBinder
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import dev.pranav.applock.data.repository.BackendImplementation
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.withContext
+import java.io.File
+
+/**
+ * The UI process's end of [IProtectionPolicy]: keeps [ProtectionPolicyService] bound while the
+ * UI process lives and pushes every change to the synced preference files to it, coalesced per
+ * key while it is not connected. Changes the protection process makes come back through
+ * [IPreferenceListener] and are applied here.
+ */
+object ProtectionClient {
+    private const val TAG = "ProtectionClient"
+
+    private lateinit var context: Context
+
+    @Volatile
+    private var policy: IProtectionPolicy? = null
+
+    // Keys changed per file since the last push; main thread only
+    private val pendingKeys = HashMap<String, MutableSet<String>>()
+
+    // Held in a field: shared preferences only keep weak references to their listeners
+    private val preferenceListener =
+        SharedPreferences.OnSharedPreferenceChangeListener { prefs, key ->
+            val file = fileOf(prefs) ?: return@OnSharedPreferenceChangeListener
+            val keys = pendingKeys.getOrPut(file) { HashSet() }
+            // A null key means the file was cleared; resend what is left
+            if (key == null) keys.addAll(prefs.all.keys) else keys.add(key)
+            flush()
+        }
+
+    private val preferences = HashMap<String, SharedPreferences>()
+    private val peers = PolicyBundles.SYNCED_FILES.associateWith { PeerValues() }
+
+    private val preferenceListenerStub = object : IPreferenceListener.Stub() {
+        override fun onPreferencesChanged(
+            file: String,
+            values: Bundle,
+            removedKeys: Array<String>
+        ) {
+            val prefs = preferences[file] ?: return
+            try {
+                peers.getValue(file).receive(prefs, values, removedKeys)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error applying preferences from the protection process", e)
+            }
+        }
+    }
+
+    @Volatile
+    private var pendingCalibration: CompletableDeferred<String?>? = null
+
+    private val _calibrating = MutableStateFlow<BackendImplementation?>(null)
+
+    /** The backend the protection process is measuring, or null while no calibration runs. */
+    val calibrating: StateFlow<BackendImplementation?> = _calibrating.asStateFlow()
+
+    private val connection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            val policy = IProtectionPolicy.Stub.asInterface(binder)
+            this@ProtectionClient.policy = policy
+            Log.d(TAG, "Protection process connected")
+            // A new protection process loaded the files on its own, so nothing it has is known
+            peers.values.forEach(PeerValues::clear)
+            flush()
+            // After the flush, on the same binder: what comes back already includes it
+            try {
+                policy.setPreferenceListener(preferenceListenerStub)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error listening to the protection process", e)
+            }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            // The system binds again once the process restarts, which then reads the files
+            Log.w(TAG, "Protection process died")
+            policy = null
+            pendingCalibration?.complete(null)
+        }
+    }
+
+    fun initialize(application: Context) {
+        context = application
+        for (file in PolicyBundles.SYNCED_FILES) {
+            val prefs = context.getSharedPreferences(file, Context.MODE_PRIVATE)
+            prefs.registerOnSharedPreferenceChangeListener(preferenceListener)
+            preferences[file] = prefs
+        }
+        try {
+            context.bindService(
+                Intent(context, ProtectionPolicyService::class.java),
+                connection,
+                Context.BIND_AUTO_CREATE
+            )
+        } catch (e: Exception) {
+            Log.e(TAG, "Error binding the protection process", e)
+        }
+    }
+
+    /**
+     * Has the protection process calibrate the backends for auto mode and copies the outcome
+     * back. Returns the backend in use afterwards, or null if that did not happen.
+     */
+    suspend fun calibrate(): BackendImplementation? {
+        val policy = policy ?: return null
+        val result = CompletableDeferred<String?>()
+        pendingCalibration = result
+        try {
+            policy.calibrate(object : ICalibrationListener.Stub() {
+                override fun onMeasuring(backend: String) {
+                    _calibrating.value = BackendImplementation.valueOf(backend)
+                }
+
+                override fun onFinished(backend: String?) {
+                    result.complete(backend)
+                }
+            })
+            val backend = result.await() ?: return null
+            // The measurements and the backend written over there are also pushed back, but on
+            // another binder than the result, so they are read to be here on return
+            pull()
+            return BackendImplementation.valueOf(backend)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error calibrating in the protection process", e)
+            return null
+        } finally {
+            pendingCalibration = null
+            _calibrating.value = null
+        }
+    }
+
+    /** Appends the protection process's diagnostics to [file]. Returns whether it could. */
+    fun dumpTo(file: File): Boolean {
+        val policy = policy ?: return false
+        return try {
+            policy.dump(
+                ParcelFileDescriptor.open(
+                    file,
+                    ParcelFileDescriptor.MODE_WRITE_ONLY or ParcelFileDescriptor.MODE_APPEND
+                )
+            )
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error dumping the protection process", e)
+            false
+        }
+    }
+
+    private suspend fun pull() = withContext(Dispatchers.IO) {
+        val policy = policy ?: return@withContext
+        for ((file, prefs) in preferences) {
+            peers.getValue(file).receive(prefs, policy.readPreferences(file), emptyArray())
+        }
+    }
+
+    private fun flush() {
+        val policy = policy ?: return
+        val iterator = pendingKeys.entries.iterator()
+        while (iterator.hasNext()) {
+            val (file, keys) = iterator.next()
+            val prefs = preferences[file] ?: continue
+            try {
+                peers.getValue(file).send(prefs, keys) { values, removedKeys ->
+                    policy.applyPreferences(file, values, removedKeys)
+                }
+                iterator.remove()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error pushing preferences to the protection process", e)
+                return
+            }
+        }
+    }
+
+    private fun fileOf(prefs: SharedPreferences): String? =
+        preferences.entries.firstOrNull { it.value === prefs }?.key
+}
@@ -0,0 +1,306 @@
+package dev.pranav.applock.services
+
+import android.app.Service
+import android.content.Intent
+import android.content.SharedPreferences
+import android.os.Bundle
+import android.os.IBinder
+import android.os.ParcelFileDescriptor
+import android.os.RemoteException
+import android.util.Log
+import androidx.core.content.edit
+import dev.pranav.applock.core.broadcast.AppLockServiceStarter
+import dev.pranav.applock.core.utils.FlightRecorder
+import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.ProcessMemory
+import dev.pranav.applock.core.utils.StartupTrace
+import dev.pranav.applock.core.utils.appLockRepository
+import dev.pranav.applock.core.utils.ensureProtectionInitialized
+import dev.pranav.applock.data.repository.AppLockRepository
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import java.io.FileDescriptor
+import java.io.FileOutputStream
+import java.io.PrintWriter
+
+/**
+ * Shared preference values in a [Bundle] for [IProtectionPolicy]: string sets travel as string
+ * arrays, everything else as itself.
+ */
+internal object PolicyBundles {
+    /** The shared preference files the UI and protection processes keep in sync. */
+    val SYNCED_FILES = setOf("app_lock_prefs", "app_lock_settings")
+
+    fun of(prefs: SharedPreferences, keys: Collection<String>): Bundle {
+        val all = prefs.all
+        val bundle = Bundle(keys.size)
+        for (key in keys) {
+            when (val value = all[key]) {
+                is String -> bundle.putString(key, value)
+                is Boolean -> bundle.putBoolean(key, value)
+                is Int -> bundle.putInt(key, value)
+                is Long -> bundle.putLong(key, value)
+                is Float -> bundle.putFloat(key, value)
+                is Set<*> -> bundle.putStringArray(key, value.filterIsInstance<String>().toTypedArray())
+            }
+        }
+        return bundle
+    }
+
+    fun all(prefs: SharedPreferences): Bundle = of(prefs, prefs.all.keys)
+
+    /**
+     * Writes the values in [bundle] that differ from [prefs] and removes [removedKeys]. Returns
+     * the keys that changed, so applying what the other process echoes back is a no-op.
+     */
+    fun apply(prefs: SharedPreferences, bundle: Bundle, removedKeys: Array<String>): Set<String> {
+        val current = prefs.all
+        val changed = HashSet<String>()
+        prefs.edit {
+            for (key in bundle.keySet()) {
+                val value = valueOf(bundle, key)
+                if (current[key] == value) continue
+
+                @Suppress("UNCHECKED_CAST")
+                when (value) {
+                    is String -> putString(key, value)
+                    is Boolean -> putBoolean(key, value)
+                    is Int -> putInt(key, value)
+                    is Long -> putLong(key, value)
+                    is Float -> putFloat(key, value)
+                    is Set<*> -> putStringSet(key, value as Set<String>)
+                    else -> continue
+                }
+                changed.add(key)
+            }
+            for (key in removedKeys) {
+                if (key !in current) continue
+                remove(key)
+                changed.add(key)
+            }
+        }
+        return changed
+    }
+
+    /** The value of [key] in [bundle] as shared preferences hold it. */
+    fun valueOf(bundle: Bundle, key: String): Any? {
+        @Suppress("DEPRECATION")
+        return when (val raw = bundle.get(key)) {
+            is Array<*> -> raw.filterIsInstance<String>().toSet()
+            else -> raw
+        }
+    }
+}
+
+/**
+ * One synced file as the other process has it, as far as this one knows: the values last sent
+ * there or received from there.
+ *
+ * Changes go both ways, so a change that matches is the other process's own write being applied
+ * here and is not sent back. Each write then crosses once, and an older value cannot bounce back
+ * over a newer one written in the meantime.
+ */
+internal class PeerValues {
+    // A null value is a key the other process does not have
+    private val values = HashMap<String, Any?>()
+
+    /**
+     * Sends those of [keys] whose value in [prefs] the other process does not have yet through
+     * [send], as values and removed keys, and records them once sent. Exceptions from [send]
+     * are thrown on, with nothing recorded.
+     */
+    @Synchronized
+    fun send(
+        prefs: SharedPreferences,
+        keys: Collection<String>,
+        send: (values: Bundle, removedKeys: Array<String>) -> Unit
+    ) {
+        val current = prefs.all
+        val unsent = keys.filter { key -> key !in values || values[key] != current[key] }
+        if (unsent.isEmpty()) return
+
+        val bundle = PolicyBundles.of(prefs, unsent)
+        val removedKeys = unsent.filter { it !in current }.toTypedArray()
+        send(bundle, removedKeys)
+        record(bundle, removedKeys)
+    }
+
+    /** Applies what the other process sent, see [PolicyBundles.apply]. */
+    fun receive(prefs: SharedPreferences, bundle: Bundle, removedKeys: Array<String>): Set<String> {
+        // Before applying: listeners may run inside apply and must see it as the other's write
+        record(bundle, removedKeys)
+        return PolicyBundles.apply(prefs, bundle, removedKeys)
+    }
+
+    /** Forgets everything, for a new process on the other end. */
+    @Synchronized
+    fun clear() {
+        values.clear()
+    }
+
+    @Synchronized
+    private fun record(bundle: Bundle, removedKeys: Array<String>) {
+        for (key in bundle.keySet()) values[key] = PolicyBundles.valueOf(bundle, key)
+        for (key in removedKeys) values[key] = null
+    }
+}
+
+/**
+ * The ":protect" process's end of [IProtectionPolicy], bound by [ProtectionClient] in the UI
+ * process.
+ *
+ * Detection and the lock screen run in ":protect" so they neither carry the memory of the app
+ * list and settings screens nor go down with them. Each process has its own in-memory copy of
+ * the shared preferences and rewrites the whole file when it saves, so neither may keep a write
+ * to itself: the UI pushes every change here, where applying it fires the same preference
+ * listeners an in-process change would, and every change made here, e.g. by the calibration or
+ * the boot receiver, is pushed back to the UI's [IPreferenceListener].
+ */
+class ProtectionPolicyService : Service() {
+    private val appLockRepository: AppLockRepository by lazy { applicationContext.appLockRepository() }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+
+    private val preferences by lazy {
+        PolicyBundles.SYNCED_FILES.associateWith { getSharedPreferences(it, MODE_PRIVATE) }
+    }
+    private val peers = PolicyBundles.SYNCED_FILES.associateWith { PeerValues() }
+
+    @Volatile
+    private var preferenceListener: IPreferenceListener? = null
+
+    // Held in a field: shared preferences only keep weak references to their listeners
+    private val changeListener = SharedPreferences.OnSharedPreferenceChangeListener { prefs, key ->
+        val file = preferences.entries.firstOrNull { it.value === prefs }?.key
+            ?: return@OnSharedPreferenceChangeListener
+        // A null key means the file was cleared; resend what is left
+        push(file, if (key == null) prefs.all.keys else listOf(key))
+    }
+
+    private val binder = object : IProtectionPolicy.Stub() {
+        override fun applyPreferences(file: String, values: Bundle, removedKeys: Array<String>) {
+            if (file !in PolicyBundles.SYNCED_FILES) return
+            try {
+                val lockedBefore = appLockRepository.getLockedApps()
+                val backendBefore = appLockRepository.getBackendImplementation()
+                val changed = peers.getValue(file).receive(
+                    preferences.getValue(file),
+                    values,
+                    removedKeys
+                )
+                if (changed.isEmpty()) return
+                LogUtils.d(TAG, "Applied ${changed.joinToString()} to $file")
+
+                // Newly locked apps start locked, as AppLockRepository.addLockedApp does in-process
+                (appLockRepository.getLockedApps() - lockedBefore)
+                    .forEach(AppLockManager::clearAppUnlockState)
+                // The UI starts the new backend's service right away, which may have seen the old
+                // backend and stopped itself
+                if (appLockRepository.getBackendImplementation() != backendBefore) {
+                    AppLockServiceStarter.startAppropriateServices(
+                        this@ProtectionPolicyService,
+                        appLockRepository
+                    )
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Error applying preferences to $file", e)
+            }
+        }
+
+        override fun readPreferences(file: String): Bundle {
+            if (file !in PolicyBundles.SYNCED_FILES) return Bundle()
+            return PolicyBundles.all(preferences.getValue(file))
+        }
+
+        override fun calibrate(listener: ICalibrationListener) {
+            scope.launch {
+                val progress = launch {
+                    BackendCalibrator.calibrating.collect { backend ->
+                        if (backend != null) notify { listener.onMeasuring(backend.name) }
+                    }
+                }
+                val backend = BackendCalibrator.calibrate(
+                    this@ProtectionPolicyService,
+                    appLockRepository
+                )
+                progress.cancel()
+                notify { listener.onFinished(backend?.name) }
+            }
+        }
+
+        override fun dump(fd: ParcelFileDescriptor) {
+            try {
+                PrintWriter(FileOutputStream(fd.fileDescriptor)).use(::dumpState)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error dumping protection state", e)
+            } finally {
+                fd.close()
+            }
+        }
+
+        override fun setPreferenceListener(listener: IPreferenceListener) {
+            preferenceListener = listener
+            // A new UI process loaded the files on its own, so nothing it has is known
+            for ((file, prefs) in preferences) {
+                peers.getValue(file).clear()
+                push(file, prefs.all.keys)
+            }
+        }
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        ensureProtectionInitialized()
+        preferences.values.forEach { it.registerOnSharedPreferenceChangeListener(changeListener) }
+        LogUtils.d(TAG, "Protection process rss=${ProcessMemory.rssKb()}kB")
+    }
+
+    override fun onBind(intent: Intent?): IBinder = binder
+
+    override fun onDestroy() {
+        preferences.values.forEach { it.unregisterOnSharedPreferenceChangeListener(changeListener) }
+        preferenceListener = null
+        scope.cancel()
+        super.onDestroy()
+    }
+
+    /** Sends the UI process those of [keys] in [file] it does not have yet. */
+    private fun push(file: String, keys: Collection<String>) {
+        val listener = preferenceListener ?: return
+        try {
+            peers.getValue(file).send(preferences.getValue(file), keys) { values, removedKeys ->
+                listener.onPreferencesChanged(file, values, removedKeys)
+            }
+        } catch (e: RemoteException) {
+            Log.e(TAG, "UI process is gone", e)
+            preferenceListener = null
+        }
+    }
+
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        dumpState(writer)
+    }
+
+    private fun dumpState(writer: PrintWriter) {
+        ProcessMemory.dump(writer)
+        StartupTrace.dump(writer)
+        FlightRecorder.dump(writer)
+        ForegroundEventBus.dump(writer)
+        BackendFailover.dump(writer)
+        writer.flush()
+    }
+
+    private inline fun notify(call: () -> Unit) {
+        try {
+            call()
+        } catch (e: RemoteException) {
+            Log.e(TAG, "Calibration listener is gone", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "ProtectionPolicyService"
+    }
+}
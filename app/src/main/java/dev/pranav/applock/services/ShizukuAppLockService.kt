@@ -17,19 +17,37 @@ import androidx.core.app.NotificationCompat
 import androidx.core.content.ContextCompat
 import dev.pranav.applock.R
 import dev.pranav.applock.core.broadcast.DeviceAdmin
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.FlightRecorder
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
 import dev.pranav.applock.core.utils.appLockRepository
+import dev.pranav.applock.core.utils.ensureProtectionInitialized
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.data.repository.AppLockRepository.Companion.shouldStartService
 import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.features.lockscreen.ui.PasswordOverlayActivity
+import dev.pranav.applock.shizuku.HiddenApiAccessors
+import dev.pranav.applock.shizuku.PackageSuspensionLock
 import dev.pranav.applock.shizuku.ShizukuActivityManager
+import dev.pranav.applock.shizuku.ShizukuBinderCalls
+import dev.pranav.applock.shizuku.ShizukuBootstrap
 import rikka.shizuku.Shizuku
+import java.io.FileDescriptor
+import java.io.PrintWriter
 
 class ShizukuAppLockService : Service() {
     private val appLockRepository: AppLockRepository by lazy { applicationContext.appLockRepository() }
     private var shizukuActivityManager: ShizukuActivityManager? = null
-    private var previousForegroundPackage = ""
+
+    private var usageFailoverActive = false
+
+    private val shizukuStateListener = object : DeviceStateCache.Listener {
+        override fun onShizukuBinderChanged(alive: Boolean) {
+            if (!isServiceRunning) return
+            if (alive) stopUsageFailover() else startUsageFailover()
+        }
+    }
 
     private val notificationManager: NotificationManager by lazy {
         getSystemService(NotificationManager::class.java)
@@ -46,6 +64,8 @@ class ShizukuAppLockService : Service() {
 
     override fun onCreate() {
         super.onCreate()
+        ensureProtectionInitialized()
+        ShizukuBootstrap.ensureInitialized(this, isProviderProcess = true)
         AppLockManager.isLockScreenShown.set(false)
         startForegroundService()
     }
@@ -66,7 +86,25 @@ class ShizukuAppLockService : Service() {
         appLockRepository.setActiveBackend(BackendImplementation.SHIZUKU)
         AppLockManager.stopAllOtherServices(this, this::class.java)
 
+        if (appLockRepository.isSuspensionLockEnabled()) {
+            if (!PackageSuspensionLock.canLockWith(appLockRepository)) {
+                Log.w(TAG, "Package suspension cannot lock immediately, watching tasks instead")
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && PackageSuspensionLock.isSupported()) {
+                // Android blocks the locked apps by itself, nothing to detect
+                PackageSuspensionLock.start(this, appLockRepository, ::restartLockMode)
+                return START_STICKY
+            } else {
+                Log.w(TAG, "Package suspension needs Shizuku running as root, watching tasks instead")
+            }
+        }
+
         setupShizukuActivityManager()
+        DetectionTraceRecorder.startSession(
+            backend = BackendImplementation.SHIZUKU,
+            repository = appLockRepository,
+            ownPackage = packageName,
+            excludedApps = SystemExclusionRegistry.snapshot.excludedPackages
+        )
 
         val shizukuStarted = shizukuActivityManager?.start() == true
         if (!shizukuStarted) {
@@ -75,14 +113,28 @@ class ShizukuAppLockService : Service() {
             stopSelf()
             return START_NOT_STICKY
         }
+        DeviceStateCache.addListener(shizukuStateListener)
 
         return START_STICKY
     }
 
+    /** Restarts the service so it picks the lock mode again, as the settings screen does. */
+    private fun restartLockMode() {
+        val intent = Intent(this, ShizukuAppLockService::class.java)
+        stopService(intent)
+        ContextCompat.startForegroundService(this, intent)
+    }
+
     override fun onDestroy() {
         LogUtils.d(TAG, "ShizukuAppLockService killed.")
 
+        DeviceStateCache.removeListener(shizukuStateListener)
+        PackageSuspensionLock.stop(releaseApps = true)
         shizukuActivityManager?.stop()
+        if (usageFailoverActive) {
+            stopService(Intent(this, UsageLockService::class.java))
+            usageFailoverActive = false
+        }
 
         if (isServiceRunning) {
             LogUtils.d(TAG, "Service destroyed unexpectedly. Automatic fallback is disabled.")
@@ -117,6 +169,34 @@ class ShizukuAppLockService : Service() {
         return super.onUnbind(intent)
     }
 
+    /**
+     * The Shizuku binder died: keep this service (and its notification) alive and let the usage
+     * stats service watch the foreground until the binder comes back.
+     */
+    private fun startUsageFailover() {
+        if (usageFailoverActive) return
+        LogUtils.d(TAG, "Shizuku binder died, handing detection to usage stats")
+        BackendFailover.beginSwitch(BackendImplementation.USAGE_STATS)
+        try {
+            val intent = Intent(this, UsageLockService::class.java)
+                .putExtra(UsageLockService.EXTRA_FAILOVER, true)
+            ContextCompat.startForegroundService(this, intent)
+            usageFailoverActive = true
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to start usage stats failover", e)
+        }
+    }
+
+    private fun stopUsageFailover() {
+        LogUtils.d(TAG, "Shizuku binder is back, resuming Shizuku detection")
+        BackendFailover.beginSwitch(BackendImplementation.SHIZUKU)
+        shizukuActivityManager?.pollNow()
+        if (usageFailoverActive) {
+            stopService(Intent(this, UsageLockService::class.java))
+            usageFailoverActive = false
+        }
+    }
+
     private fun isShizukuAvailable(): Boolean {
         return Shizuku.pingBinder() && Shizuku.checkSelfPermission() == PackageManager.PERMISSION_GRANTED
     }
@@ -168,73 +248,42 @@ class ShizukuAppLockService : Service() {
             .build()
     }
 
-    private fun setupShizukuActivityManager() {
-        shizukuActivityManager =
-            ShizukuActivityManager(this, appLockRepository) { packageName, _, timeMillis ->
-                val triggeringPackage = previousForegroundPackage
-                previousForegroundPackage = packageName
-
-                if (AppLockManager.isLockScreenShown.get() || packageName == this.packageName) {
-                    return@ShizukuActivityManager
-                }
-
-                val triggerExclusions = appLockRepository.getTriggerExcludedApps()
-                if (triggeringPackage in triggerExclusions) {
-                    LogUtils.d(
-                        TAG,
-                        "Trigger app $triggeringPackage is excluded, skipping lock for $packageName"
-                    )
-                    return@ShizukuActivityManager
-                }
-
-                LogUtils.d(TAG, "Current package=$packageName, trigger=$triggeringPackage")
-                checkAndLockApp(packageName, triggeringPackage, timeMillis)
-            }
-    }
-
-    private fun checkAndLockApp(packageName: String, triggeringPackage: String, currentTime: Long) {
-        val lockedApps = appLockRepository.getLockedApps()
-
-        if (packageName !in lockedApps) return
-
-        val unlockDurationMinutes = appLockRepository.getUnlockTimeDuration()
-        val unlockTimestamp = AppLockManager.appUnlockTimes[packageName] ?: 0L
-
-        LogUtils.d(
-            TAG,
-            "checkAndLockApp: pkg=$packageName, duration=$unlockDurationMinutes min, unlockTime=$unlockTimestamp, currentTime=$currentTime, isLockScreenShown=${AppLockManager.isLockScreenShown.get()}"
+    private fun recordDecision(
+        decision: FlightRecorder.Decision,
+        reason: FlightRecorder.Reason,
+        packageName: String,
+        triggeringPackage: String = ""
+    ) {
+        FlightRecorder.record(
+            BackendImplementation.SHIZUKU,
+            decision,
+            reason,
+            packageName,
+            triggeringPackage
         )
+    }
 
-        if (unlockDurationMinutes > 0 && unlockTimestamp > 0) {
-            if (unlockDurationMinutes >= 10_000) {
-                return
-            }
-
-            val durationMillis = unlockDurationMinutes.toLong() * 60_000L
-
-            val elapsedMillis = currentTime - unlockTimestamp
-
-            LogUtils.d(
-                TAG,
-                "Grace period check: elapsed=${elapsedMillis}ms (${elapsedMillis / 1000}s), duration=${durationMillis}ms (${durationMillis / 1000}s)"
-            )
-
-            if (elapsedMillis < durationMillis) {
-                return
-            }
-
-            LogUtils.d(TAG, "Unlock grace period expired for $packageName. Clearing timestamp.")
-            AppLockManager.appUnlockTimes.remove(packageName)
-        }
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        FlightRecorder.dump(writer)
+        ForegroundEventBus.dump(writer)
+        writer.println()
+        ShizukuBinderCalls.dump(writer)
+        BackendFailover.dump(writer)
+        HiddenApiAccessors.dump(writer)
+    }
 
-        if (AppLockManager.isLockScreenShown.get()) {
-            LogUtils.d(TAG, "Lock screen already shown, skipping")
-            return
-        }
+    private fun setupShizukuActivityManager() {
+        shizukuActivityManager = ShizukuActivityManager(this, appLockRepository, ::lockApp)
+    }
 
-        LogUtils.d(TAG, "Locked app detected: $packageName. Showing overlay.")
-        AppLockManager.isLockScreenShown.set(true)
+    /** Called on the main thread for the latest lock the state machine decided on. */
+    private fun lockApp(packageName: String, triggeringPackage: String) {
+        if (!AppLockManager.isLockScreenShown.compareAndSet(false, true)) return
+        val lockAttemptId = PerfTrace.beginLockAttempt("shizuku", packageName)
+        showLockScreen(packageName, triggeringPackage, lockAttemptId)
+    }
 
+    private fun showLockScreen(packageName: String, triggeringPackage: String, lockAttemptId: Int) {
         val intent = Intent(this, PasswordOverlayActivity::class.java).apply {
             flags = Intent.FLAG_ACTIVITY_NEW_TASK or
                     Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS or
@@ -243,12 +292,20 @@ class ShizukuAppLockService : Service() {
                     Intent.FLAG_ACTIVITY_REORDER_TO_FRONT
             putExtra("locked_package", packageName)
             putExtra("triggering_package", triggeringPackage)
+            putExtra(PerfTrace.EXTRA_LOCK_ATTEMPT_ID, lockAttemptId)
         }
 
         try {
             startActivity(intent)
         } catch (e: Exception) {
             AppLockManager.isLockScreenShown.set(false)
+            PerfTrace.endLockAttempt(lockAttemptId)
+            recordDecision(
+                FlightRecorder.Decision.SKIP,
+                FlightRecorder.Reason.OVERLAY_FAILED,
+                packageName,
+                triggeringPackage
+            )
             Log.e(TAG, "Failed to start password overlay: ${e.message}", e)
         }
     }
@@ -0,0 +1,162 @@
+package dev.pranav.applock.services
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.database.ContentObserver
+import android.os.Handler
+import android.os.Looper
+import android.provider.Settings
+import android.util.Log
+import android.view.inputmethod.InputMethodManager
+import androidx.core.content.getSystemService
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * The packages every backend leaves alone or treats specially: our own package, the enabled
+ * keyboards, the launchers and [AppLockConstants.EXCLUDED_APPS].
+ *
+ * Resolving keyboards and launchers takes binder calls, so they are resolved once and kept in an
+ * immutable [Snapshot] that backends read with a single volatile load on every event or tick.
+ * The snapshot is rebuilt when the enabled input methods change, when packages are installed,
+ * removed or changed, and when the device is unlocked (changing the default home app sends no
+ * broadcast).
+ */
+object SystemExclusionRegistry {
+    private const val TAG = "SystemExclusionRegistry"
+
+    class Snapshot(
+        val ownPackage: String,
+        val keyboardPackages: Set<String>,
+        /** The first system launcher other than us, or "" if there is none. */
+        val systemLauncher: String,
+        /** Every package with a home activity, except us. */
+        val launcherPackages: Set<String>,
+        /** Our own package, the keyboards and [AppLockConstants.EXCLUDED_APPS]. */
+        val excludedPackages: Set<String>
+    ) {
+        fun isExcluded(packageName: String): Boolean = packageName in excludedPackages
+    }
+
+    @Volatile
+    var snapshot = Snapshot("", emptySet(), "", emptySet(), AppLockConstants.EXCLUDED_APPS)
+        private set
+
+    private val listeners = CopyOnWriteArrayList<() -> Unit>()
+    private lateinit var context: Context
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    private val inputMethodObserver by lazy {
+        object : ContentObserver(mainHandler) {
+            override fun onChange(selfChange: Boolean) {
+                refresh()
+            }
+        }
+    }
+
+    private val packageReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context?, intent: Intent?) {
+            refresh()
+        }
+    }
+
+    fun initialize(context: Context) {
+        if (this::context.isInitialized) return
+        this.context = context.applicationContext
+        refresh()
+
+        try {
+            this.context.contentResolver.registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.ENABLED_INPUT_METHODS),
+                false,
+                inputMethodObserver
+            )
+
+            val packageFilter = IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addAction(Intent.ACTION_PACKAGE_CHANGED)
+                addAction(Intent.ACTION_PACKAGE_REPLACED)
+                addDataScheme("package")
+            }
+            this.context.registerReceiver(packageReceiver, packageFilter)
+            this.context.registerReceiver(packageReceiver, IntentFilter(Intent.ACTION_USER_PRESENT))
+        } catch (e: Exception) {
+            Log.e(TAG, "Error registering change observers", e)
+        }
+    }
+
+    /**
+     * Registers [listener] to be called on the main thread after the snapshot changed.
+     */
+    fun addListener(listener: () -> Unit) {
+        listeners.add(listener)
+    }
+
+    fun removeListener(listener: () -> Unit) {
+        listeners.remove(listener)
+    }
+
+    fun refresh() {
+        if (!this::context.isInitialized) return
+
+        try {
+            val ownPackage = context.packageName
+            val keyboards = getKeyboardPackageNames()
+            val homeIntent = Intent(Intent.ACTION_MAIN).apply {
+                addCategory(Intent.CATEGORY_HOME)
+            }
+            val homeActivities = context.packageManager.queryIntentActivities(
+                homeIntent,
+                PackageManager.MATCH_DEFAULT_ONLY
+            )
+            val launchers = homeActivities
+                .map { it.activityInfo.packageName }
+                .filterTo(HashSet()) { it != ownPackage }
+            val systemLauncher = homeActivities.find { resolveInfo ->
+                val isSystemApp = (resolveInfo.activityInfo.applicationInfo.flags and
+                        ApplicationInfo.FLAG_SYSTEM) != 0
+                isSystemApp && resolveInfo.activityInfo.packageName != ownPackage
+            }?.activityInfo?.packageName.orEmpty()
+
+            if (systemLauncher.isEmpty()) {
+                Log.w(TAG, "Could not find a clear system launcher package name.")
+            }
+
+            val excluded = HashSet<String>(AppLockConstants.EXCLUDED_APPS.size + keyboards.size + 1)
+            excluded.add(ownPackage)
+            excluded.addAll(keyboards)
+            excluded.addAll(AppLockConstants.EXCLUDED_APPS)
+
+            val previous = snapshot
+            if (previous.ownPackage == ownPackage &&
+                previous.keyboardPackages == keyboards &&
+                previous.systemLauncher == systemLauncher &&
+                previous.launcherPackages == launchers
+            ) {
+                return
+            }
+
+            snapshot = Snapshot(ownPackage, keyboards, systemLauncher, launchers, excluded)
+            Log.d(TAG, "Updated: ${keyboards.size} keyboards, launcher=$systemLauncher")
+            listeners.forEach { listener -> mainHandler.post(listener) }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error refreshing system exclusions", e)
+        }
+    }
+
+    private fun getKeyboardPackageNames(): Set<String> {
+        return try {
+            context.getSystemService<InputMethodManager>()
+                ?.enabledInputMethodList
+                ?.mapTo(HashSet()) { it.packageName }
+                ?: emptySet()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error getting keyboard package names", e)
+            emptySet()
+        }
+    }
+}
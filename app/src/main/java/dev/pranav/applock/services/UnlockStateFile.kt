@@ -0,0 +1,168 @@
+package dev.pranav.applock.services
+
+import android.content.Context
+import android.os.SystemClock
+import android.provider.Settings
+import android.util.Log
+import dev.pranav.lockcore.UnlockSessionTable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Mirror of the unlock sessions in a small memory-mapped file, so a lock service that Android
+ * killed and restarted does not ask again for an app the user just unlocked.
+ *
+ * The file is mapped once; every write after that is a copy into the page cache, which the
+ * kernel keeps even when our process dies. A sequence number that is odd while a write is in
+ * progress makes a write torn by the process being killed read as empty, and the boot count in
+ * the header drops the sessions of a previous boot. Screen off clears the table, which empties
+ * the file too.
+ *
+ * The lock screen state is deliberately not restored: the overlay and the lock screen activity
+ * die with the process, so a new process correctly starts with no lock screen shown.
+ */
+class UnlockStateFile private constructor(
+    private val buffer: MappedByteBuffer,
+    private val bootCount: Int
+) {
+
+    /**
+     * Loads the sessions saved in this boot into [table]. Returns how many were restored.
+     */
+    fun restoreInto(table: UnlockSessionTable): Int {
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC ||
+            buffer.getInt(OFFSET_VERSION) != VERSION ||
+            buffer.getInt(OFFSET_BOOT_COUNT) != bootCount ||
+            buffer.getLong(OFFSET_SEQUENCE) % 2L != 0L
+        ) {
+            return 0
+        }
+
+        val count = buffer.getInt(OFFSET_COUNT).coerceIn(0, SLOT_COUNT)
+        val temporarySlot = buffer.getInt(OFFSET_TEMPORARY_SLOT)
+        val unlockTimes = HashMap<String, Long>(count)
+        var temporarilyUnlockedApp = ""
+        val name = ByteArray(MAX_NAME_BYTES)
+
+        for (slot in 0 until count) {
+            val offset = slotOffset(slot)
+            val length = buffer.getShort(offset + SLOT_NAME_LENGTH).toInt()
+            if (length !in 1..MAX_NAME_BYTES) continue
+            buffer.position(offset + SLOT_NAME)
+            buffer.get(name, 0, length)
+            val packageName = String(name, 0, length, Charsets.UTF_8)
+
+            val unlockedAt = buffer.getLong(offset + SLOT_UNLOCKED_AT)
+            if (unlockedAt > 0) unlockTimes[packageName] = unlockedAt
+            if (slot == temporarySlot) temporarilyUnlockedApp = packageName
+        }
+
+        table.restore(unlockTimes, temporarilyUnlockedApp)
+        return unlockTimes.size
+    }
+
+    /**
+     * Writes [state] over the previous one. Called under the table's lock, so writes never
+     * interleave.
+     */
+    fun write(state: UnlockSessionTable.State) {
+        val sequence = buffer.getLong(OFFSET_SEQUENCE)
+        val writing = if (sequence % 2L == 0L) sequence + 1 else sequence + 2
+        buffer.putLong(OFFSET_SEQUENCE, writing)
+
+        buffer.putInt(OFFSET_MAGIC, MAGIC)
+        buffer.putInt(OFFSET_VERSION, VERSION)
+        buffer.putInt(OFFSET_BOOT_COUNT, bootCount)
+
+        var slot = 0
+        var temporarySlot = -1
+        for (session in state.sessions.values) {
+            if (slot == SLOT_COUNT) break
+            if (writeSlot(slot, session.packageName, session.unlockedAt)) {
+                if (session.packageName == state.temporarilyUnlockedApp) temporarySlot = slot
+                slot++
+            }
+        }
+        // The temporarily unlocked app may have no timed session, e.g. a restored grace period
+        if (temporarySlot < 0 && state.temporarilyUnlockedApp.isNotEmpty() && slot < SLOT_COUNT &&
+            writeSlot(slot, state.temporarilyUnlockedApp, 0L)
+        ) {
+            temporarySlot = slot++
+        }
+
+        buffer.putInt(OFFSET_COUNT, slot)
+        buffer.putInt(OFFSET_TEMPORARY_SLOT, temporarySlot)
+        buffer.putLong(OFFSET_SEQUENCE, writing + 1)
+    }
+
+    private fun writeSlot(slot: Int, packageName: String, unlockedAt: Long): Boolean {
+        val name = packageName.toByteArray(Charsets.UTF_8)
+        if (name.size > MAX_NAME_BYTES) return false
+
+        val offset = slotOffset(slot)
+        buffer.putLong(offset + SLOT_UNLOCKED_AT, unlockedAt)
+        buffer.putShort(offset + SLOT_NAME_LENGTH, name.size.toShort())
+        buffer.position(offset + SLOT_NAME)
+        buffer.put(name)
+        return true
+    }
+
+    private fun slotOffset(slot: Int): Int = HEADER_SIZE + slot * SLOT_SIZE
+
+    companion object {
+        private const val TAG = "UnlockStateFile"
+        private const val FILE_NAME = "unlock_state"
+
+        private const val MAGIC = 0x554C4B53 // "ULKS"
+        private const val VERSION = 1
+
+        private const val OFFSET_MAGIC = 0
+        private const val OFFSET_VERSION = 4
+        private const val OFFSET_BOOT_COUNT = 8
+        private const val OFFSET_COUNT = 12
+        private const val OFFSET_TEMPORARY_SLOT = 16
+        private const val OFFSET_SEQUENCE = 24
+        private const val HEADER_SIZE = 32
+
+        // Fixed-size slots: unlock time, name length, then the UTF-8 package name
+        private const val SLOT_UNLOCKED_AT = 0
+        private const val SLOT_NAME_LENGTH = 8
+        private const val SLOT_NAME = 10
+        private const val SLOT_SIZE = 256
+        private const val MAX_NAME_BYTES = SLOT_SIZE - SLOT_NAME
+        private const val SLOT_COUNT = 32
+
+        private const val FILE_SIZE = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE
+
+        /**
+         * Maps the state file in no-backup storage, creating it if needed. Returns null if the
+         * file cannot be mapped; unlock state then just does not survive the process.
+         */
+        fun open(context: Context): UnlockStateFile? {
+            return try {
+                val file = File(context.noBackupFilesDir, FILE_NAME)
+                val buffer = RandomAccessFile(file, "rw").use { raf ->
+                    // The mapping stays valid after the channel is closed
+                    raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE.toLong())
+                }
+                UnlockStateFile(buffer, bootCount(context))
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to map unlock state file", e)
+                null
+            }
+        }
+
+        private fun bootCount(context: Context): Int {
+            val bootCount = Settings.Global.getInt(
+                context.contentResolver,
+                Settings.Global.BOOT_COUNT,
+                -1
+            )
+            if (bootCount >= 0) return bootCount
+            // Some ROMs do not keep the count; the boot time in minutes tells boots apart too
+            return ((System.currentTimeMillis() - SystemClock.elapsedRealtime()) / 60_000L).toInt()
+        }
+    }
+}
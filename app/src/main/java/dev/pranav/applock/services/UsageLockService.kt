@@ -13,20 +13,33 @@ import android.content.pm.ServiceInfo
 import android.os.Build
 import android.os.IBinder
 import android.util.Log
-import android.view.inputmethod.InputMethodManager
 import androidx.annotation.RequiresApi
 import androidx.core.app.NotificationCompat
 import androidx.core.content.ContextCompat
 import androidx.core.content.getSystemService
 import dev.pranav.applock.R
 import dev.pranav.applock.core.broadcast.DeviceAdmin
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.FlightRecorder
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
+import dev.pranav.applock.core.utils.StartupTrace
 import dev.pranav.applock.core.utils.appLockRepository
+import dev.pranav.applock.core.utils.ensureProtectionInitialized
 import dev.pranav.applock.core.utils.hasUsagePermission
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.data.repository.AppLockRepository.Companion.shouldStartService
 import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.features.lockscreen.ui.PasswordOverlayActivity
+import dev.pranav.lockcore.ForegroundEvent
+import dev.pranav.lockcore.ForegroundPhase
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.Transition
+import dev.pranav.lockcore.detection.UsageForegroundResolver
+import dev.pranav.lockcore.replay.SystemAction
+import dev.pranav.lockcore.replay.TraceRecord
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.util.Timer
 import kotlin.concurrent.timerTask
 
@@ -36,6 +49,12 @@ class UsageLockService: Service() {
     private val CHANNEL_ID = "UsageLockServiceChannel"
 
     companion object {
+        /**
+         * Set by [ShizukuAppLockService] when it hands detection over while the Shizuku binder
+         * is dead. The Shizuku service stays the active backend and stops us when it recovers.
+         */
+        const val EXTRA_FAILOVER = "failover"
+
         @Volatile
         var isServiceRunning = false
     }
@@ -44,46 +63,100 @@ class UsageLockService: Service() {
     private val usageStatsManager: UsageStatsManager by lazy { getSystemService()!! }
     private val notificationManager: NotificationManager by lazy { getSystemService()!! }
     private val biometricAuthStarted by lazy { AppLockAccessibilityService.BiometricState.AUTH_STARTED.toString() }
+    private val foregroundResolver by lazy {
+        UsageForegroundResolver(packageName, isLocked = appLockRepository::isAppLocked)
+    }
+
+    // Fed from the poll timer and, on screen changes, the main thread, so used under its lock
+    private val foregroundMachine by lazy {
+        ForegroundStateMachine(
+            sessions = AppLockManager.unlockSessions,
+            ownPackage = packageName,
+            isExcluded = { SystemExclusionRegistry.snapshot.isExcluded(it) },
+            isLocked = { it in appLockRepository.getLockedApps() },
+            isTriggerExcluded = { it in appLockRepository.getTriggerExcludedApps() },
+            isLockScreenShown = {
+                AppLockManager.isLockScreenShown.get() ||
+                        AppLockManager.currentBiometricState.toString() == biometricAuthStarted
+            }
+        )
+    }
+
+    private val eventBus = ForegroundEventBus(BackendImplementation.USAGE_STATS)
 
     private var timer: Timer? = null
-    private var previousForegroundPackage = ""
+    private var lastHomeTime = 0L
     private var pauseMonitoring = false
 
-    private val screenStateReceiver = object: android.content.BroadcastReceiver() {
-        override fun onReceive(context: android.content.Context?, intent: Intent?) {
-            if (intent?.action == Intent.ACTION_SCREEN_OFF) {
-                LogUtils.d(
-                    TAG,
-                    "Screen off detected in Usage Stats fallback. Resetting AppLock state."
+    // Standing in for the Shizuku backend, which owns the lock screen state
+    private var isFailover = false
+
+    private val deviceStateListener = object : DeviceStateCache.Listener {
+        override fun onScreenOff() {
+            LogUtils.d(
+                TAG,
+                "Screen off detected in Usage Stats fallback. Resetting AppLock state."
+            )
+            FlightRecorder.record(
+                BackendImplementation.USAGE_STATS,
+                FlightRecorder.Decision.RESET,
+                FlightRecorder.Reason.SCREEN_OFF,
+                ""
+            )
+            val time = System.currentTimeMillis()
+            DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.SCREEN_OFF) }
+            AppLockManager.isLockScreenShown.set(false)
+            synchronized(foregroundMachine) {
+                eventBus.publish(
+                    foregroundMachine.onEvent(ForegroundEvent.SCREEN_OFF, time = time),
+                    "",
+                    foregroundMachine,
+                    time
                 )
-                AppLockManager.isLockScreenShown.set(false)
-                AppLockManager.clearTemporarilyUnlockedApp()
-                previousForegroundPackage = ""
-                pauseMonitoring = true
-            } else if (intent?.action == Intent.ACTION_USER_PRESENT) {
-                pauseMonitoring = false
             }
+            pauseMonitoring = true
         }
+
+        override fun onUserPresent() {
+            val time = System.currentTimeMillis()
+            DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.USER_PRESENT) }
+            synchronized(foregroundMachine) {
+                foregroundMachine.onEvent(ForegroundEvent.USER_PRESENT, time = time)
+            }
+            pauseMonitoring = false
+        }
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        ensureProtectionInitialized()
     }
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
-        if (!shouldStartService(appLockRepository, this::class.java) || !hasUsagePermission()) {
+        isFailover = intent?.getBooleanExtra(EXTRA_FAILOVER, false) == true
+        val isNeeded = isFailover || shouldStartService(appLockRepository, this::class.java)
+        if (!isNeeded || !hasUsagePermission()) {
             Log.e(TAG, "Permissions missing or service not needed. Stopping service.")
             stopSelf()
             return START_NOT_STICKY
         }
 
         isServiceRunning = true
-        appLockRepository.setActiveBackend(BackendImplementation.USAGE_STATS)
-        AppLockManager.stopAllOtherServices(this, this::class.java)
-        AppLockManager.isLockScreenShown.set(false)
-
-        val filter = android.content.IntentFilter().apply {
-            addAction(Intent.ACTION_SCREEN_OFF)
-            addAction(Intent.ACTION_USER_PRESENT)
+        DetectionTraceRecorder.startSession(
+            backend = BackendImplementation.USAGE_STATS,
+            repository = appLockRepository,
+            ownPackage = packageName,
+            excludedApps = SystemExclusionRegistry.snapshot.excludedPackages
+        )
+        if (!isFailover) {
+            appLockRepository.setActiveBackend(BackendImplementation.USAGE_STATS)
+            AppLockManager.stopAllOtherServices(this, this::class.java)
+            AppLockManager.isLockScreenShown.set(false)
         }
-        registerReceiver(screenStateReceiver, filter)
 
+        DeviceStateCache.addListener(deviceStateListener)
+
+        eventBus.start { lockApp(it.packageName, it.triggeringPackage) }
         startMonitoringTimer()
         startForegroundService()
 
@@ -93,15 +166,13 @@ class UsageLockService: Service() {
     override fun onDestroy() {
         isServiceRunning = false
         timer?.cancel()
+        eventBus.stop()
         LogUtils.d(TAG, "Service destroyed")
 
-        try {
-            unregisterReceiver(screenStateReceiver)
-        } catch (_: IllegalArgumentException) {
-            Log.w(TAG, "Receiver not registered or already unregistered")
-        }
+        DeviceStateCache.removeListener(deviceStateListener)
 
-        AppLockManager.isLockScreenShown.set(false)
+        // A lock screen this failover opened may still be up when Shizuku takes over again
+        if (!isFailover) AppLockManager.isLockScreenShown.set(false)
         notificationManager.cancel(NOTIFICATION_ID)
         super.onDestroy()
     }
@@ -125,69 +196,69 @@ class UsageLockService: Service() {
         timer?.cancel()
         timer = Timer("AppLockUsageStatsMonitor", true)
         timer?.schedule(timerTask {
-            safeMonitorForegroundApp()
+            PerfTrace.section("AppLock:usagePoll") {
+                safeMonitorForegroundApp()
+            }
         }, 0, 250)
     }
 
     private fun safeMonitorForegroundApp() {
         try {
-            if (!appLockRepository.isProtectEnabled() || applicationContext.isDeviceLocked()) {
-                if (applicationContext.isDeviceLocked()) {
-                    AppLockManager.appUnlockTimes.clear()
-                    previousForegroundPackage = ""
+            BackendFailover.onProtected(BackendImplementation.USAGE_STATS)
+            BackendCalibrator.onWakeup(BackendImplementation.USAGE_STATS)
+            StartupTrace.onProtected(BackendImplementation.USAGE_STATS)
+            if (!appLockRepository.isProtectEnabled()) return
+
+            val machine = foregroundMachine
+            synchronized(machine) {
+                val time = System.currentTimeMillis()
+                machine.syncDeviceLocked(DeviceStateCache.isKeyguardLocked, time)
+                if (machine.phase == ForegroundPhase.SCREEN_OFF) return
+
+                val currentPackage = getCurrentForegroundAppPackage(time) ?: return
+                val previousForeground = machine.foregroundPackage
+                val transition = PerfTrace.section("AppLock:decide") {
+                    machine.onEvent(ForegroundEvent.APP_FOREGROUND, currentPackage, time)
                 }
-                return
-            }
-
-            val foregroundApp = getCurrentForegroundAppPackage() ?: return
-            val currentPackage = foregroundApp.first
-            val triggeringPackage = previousForegroundPackage
-            previousForegroundPackage = currentPackage
+                FlightRecorder.recordTransition(
+                    BackendImplementation.USAGE_STATS,
+                    machine,
+                    transition,
+                    currentPackage,
+                    previousForeground,
+                    time
+                )
+                eventBus.publish(transition, currentPackage, machine, time)
 
-            Log.d(
-                "Usage",
-                "cur: $currentPackage, prev: $triggeringPackage, unlocked ${
-                    AppLockManager.isAppTemporarilyUnlocked(currentPackage)
-                }"
-            )
+                when (transition) {
+                    Transition.LOCK -> {
+                        LogUtils.d(TAG, "Locked app: $currentPackage. Showing overlay.")
+                        DetectionTraceRecorder.record { TraceRecord.ExpectLock(time, currentPackage) }
+                    }
 
-            if (isExclusionApp(currentPackage)) return
+                    Transition.LOCK_SCREEN_SHOWN -> LogUtils.d(
+                        TAG,
+                        "Lock screen already shown or biometric auth in progress, skipping"
+                    )
 
-            if (triggeringPackage in appLockRepository.getTriggerExcludedApps()) {
-                return
+                    else -> Unit
+                }
             }
-
-            if (currentPackage == triggeringPackage && AppLockManager.isAppTemporarilyUnlocked(
-                    currentPackage
-                )
-            ) return
-
-            checkAndLockApp(currentPackage, triggeringPackage, System.currentTimeMillis())
         } catch (e: Exception) {
             Log.e(TAG, "Unexpected error in Usage Stats monitoring task", e)
         }
     }
 
-    private fun isExclusionApp(packageName: String): Boolean {
-        val keyboardPackages = getSystemService<InputMethodManager>()
-            ?.enabledInputMethodList
-            ?.map { it.packageName }
-            ?: emptyList()
-
-        return packageName == this.packageName ||
-                packageName in keyboardPackages ||
-                packageName in AppLockConstants.EXCLUDED_APPS
-    }
-
     /**
-     * Returns the foreground package name and class name, or null if filtered.
+     * Returns the foreground package name, or null if filtered. Feeds the launcher coming to the
+     * front to the state machine on the way, once per launch although each window overlaps the
+     * previous poll's.
      */
-    private fun getCurrentForegroundAppPackage(): Pair<String, String>? {
-        val time = System.currentTimeMillis()
+    private fun getCurrentForegroundAppPackage(time: Long): String? {
         val events = usageStatsManager.queryEvents(time - 3000, time)
         val event = UsageEvents.Event()
-        var recentApp: Pair<String, String>? = null
-        var recentAppTime = 0L
+        foregroundResolver.begin()
+        DetectionTraceRecorder.record { TraceRecord.UsageQuery(time) }
 
         while (events.hasNextEvent()) {
             events.getNextEvent(event)
@@ -197,75 +268,44 @@ class UsageLockService: Service() {
                 "${event.eventType} ${event.className} ${event.packageName} ${event.timeStamp} ${event.configuration} ${event.appStandbyBucket}"
             )
 
-            if (event.eventType != UsageEvents.Event.ACTIVITY_RESUMED && event.eventType != UsageEvents.Event.USER_INTERACTION) continue
-
-            if (event.packageName == baseContext.packageName || event.className in AppLockConstants.KNOWN_RECENTS_CLASSES) {
-                recentApp = null
-                continue
-            }
-
-            if (event.className == "com.android.launcher3.uioverrides.QuickstepLauncher" && event.timeStamp != recentAppTime) {
-                recentApp = null
-                AppLockManager.clearTemporarilyUnlockedApp()
-                continue
-            }
-
-            Log.d(TAG, "recent event ${event.eventType} ${event.className} ${event.packageName}")
-
-            if (recentAppTime == event.timeStamp && recentApp?.first != null && appLockRepository.isAppLocked(
-                    recentApp!!.first
+            DetectionTraceRecorder.record {
+                TraceRecord.UsageEvent(
+                    event.timeStamp,
+                    event.eventType,
+                    event.packageName,
+                    event.className
                 )
-            ) {
-                continue
-            }
-
-            recentAppTime = event.timeStamp
-            recentApp = Pair(event.packageName, event.className)
-        }
-        return recentApp
-    }
-
-    private fun checkAndLockApp(packageName: String, triggeringPackage: String, currentTime: Long) {
-        val lockedApps = appLockRepository.getLockedApps()
-        if (packageName !in lockedApps) return
-
-        val unlockDurationMinutes = appLockRepository.getUnlockTimeDuration()
-        val unlockTimestamp = AppLockManager.appUnlockTimes[packageName] ?: 0L
-
-        LogUtils.d(
-            TAG,
-            "checkAndLockApp: pkg=$packageName, duration=$unlockDurationMinutes min, unlockTime=$unlockTimestamp, currentTime=$currentTime, isLockScreenShown=${AppLockManager.isLockScreenShown.get()}"
-        )
-
-        if (unlockDurationMinutes > 0 && unlockTimestamp > 0) {
-            if (unlockDurationMinutes >= 10_000) {
-                return
             }
 
-            val durationMillis = unlockDurationMinutes.toLong() * 60_000L
-
-            val elapsedMillis = currentTime - unlockTimestamp
-
-            LogUtils.d(
-                TAG,
-                "Grace period check: elapsed=${elapsedMillis}ms (${elapsedMillis / 1000}s), duration=${durationMillis}ms (${durationMillis / 1000}s)"
+            BackendCalibrator.onForegroundObserved(BackendImplementation.USAGE_STATS, event.className)
+            val isHome = foregroundResolver.onEvent(
+                event.eventType,
+                event.packageName,
+                event.className,
+                event.timeStamp
             )
-
-            if (elapsedMillis < durationMillis) {
-                return
+            if (isHome && event.timeStamp > lastHomeTime) {
+                lastHomeTime = event.timeStamp
+                recordDecision(
+                    FlightRecorder.Decision.FOREGROUND,
+                    FlightRecorder.Reason.HOME,
+                    event.packageName
+                )
+                eventBus.publish(
+                    foregroundMachine.onEvent(ForegroundEvent.HOME, event.packageName, time),
+                    event.packageName,
+                    foregroundMachine,
+                    time
+                )
             }
-
-            LogUtils.d(TAG, "Unlock grace period expired for $packageName. Clearing timestamp.")
-            AppLockManager.appUnlockTimes.remove(packageName)
-        }
-
-        if (AppLockManager.isLockScreenShown.get() || AppLockManager.currentBiometricState.toString() == biometricAuthStarted) {
-            LogUtils.d(TAG, "Lock screen already shown or biometric auth in progress, skipping")
-            return
         }
+        return foregroundResolver.foregroundPackage
+    }
 
-        LogUtils.d(TAG, "Locked app: $packageName. Showing overlay.")
-        AppLockManager.isLockScreenShown.set(true)
+    /** Runs on the main thread for the latest lock the [eventBus] delivers. */
+    private fun lockApp(packageName: String, triggeringPackage: String) {
+        if (!AppLockManager.isLockScreenShown.compareAndSet(false, true)) return
+        val lockAttemptId = PerfTrace.beginLockAttempt("usageStats", packageName)
 
         val intent = Intent(this, PasswordOverlayActivity::class.java).apply {
             flags = Intent.FLAG_ACTIVITY_NEW_TASK or
@@ -275,16 +315,44 @@ class UsageLockService: Service() {
                     Intent.FLAG_ACTIVITY_REORDER_TO_FRONT
             putExtra("locked_package", packageName)
             putExtra("triggering_package", triggeringPackage)
+            putExtra(PerfTrace.EXTRA_LOCK_ATTEMPT_ID, lockAttemptId)
         }
 
         try {
             startActivity(intent)
         } catch (e: Exception) {
             Log.e(TAG, "Error starting overlay for: $packageName", e)
+            recordDecision(
+                FlightRecorder.Decision.SKIP,
+                FlightRecorder.Reason.OVERLAY_FAILED,
+                packageName,
+                triggeringPackage
+            )
             AppLockManager.isLockScreenShown.set(false)
+            PerfTrace.endLockAttempt(lockAttemptId)
         }
     }
 
+    private fun recordDecision(
+        decision: FlightRecorder.Decision,
+        reason: FlightRecorder.Reason,
+        packageName: String,
+        triggeringPackage: String = ""
+    ) {
+        FlightRecorder.record(
+            BackendImplementation.USAGE_STATS,
+            decision,
+            reason,
+            packageName,
+            triggeringPackage
+        )
+    }
+
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        FlightRecorder.dump(writer)
+        ForegroundEventBus.dump(writer)
+    }
+
     private fun startForegroundService() {
         createNotificationChannel()
         val notification = createNotification()
@@ -0,0 +1,105 @@
+package dev.pranav.applock.shizuku
+
+import android.app.TaskInfo
+import android.util.Log
+import org.lsposed.hiddenapibypass.HiddenApiBypass
+import java.io.PrintWriter
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Method
+
+/**
+ * Hidden fields and methods read on the task polling path.
+ *
+ * Each one is looked up once through [HiddenApiBypass] and turned into a [MethodHandle] typed
+ * `(Object)boolean`, so reading it per task is a direct handle call without a reflective search
+ * or boxing. ROMs that removed or renamed a member just get the accessor's default; what could
+ * be resolved is logged by [initialize] and written to the Shizuku service's dumpsys output.
+ */
+object HiddenApiAccessors {
+    private const val TAG = "HiddenApiAccessors"
+
+    private val BOOLEAN_GETTER_TYPE =
+        MethodType.methodType(java.lang.Boolean.TYPE, Any::class.java)
+
+    class BooleanAccessor internal constructor(
+        val name: String,
+        private val handle: MethodHandle?,
+        private val default: Boolean
+    ) {
+        val isAvailable: Boolean
+            get() = handle != null
+
+        fun get(target: Any): Boolean {
+            val handle = handle ?: return default
+            return try {
+                handle.invokeExact(target) as Boolean
+            } catch (_: Throwable) {
+                default
+            }
+        }
+    }
+
+    val taskIsFocused: BooleanAccessor by lazy {
+        booleanField(TaskInfo::class.java, "isFocused", default = false)
+    }
+
+    val taskIsFreeform: BooleanAccessor by lazy {
+        booleanMethod(TaskInfo::class.java, "isFreeform", default = false)
+    }
+
+    private val all: List<BooleanAccessor>
+        get() = listOf(taskIsFocused, taskIsFreeform)
+
+    /**
+     * Resolves every accessor. Must run after the hidden API exemptions are in place.
+     */
+    fun initialize() {
+        val missing = all.filterNot { it.isAvailable }.map { it.name }
+        if (missing.isEmpty()) {
+            Log.d(TAG, "All hidden API accessors resolved")
+        } else {
+            Log.w(TAG, "Hidden API accessors missing on this ROM: ${missing.joinToString()}")
+        }
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println("Hidden API accessors:")
+        all.forEach { writer.println("  ${it.name}: ${if (it.isAvailable) "ok" else "missing"}") }
+    }
+
+    private fun booleanField(owner: Class<*>, name: String, default: Boolean): BooleanAccessor {
+        val handle = try {
+            HiddenApiBypass.getInstanceFields(owner)
+                .firstOrNull { it.name == name && it.type == java.lang.Boolean.TYPE }
+                ?.let { field ->
+                    field.isAccessible = true
+                    MethodHandles.lookup().unreflectGetter(field).asType(BOOLEAN_GETTER_TYPE)
+                }
+        } catch (e: Throwable) {
+            Log.e(TAG, "Error resolving field ${owner.simpleName}.$name", e)
+            null
+        }
+        return BooleanAccessor("${owner.simpleName}.$name", handle, default)
+    }
+
+    private fun booleanMethod(owner: Class<*>, name: String, default: Boolean): BooleanAccessor {
+        val handle = try {
+            HiddenApiBypass.getDeclaredMethods(owner)
+                .filterIsInstance<Method>()
+                .firstOrNull {
+                    it.name == name && it.parameterCount == 0 &&
+                            it.returnType == java.lang.Boolean.TYPE
+                }
+                ?.let { method ->
+                    method.isAccessible = true
+                    MethodHandles.lookup().unreflect(method).asType(BOOLEAN_GETTER_TYPE)
+                }
+        } catch (e: Throwable) {
+            Log.e(TAG, "Error resolving method ${owner.simpleName}.$name()", e)
+            null
+        }
+        return BooleanAccessor("${owner.simpleName}.$name()", handle, default)
+    }
+}
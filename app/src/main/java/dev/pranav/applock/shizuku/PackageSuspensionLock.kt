@@ -0,0 +1,269 @@
+package dev.pranav.applock.shizuku
+
+import android.content.Context
+import android.content.Intent
+import android.content.SharedPreferences
+import android.content.pm.IPackageManager
+import android.content.pm.SuspendDialogInfo
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Process
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.core.content.edit
+import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.data.repository.AppLockRepository
+import dev.pranav.applock.services.DeviceStateCache
+import dev.pranav.lockcore.LockDecider
+import rikka.shizuku.Shizuku
+import rikka.shizuku.ShizukuBinderWrapper
+import rikka.shizuku.SystemServiceHelper
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lock mode that suspends the locked apps instead of watching the foreground.
+ *
+ * The system then refuses to launch them and shows our message in its "app not available"
+ * dialog, whose "More details" button opens the lock screen for the app. Unlocking unsuspends
+ * only that app until the screen turns off or the unlock duration runs out, after which every
+ * app unlocked in the meantime is suspended again in one call. Nothing polls, and a locked app
+ * is never drawn before the lock screen.
+ *
+ * Without a foreground monitor there is no way to tell when an unlocked app is left, so this mode
+ * needs an unlock duration; with "Lock immediately" the Shizuku backend watches tasks instead.
+ *
+ * Suspensions are made in our name, so the system lifts them by itself if AppLock is
+ * uninstalled. Only root can suspend on behalf of another package, so [isSupported] requires
+ * Shizuku to run as root; under adb the Shizuku backend keeps polling.
+ */
+object PackageSuspensionLock {
+    private const val TAG = "PackageSuspensionLock"
+    private const val PREFS_NAME = "package_suspension"
+    private const val KEY_SUSPENDED = "suspended_packages"
+
+    @Volatile
+    var isActive = false
+        private set
+
+    private lateinit var context: Context
+    private lateinit var appLockRepository: AppLockRepository
+    private lateinit var prefs: SharedPreferences
+    private var onUnavailable: () -> Unit = {}
+
+    // Kept across start/stop so a release from stop() runs before the next start() reloads
+    private val handler by lazy {
+        Handler(HandlerThread("PackageSuspension").apply { start() }.looper)
+    }
+
+    // Only touched on the suspension thread
+    private val suspended = HashSet<String>()
+    private val unlocked = HashSet<String>()
+
+    private val packageManager: IPackageManager by lazy {
+        SystemServiceHelper.getSystemService("package")
+            .let(::ShizukuBinderWrapper)
+            .let(IPackageManager.Stub::asInterface)
+    }
+
+    private val userId: Int
+        get() = Process.myUid() / PER_USER_RANGE
+
+    private val resuspendRunnable = Runnable { resuspendUnlocked() }
+
+    private val lockedAppsListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+        if (!canLockWith(appLockRepository)) {
+            onUnavailable()
+            return@OnSharedPreferenceChangeListener
+        }
+        handler.post { syncWithLockedApps() }
+    }
+
+    private val deviceStateListener = object : DeviceStateCache.Listener {
+        override fun onScreenOff() {
+            handler.post { resuspendUnlocked() }
+        }
+    }
+
+    fun isSupported(): Boolean {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                DeviceStateCache.isShizukuAlive &&
+                Shizuku.getUid() == 0
+    }
+
+    /** Whether the settings allow this mode: an unlock duration other than "Lock immediately". */
+    fun canLockWith(appLockRepository: AppLockRepository): Boolean =
+        appLockRepository.getUnlockTimeDuration() > 0
+
+    /**
+     * Starts the mode. [onUnavailable] is called on the main thread if the settings stop
+     * allowing it, see [canLockWith], so the caller can switch to watching tasks.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    fun start(
+        context: Context,
+        appLockRepository: AppLockRepository,
+        onUnavailable: () -> Unit
+    ) {
+        if (isActive) return
+        this.context = context.applicationContext
+        this.appLockRepository = appLockRepository
+        this.onUnavailable = onUnavailable
+        prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        isActive = true
+
+        handler.post {
+            suspended.clear()
+            suspended.addAll(prefs.getStringSet(KEY_SUSPENDED, emptySet()).orEmpty())
+            unlocked.clear()
+            syncWithLockedApps()
+        }
+        appLockRepository.registerOnChangeListener(lockedAppsListener)
+        DeviceStateCache.addListener(deviceStateListener)
+        Log.d(TAG, "Package suspension lock started")
+    }
+
+    /**
+     * Stops the mode. With [releaseApps] every app we suspended is unsuspended, which is what
+     * switching to another backend or lock mode needs.
+     */
+    fun stop(releaseApps: Boolean) {
+        if (!isActive) return
+        isActive = false
+        onUnavailable = {}
+        appLockRepository.unregisterOnChangeListener(lockedAppsListener)
+        DeviceStateCache.removeListener(deviceStateListener)
+
+        handler.removeCallbacks(resuspendRunnable)
+        if (releaseApps) {
+            handler.post {
+                setSuspended(suspended.toList(), false)
+                suspended.clear()
+                unlocked.clear()
+                saveSuspended()
+            }
+        }
+        Log.d(TAG, "Package suspension lock stopped")
+    }
+
+    /**
+     * Called after the user unlocked [packageName]: lifts its suspension for this session and
+     * launches it, since the system blocked the launch that brought up the lock screen.
+     */
+    fun onUnlocked(packageName: String) {
+        if (!isActive) return
+        handler.post {
+            if (packageName !in suspended) return@post
+            if (!setSuspended(listOf(packageName), false)) return@post
+
+            suspended.remove(packageName)
+            unlocked.add(packageName)
+            saveSuspended()
+            scheduleResuspend()
+
+            context.packageManager.getLaunchIntentForPackage(packageName)?.let { intent ->
+                try {
+                    context.startActivity(intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK))
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to launch $packageName after unlock", e)
+                }
+            }
+        }
+    }
+
+    private fun scheduleResuspend() {
+        handler.removeCallbacks(resuspendRunnable)
+        // An unlimited duration lasts until the screen turns off
+        val minutes = appLockRepository.getUnlockTimeDuration()
+        if (minutes in 1 until LockDecider.UNLIMITED_UNLOCK_MINUTES) {
+            handler.postDelayed(resuspendRunnable, TimeUnit.MINUTES.toMillis(minutes.toLong()))
+        }
+    }
+
+    private fun resuspendUnlocked() {
+        handler.removeCallbacks(resuspendRunnable)
+        if (unlocked.isEmpty()) return
+
+        val lockedApps = appLockRepository.getLockedApps()
+        val toSuspend = unlocked.filter { it in lockedApps }
+        unlocked.clear()
+        if (toSuspend.isEmpty() || !setSuspended(toSuspend, true)) return
+
+        suspended.addAll(toSuspend)
+        saveSuspended()
+        LogUtils.d(TAG, "Re-suspended ${toSuspend.size} apps")
+    }
+
+    private fun syncWithLockedApps() {
+        if (!isActive) return
+        val lockedApps = appLockRepository.getLockedApps()
+
+        val toSuspend = lockedApps.filter { it !in suspended && it !in unlocked }
+        val toRelease = suspended.filter { it !in lockedApps }
+        unlocked.retainAll(lockedApps)
+
+        if (toSuspend.isNotEmpty() && setSuspended(toSuspend, true)) {
+            suspended.addAll(toSuspend)
+        }
+        if (toRelease.isNotEmpty() && setSuspended(toRelease, false)) {
+            suspended.removeAll(toRelease.toSet())
+        }
+        saveSuspended()
+    }
+
+    private fun saveSuspended() {
+        prefs.edit { putStringSet(KEY_SUSPENDED, HashSet(suspended)) }
+    }
+
+    /**
+     * Suspends or unsuspends [packageNames] in one call. Returns false if the call failed;
+     * packages the system refuses to suspend are only logged.
+     */
+    private fun setSuspended(packageNames: List<String>, suspend: Boolean): Boolean {
+        if (packageNames.isEmpty()) return true
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return false
+
+        val names = packageNames.toTypedArray()
+        val dialog = if (suspend) createDialogInfo() else null
+        val ownPackage = context.packageName
+
+        return try {
+            val failed = ShizukuBinderCalls.call("setPackagesSuspended", BINDER_TIMEOUT_MS) {
+                when {
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM ->
+                        packageManager.setPackagesSuspendedAsUser(
+                            names, suspend, null, null, dialog, 0, ownPackage, userId, userId
+                        )
+
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ->
+                        packageManager.setPackagesSuspendedAsUser(
+                            names, suspend, null, null, dialog, 0, ownPackage, userId
+                        )
+
+                    else -> packageManager.setPackagesSuspendedAsUser(
+                        names, suspend, null, null, dialog, ownPackage, userId
+                    )
+                }.orEmpty()
+            } ?: return false
+
+            if (failed.isNotEmpty()) {
+                Log.w(TAG, "System refused to change suspension of ${failed.joinToString()}")
+            }
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error changing suspension of ${packageNames.size} apps", e)
+            false
+        }
+    }
+
+    private fun createDialogInfo(): SuspendDialogInfo {
+        return SuspendDialogInfo.Builder()
+            .setTitle("App locked")
+            .setMessage("This app is locked by AppLock. Tap More details to unlock it.")
+            .setNeutralButtonAction(SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS)
+            .build()
+    }
+
+    private const val PER_USER_RANGE = 100_000
+    private const val BINDER_TIMEOUT_MS = 2_000L
+}
@@ -8,66 +8,223 @@ import android.content.Context.RECEIVER_EXPORTED
 import android.content.pm.PackageManager
 import android.os.Build
 import android.os.Handler
-import android.os.Looper
+import android.os.HandlerThread
+import android.os.IBinder
+import android.os.Process
 import android.util.Log
 import android.view.Display
 import android.view.IWindowManager
-import dev.pranav.applock.core.broadcast.DeviceUnlockReceiver
+import dev.pranav.applock.core.utils.DetectionTraceRecorder
+import dev.pranav.applock.core.utils.FlightRecorder
 import dev.pranav.applock.core.utils.LogUtils
+import dev.pranav.applock.core.utils.PerfTrace
+import dev.pranav.applock.core.utils.StartupTrace
 import dev.pranav.applock.data.repository.AppLockRepository
 import dev.pranav.applock.data.repository.BackendImplementation
 import dev.pranav.applock.services.AppLockManager
-import dev.pranav.applock.services.isDeviceLocked
-import org.lsposed.hiddenapibypass.HiddenApiBypass
+import dev.pranav.applock.services.BackendCalibrator
+import dev.pranav.applock.services.BackendFailover
+import dev.pranav.applock.services.DeviceStateCache
+import dev.pranav.applock.services.ForegroundEventBus
+import dev.pranav.applock.services.SystemExclusionRegistry
+import dev.pranav.lockcore.ForegroundEvent
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.Transition
+import dev.pranav.lockcore.detection.LauncherSignatures
+import dev.pranav.lockcore.detection.ScreenState
+import dev.pranav.lockcore.detection.TaskForegroundDetector
+import dev.pranav.lockcore.replay.SystemAction
+import dev.pranav.lockcore.replay.TraceRecord
 import rikka.shizuku.Shizuku
 import rikka.shizuku.ShizukuBinderWrapper
 import rikka.shizuku.SystemServiceHelper
 
+/**
+ * Polls the visible tasks through Shizuku and feeds the apps that come up, home and screen
+ * changes to a [ForegroundStateMachine], which decides what to lock.
+ *
+ * Polling and the binder calls run on a dedicated "ShizukuMonitor" thread so a slow
+ * system_server never stalls the main thread; the receiver and [DeviceStateCache] callbacks are
+ * handed to the same thread, which keeps [TaskForegroundDetector] and the state machine
+ * single-threaded. The decisions go out through a [ForegroundEventBus], which calls [onLockApp]
+ * on the main thread with only the latest of them.
+ *
+ * With the Shizuku task monitor setting on, the tasks come from [TaskMonitorUserService]
+ * instead, which pushes them only when they change; ticks then re-evaluate the last pushed
+ * tasks without any IPC. Polling takes over again whenever the user service is not connected.
+ *
+ * [onLockApp] receives the package to lock and the app it was opened from (the triggering app).
+ */
 class ShizukuActivityManager(
     private val context: Context,
     private val appLockRepository: AppLockRepository,
-    private val onForegroundAppChanged: (String, String, Long) -> Unit
+    private val onLockApp: (String, String) -> Unit
 ) {
     private val TAG = "ShizukuActivityManager"
-    private var lastForegroundApp = ""
-    private var deviceUnlockReceiver: DeviceUnlockReceiver? = null
-    private var shouldLockAppsOnReturn = false
+    private val foregroundDetector = TaskForegroundDetector(
+        ownPackage = context.packageName,
+        isTemporarilyUnlocked = AppLockManager::isAppTemporarilyUnlocked
+    )
+    private val foregroundMachine = ForegroundStateMachine(
+        sessions = AppLockManager.unlockSessions,
+        ownPackage = context.packageName,
+        isExcluded = { SystemExclusionRegistry.snapshot.isExcluded(it) },
+        isLocked = { it in appLockRepository.getLockedApps() },
+        isTriggerExcluded = { it in appLockRepository.getTriggerExcludedApps() },
+        isLockScreenShown = { AppLockManager.isLockScreenShown.get() }
+    )
+
+    private val eventBus =
+        ForegroundEventBus(BackendImplementation.SHIZUKU, foregroundDetector::isVisible)
+
+    // The packages a snapshot reported, fed to the state machine once the snapshot is done
+    private val reportedPackages = ArrayList<String>(8)
+
+    @Volatile
+    private var monitorThread: HandlerThread? = null
+    private lateinit var handler: Handler
+
+    private var taskMonitorBound = false
+
+    @Volatile
+    private var taskMonitor: ITaskMonitor? = null
+
+    @Volatile
+    private var pushedTasks: VisibleTasks? = null
+
+    private val taskMonitorArgs by lazy {
+        Shizuku.UserServiceArgs(
+            ComponentName(context.packageName, TaskMonitorUserService::class.java.name)
+        )
+            .daemon(true)
+            .processNameSuffix("task_monitor")
+            .version(TaskMonitorUserService.VERSION)
+    }
+
+    private val taskMonitorCallback = object : ITaskMonitorCallback.Stub() {
+        override fun onVisibleTasksChanged(
+            packageNames: Array<String>,
+            classNames: Array<String>,
+            focusedIndex: Int,
+            timeMillis: Long
+        ) {
+            pushedTasks = VisibleTasks(
+                List(packageNames.size) { ComponentName(packageNames[it], classNames[it]) },
+                focusedIndex
+            )
+            pollNow()
+        }
+    }
+
+    private val taskMonitorConnection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            if (binder == null || !binder.pingBinder()) return
+            try {
+                val monitor = ITaskMonitor.Stub.asInterface(binder)
+                monitor.start(taskMonitorCallback, POLL_INTERVAL_MS)
+                taskMonitor = monitor
+                Log.d(TAG, "Task monitor user service connected")
+            } catch (e: Exception) {
+                Log.e(TAG, "Error starting task monitor user service", e)
+            }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            Log.w(TAG, "Task monitor user service disconnected, polling instead")
+            taskMonitor = null
+            pushedTasks = null
+        }
+    }
 
-    private val handler = Handler(Looper.getMainLooper())
+    private val settingsListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+        val enabled = appLockRepository.isShizukuTaskMonitorEnabled()
+        if (enabled && !taskMonitorBound) bindTaskMonitor()
+        if (!enabled && taskMonitorBound) unbindTaskMonitor()
+    }
     private val checkForegroundRunnable = object : Runnable {
         override fun run() {
             try {
-                checkForegroundApp()
+                PerfTrace.section("AppLock:shizukuPoll") {
+                    checkForegroundApp()
+                }
             } catch (e: Exception) {
                 e.printStackTrace()
                 LogUtils.e(TAG, "Unhandled exception in foreground monitor", e)
             } finally {
                 // Schedule itself again after 500ms regardless of failure
-                handler.postDelayed(this, 500)
+                handler.postDelayed(this, POLL_INTERVAL_MS)
             }
         }
     }
 
+    private val signatures = LauncherSignatures.DEFAULT
+
     private val homeButtonReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context?, intent: Intent?) {
             when (intent?.action) {
                 Intent.ACTION_CLOSE_SYSTEM_DIALOGS -> {
-                    val currentTop = topActivity
-                    if (currentTop != null && lastForegroundApp == currentTop.packageName && currentTop.className == "com.android.launcher3.uioverrides.QuickstepLauncher") {
-                        AppLockManager.clearTemporarilyUnlockedApp()
+                    val currentTop = if (taskMonitor != null) {
+                        pushedTasks?.activities?.firstOrNull()
+                    } else {
+                        topActivity
+                    }
+                    if (currentTop != null &&
+                        foregroundDetector.lastForegroundApp == currentTop.packageName &&
+                        signatures.classState(currentTop.packageName, currentTop.className) ==
+                        ScreenState.HOME
+                    ) {
+                        FlightRecorder.record(
+                            BackendImplementation.SHIZUKU,
+                            FlightRecorder.Decision.FOREGROUND,
+                            FlightRecorder.Reason.HOME,
+                            currentTop.packageName
+                        )
+                        val time = System.currentTimeMillis()
+                        DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.HOME) }
+                        eventBus.publish(
+                            foregroundMachine.onEvent(ForegroundEvent.HOME, currentTop.packageName, time),
+                            currentTop.packageName,
+                            foregroundMachine,
+                            time
+                        )
                     }
                 }
+            }
+        }
+    }
 
-                Intent.ACTION_SCREEN_OFF -> {
-                    AppLockManager.clearTemporarilyUnlockedApp()
-                    shouldLockAppsOnReturn = true
-                    lastForegroundApp = ""
-                }
+    private val deviceStateListener = object : DeviceStateCache.Listener {
+        override fun onScreenOff() {
+            handler.post { handleScreenOff() }
+        }
 
-                Intent.ACTION_USER_PRESENT -> {
-                    shouldLockAppsOnReturn = true
-                }
-            }
+        override fun onUserPresent() {
+            handler.post { handleUserPresent() }
+        }
+
+        private fun handleScreenOff() {
+            FlightRecorder.record(
+                BackendImplementation.SHIZUKU,
+                FlightRecorder.Decision.RESET,
+                FlightRecorder.Reason.SCREEN_OFF,
+                ""
+            )
+            val time = System.currentTimeMillis()
+            DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.SCREEN_OFF) }
+            eventBus.publish(
+                foregroundMachine.onEvent(ForegroundEvent.SCREEN_OFF, time = time),
+                "",
+                foregroundMachine,
+                time
+            )
+            foregroundDetector.onScreenOff()
+        }
+
+        private fun handleUserPresent() {
+            val time = System.currentTimeMillis()
+            DetectionTraceRecorder.record { TraceRecord.System(time, SystemAction.USER_PRESENT) }
+            foregroundMachine.onEvent(ForegroundEvent.USER_PRESENT, time = time)
+            foregroundDetector.onUserPresent()
         }
     }
 
@@ -78,8 +235,16 @@ class ShizukuActivityManager(
         }
 
         try {
+            val thread = HandlerThread("ShizukuMonitor", Process.THREAD_PRIORITY_FOREGROUND)
+            thread.start()
+            monitorThread = thread
+            handler = Handler(thread.looper)
+            eventBus.start { onLockApp(it.packageName, it.triggeringPackage) }
+
             registerEventReceivers()
             startForegroundAppMonitoring()
+            appLockRepository.registerOnChangeListener(settingsListener)
+            if (appLockRepository.isShizukuTaskMonitorEnabled()) bindTaskMonitor()
             return true
         } catch (e: Exception) {
             e.printStackTrace()
@@ -90,20 +255,10 @@ class ShizukuActivityManager(
     private fun registerEventReceivers() {
         val homeFilter = IntentFilter().apply {
             addAction(Intent.ACTION_CLOSE_SYSTEM_DIALOGS)
-            addAction(Intent.ACTION_SCREEN_OFF)
-            addAction(Intent.ACTION_USER_PRESENT)
         }
 
-        context.registerReceiver(homeButtonReceiver, homeFilter, RECEIVER_EXPORTED)
-
-        val unlockFilter = IntentFilter().apply {
-            addAction(Intent.ACTION_USER_PRESENT)
-            addAction(Intent.ACTION_SCREEN_OFF)
-        }
-        deviceUnlockReceiver = DeviceUnlockReceiver {
-            shouldLockAppsOnReturn = true
-        }
-        context.registerReceiver(deviceUnlockReceiver, unlockFilter)
+        context.registerReceiver(homeButtonReceiver, homeFilter, null, handler, RECEIVER_EXPORTED)
+        DeviceStateCache.addListener(deviceStateListener)
     }
 
     val windowManager: IWindowManager
@@ -111,6 +266,36 @@ class ShizukuActivityManager(
             .let(::ShizukuBinderWrapper)
             .let(IWindowManager.Stub::asInterface)
 
+    /**
+     * Polls right away instead of waiting for the next tick, e.g. when the binder came back.
+     */
+    fun pollNow() {
+        if (monitorThread == null) return
+        handler.removeCallbacks(checkForegroundRunnable)
+        handler.post(checkForegroundRunnable)
+    }
+
+    private fun bindTaskMonitor() {
+        try {
+            Shizuku.bindUserService(taskMonitorArgs, taskMonitorConnection)
+            taskMonitorBound = true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error binding task monitor user service", e)
+        }
+    }
+
+    private fun unbindTaskMonitor() {
+        try {
+            taskMonitor?.stop()
+            Shizuku.unbindUserService(taskMonitorArgs, taskMonitorConnection, true)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error unbinding task monitor user service", e)
+        }
+        taskMonitorBound = false
+        taskMonitor = null
+        pushedTasks = null
+    }
+
     private fun startForegroundAppMonitoring() {
         handler.removeCallbacks(checkForegroundRunnable)
         handler.post(checkForegroundRunnable)
@@ -124,59 +309,82 @@ class ShizukuActivityManager(
             return
         }
 
-        if (!Shizuku.pingBinder()) {
-            LogUtils.e(TAG, "Shizuku binder lost during foreground monitoring")
-            return
-        }
-
-        if (context.isDeviceLocked()) return
-
-        getTasksWrapper().filterVisible().forEach {
-            val activity = it.topActivity!!
-            val packageName = activity.packageName
-            val className = activity.className
+        // Usage stats covers for us while the binder is dead, see ShizukuAppLockService
+        if (!DeviceStateCache.isShizukuAlive) return
 
-            // Skip our own app and known recents classes
-            if (packageName == context.packageName) return
-
-            // Skip if app is temporarily unlocked
-            if (packageName == lastForegroundApp && AppLockManager.isAppTemporarilyUnlocked(
-                    packageName
-                )
-            ) return
+        // The keyguard can come and go without the broadcasts, e.g. within the lock delay
+        val isDeviceLocked = DeviceStateCache.isKeyguardLocked
+        if (foregroundMachine.syncDeviceLocked(isDeviceLocked, System.currentTimeMillis())) {
+            if (isDeviceLocked) foregroundDetector.onScreenOff() else foregroundDetector.onUserPresent()
+        }
+        if (isDeviceLocked) return
 
-            // If we should lock apps on return (home button pressed, device locked, etc.)
-            // then trigger app lock for any new foreground app
-            if (shouldLockAppsOnReturn && packageName != lastForegroundApp) {
-                LogUtils.d(TAG, "Should lock apps on return - triggering for: $packageName")
-                shouldLockAppsOnReturn = false // Reset the flag
+        val visibleTasks = if (taskMonitor != null) {
+            pushedTasks ?: return
+        } else {
+            getTasksWrapper()?.visibleTasks() ?: return
+        }
+        BackendFailover.onProtected(BackendImplementation.SHIZUKU)
+        BackendCalibrator.onWakeup(BackendImplementation.SHIZUKU)
+        StartupTrace.onProtected(BackendImplementation.SHIZUKU)
+        val time = System.currentTimeMillis()
+        DetectionTraceRecorder.record {
+            TraceRecord.TaskSnapshot(time, visibleTasks.activities.map {
+                TraceRecord.Task(it.packageName, it.className)
+            })
+        }
 
-                val timeMillis = System.currentTimeMillis()
-                lastForegroundApp = packageName
-                onForegroundAppChanged(packageName, className, timeMillis)
-                return
+        // Split-screen and freeform show several tasks at once; the detector reports each
+        // package once when it becomes visible. The state machine only sees the reports once
+        // the snapshot is done, so an unlock it ends does not change the rest of the snapshot.
+        reportedPackages.clear()
+        foregroundDetector.beginSnapshot()
+        for ((index, activity) in visibleTasks.activities.withIndex()) {
+            BackendCalibrator.onForegroundObserved(BackendImplementation.SHIZUKU, activity.className)
+            val verdict = foregroundDetector.onVisibleTask(
+                activity.packageName,
+                focused = index == visibleTasks.focusedIndex
+            )
+            if (verdict.report) {
+                LogUtils.d(TAG, "App became visible: ${activity.packageName}, class: ${activity.className}")
+                reportedPackages.add(activity.packageName)
             }
+            if (verdict.stop) break
+        }
+        foregroundDetector.endSnapshot()
 
-            // Normal app switching - only trigger if current app has changed
-            if (packageName != lastForegroundApp) {
-                val triggerExclusions = appLockRepository.getTriggerExcludedApps()
-
-                // Check if previous app was in trigger exclusions
-                if (lastForegroundApp in triggerExclusions) {
-                    LogUtils.d(
-                        TAG,
-                        "Previous app $lastForegroundApp is excluded, skipping app lock for $packageName"
-                    )
-                    lastForegroundApp = packageName
-                    return
-                }
+        for (packageName in reportedPackages) {
+            onAppForeground(packageName, time)
+        }
+    }
+
+    private fun onAppForeground(packageName: String, time: Long) {
+        val previousForeground = foregroundMachine.foregroundPackage
+        val transition = PerfTrace.section("AppLock:decide") {
+            foregroundMachine.onEvent(ForegroundEvent.APP_FOREGROUND, packageName, time)
+        }
+        FlightRecorder.recordTransition(
+            BackendImplementation.SHIZUKU,
+            foregroundMachine,
+            transition,
+            packageName,
+            previousForeground,
+            time
+        )
+        eventBus.publish(transition, packageName, foregroundMachine, time)
+
+        when (transition) {
+            Transition.LOCK -> {
+                LogUtils.d(TAG, "Locked app detected: $packageName. Showing overlay.")
+                DetectionTraceRecorder.record { TraceRecord.ExpectLock(time, packageName) }
             }
 
-            val timeMillis = System.currentTimeMillis()
-            LogUtils.d(TAG, "Foreground app changed to: $packageName, class: $className")
+            Transition.TRIGGER_EXCLUDED -> LogUtils.d(
+                TAG,
+                "Trigger app ${foregroundMachine.triggeringPackage} is excluded, skipping lock for $packageName"
+            )
 
-            lastForegroundApp = packageName
-            onForegroundAppChanged(packageName, className, timeMillis)
+            else -> Unit
         }
     }
 
@@ -190,23 +398,26 @@ class ShizukuActivityManager(
             }
         }
 
-        deviceUnlockReceiver?.let { receiver ->
-            try {
-                context.unregisterReceiver(receiver)
-                deviceUnlockReceiver = null
-                Log.d(TAG, "Device unlock receiver unregistered")
-            } catch (e: Exception) {
-                Log.e(TAG, "Error unregistering device unlock receiver", e)
-            }
-        }
+        DeviceStateCache.removeListener(deviceStateListener)
+        appLockRepository.unregisterOnChangeListener(settingsListener)
+        if (taskMonitorBound) unbindTaskMonitor()
+        eventBus.stop()
 
-        handler.removeCallbacks(checkForegroundRunnable)
+        monitorThread?.let { thread ->
+            handler.removeCallbacks(checkForegroundRunnable)
+            thread.quitSafely()
+            monitorThread = null
+        }
         Log.d(TAG, "ShizukuActivityManager stopped")
     }
+
+    companion object {
+        private const val POLL_INTERVAL_MS = 500L
+    }
 }
 
 val topActivity: ComponentName?
-    get() = getTasksWrapper().firstOrNull()?.topActivity
+    get() = getTasksWrapper()?.firstOrNull()?.topActivity
 
 private val activityTaskManager: IActivityTaskManager by lazy {
     SystemServiceHelper.getSystemService("activity_task")
@@ -214,37 +425,34 @@ private val activityTaskManager: IActivityTaskManager by lazy {
         .let(IActivityTaskManager.Stub::asInterface)
 }
 
-private fun getTasksWrapper(): List<ActivityManager.RunningTaskInfo> = when {
-    Build.VERSION.SDK_INT < 31 -> runCatching { activityTaskManager.getTasks(8) }.getOrNull()
-        .orEmpty()
-
-    else -> runCatching { activityTaskManager.getTasks(8, false, false, Display.INVALID_DISPLAY) }
-        .getOrNull()
-        .orEmpty()
-}
-
-private fun List<ActivityManager.RunningTaskInfo>.filterVisible(): List<ActivityManager.RunningTaskInfo> {
-    return filter {
-        it.isRunning && it.isVisible
+// Well below the poll interval, so one slow call costs at most one tick
+private const val GET_TASKS_TIMEOUT_MS = 300L
+
+/**
+ * The running tasks, or null if system_server did not answer within [GET_TASKS_TIMEOUT_MS].
+ */
+private fun getTasksWrapper(): List<ActivityManager.RunningTaskInfo>? =
+    ShizukuBinderCalls.call("getTasks", GET_TASKS_TIMEOUT_MS) {
+        when {
+            Build.VERSION.SDK_INT < 31 -> activityTaskManager.getTasks(8)
+            else -> activityTaskManager.getTasks(8, false, false, Display.INVALID_DISPLAY)
+        }.orEmpty()
     }
-}
 
-fun TaskInfo.isFreeform(): Boolean {
-    try {
-        return HiddenApiBypass.invoke(TaskInfo::class.java, this, "isFreeform") as Boolean
-    } catch (e: Throwable) {
-        e.printStackTrace()
-        return false
-    }
+/**
+ * The top activities of the visible tasks, front to back, and the index of the one with input
+ * focus or -1 if the platform does not report focus.
+ */
+private class VisibleTasks(val activities: List<ComponentName>, val focusedIndex: Int)
+
+private fun List<ActivityManager.RunningTaskInfo>.visibleTasks(): VisibleTasks {
+    val visible = filter { it.isRunning && it.isVisible && it.topActivity != null }
+    return VisibleTasks(
+        visible.map { it.topActivity!! },
+        visible.indexOfFirst { it.isFocused() }
+    )
 }
 
-fun TaskInfo.isFocused(): Boolean {
-    try {
-        return HiddenApiBypass.getInstanceFields(TaskInfo::class.java)
-            .firstOrNull { it.name == "isFocused" }!!
-            .getBoolean(this)
-    } catch (e: Throwable) {
-        e.printStackTrace()
-        return false
-    }
-}
+fun TaskInfo.isFreeform(): Boolean = HiddenApiAccessors.taskIsFreeform.get(this)
+
+fun TaskInfo.isFocused(): Boolean = HiddenApiAccessors.taskIsFocused.get(this)
@@ -0,0 +1,136 @@
+package dev.pranav.applock.shizuku
+
+import android.os.SystemClock
+import android.util.Log
+import dev.pranav.applock.core.utils.PerfTrace
+import java.io.PrintWriter
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Runs the Shizuku monitor's binder calls with a timeout and keeps latency statistics per call,
+ * written out by `dumpsys activity service ShizukuAppLockService`.
+ *
+ * A binder transaction can't be cancelled, so a call that times out keeps running on the binder
+ * thread. Until it returns, further calls fail fast instead of queueing up behind it.
+ */
+object ShizukuBinderCalls {
+    private const val TAG = "ShizukuBinderCalls"
+
+    private val executor = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "ShizukuBinder").apply { isDaemon = true }
+    }
+    private val stats = ConcurrentHashMap<String, CallStats>()
+
+    @Volatile
+    private var inFlight: Future<*>? = null
+
+    /**
+     * Runs [block] and returns its result, or null if it threw, did not finish within
+     * [timeoutMs], or an earlier call is still stuck.
+     */
+    fun <T> call(name: String, timeoutMs: Long, block: () -> T): T? {
+        val callStats = stats.getOrPut(name) { CallStats() }
+
+        val pending = inFlight
+        if (pending != null && !pending.isDone) {
+            callStats.recordSkipped()
+            return null
+        }
+
+        val future = executor.submit(Callable {
+            val start = SystemClock.elapsedRealtimeNanos()
+            try {
+                PerfTrace.section("AppLock:binder:$name", block)
+            } finally {
+                callStats.recordLatency(SystemClock.elapsedRealtimeNanos() - start)
+            }
+        })
+        inFlight = future
+
+        return try {
+            future.get(timeoutMs, TimeUnit.MILLISECONDS)
+        } catch (_: TimeoutException) {
+            callStats.recordTimeout()
+            Log.w(TAG, "$name did not return within ${timeoutMs}ms")
+            null
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "$name failed", e.cause)
+            null
+        } catch (_: InterruptedException) {
+            Thread.currentThread().interrupt()
+            null
+        }
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println("Shizuku binder calls:")
+        if (stats.isEmpty()) {
+            writer.println("  (none)")
+            return
+        }
+        stats.toSortedMap().forEach { (name, callStats) ->
+            writer.println("  $name: ${callStats.summary()}")
+        }
+    }
+
+    private class CallStats {
+        private var count = 0L
+        private var totalNanos = 0L
+        private var maxNanos = 0L
+        private var timeouts = 0L
+        private var skipped = 0L
+
+        // Bucket i counts calls that took less than 2^i ms; the last one everything slower
+        private val buckets = LongArray(BUCKET_COUNT)
+
+        @Synchronized
+        fun recordLatency(nanos: Long) {
+            count++
+            totalNanos += nanos
+            if (nanos > maxNanos) maxNanos = nanos
+
+            val millis = TimeUnit.NANOSECONDS.toMillis(nanos)
+            val bucket = 64 - java.lang.Long.numberOfLeadingZeros(millis)
+            buckets[bucket.coerceAtMost(BUCKET_COUNT - 1)]++
+        }
+
+        @Synchronized
+        fun recordTimeout() {
+            timeouts++
+        }
+
+        @Synchronized
+        fun recordSkipped() {
+            skipped++
+        }
+
+        @Synchronized
+        fun summary(): String = buildString {
+            val meanMicros = if (count == 0L) 0L else totalNanos / count / 1000
+            append("n=$count mean=${meanMicros}us max=${maxNanos / 1000}us")
+            append(" timeouts=$timeouts skipped=$skipped")
+            append(" p50<${percentileBound(0.50)} p99<${percentileBound(0.99)}")
+        }
+
+        private fun percentileBound(fraction: Double): String {
+            if (count == 0L) return "-"
+            val target = (count * fraction).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (i in buckets.indices) {
+                seen += buckets[i]
+                if (seen >= target) {
+                    return if (i == BUCKET_COUNT - 1) "inf" else "${1L shl i}ms"
+                }
+            }
+            return "inf"
+        }
+    }
+
+    private const val BUCKET_COUNT = 12
+}
@@ -0,0 +1,51 @@
+package dev.pranav.applock.shizuku
+
+import android.content.Context
+import android.os.Build
+import android.util.Log
+import dev.pranav.applock.core.utils.StartupTrace
+import org.lsposed.hiddenapibypass.HiddenApiBypass
+import rikka.shizuku.ShizukuProvider
+import rikka.sui.Sui
+
+/**
+ * The setup only the Shizuku path needs: the hidden API exemptions, the Shizuku binder for
+ * processes other than the provider's, and Sui. Call [ensureInitialized] before touching Shizuku
+ * or hidden APIs; only the first call does any work.
+ */
+object ShizukuBootstrap {
+    private const val TAG = "ShizukuBootstrap"
+
+    @Volatile
+    private var isInitialized = false
+
+    fun ensureInitialized(context: Context, isProviderProcess: Boolean) {
+        if (isInitialized) return
+        synchronized(this) {
+            if (isInitialized) return
+            StartupTrace.measure("shizuku") { initialize(context, isProviderProcess) }
+            isInitialized = true
+        }
+    }
+
+    private fun initialize(context: Context, isProviderProcess: Boolean) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            try {
+                HiddenApiBypass.addHiddenApiExemptions("L")
+                Log.d(TAG, "Hidden API bypass initialized successfully")
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to initialize hidden API bypass", e)
+            }
+        }
+
+        try {
+            if (!isProviderProcess) ShizukuProvider.requestBinderForNonProviderProcess(context)
+            Sui.init(context.packageName)
+            Log.d(TAG, "Sui initialized successfully")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to initialize Sui", e)
+        }
+
+        HiddenApiAccessors.initialize()
+    }
+}
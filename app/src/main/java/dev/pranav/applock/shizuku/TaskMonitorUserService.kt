@@ -0,0 +1,151 @@
+package dev.pranav.applock.shizuku
+
+import android.app.IActivityTaskManager
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.IBinder
+import android.os.RemoteException
+import android.util.Log
+import android.view.Display
+import rikka.shizuku.SystemServiceHelper
+import kotlin.system.exitProcess
+
+/**
+ * Task stack monitor that Shizuku runs as a user service in its own shell-uid process.
+ *
+ * Queries from here go straight to system_server instead of through the Shizuku server, need no
+ * hidden API bypass, and the app only hears about the visible tasks when they change. The
+ * service is bound as a daemon, so it keeps running while the app process restarts and sends
+ * the current tasks to the new callback as soon as the app reconnects.
+ *
+ * Only framework classes and this file may be used here: the process is started by Shizuku
+ * from our APK, without an Application or a Context.
+ */
+class TaskMonitorUserService : ITaskMonitor.Stub() {
+    private val thread = HandlerThread("TaskMonitor").apply { start() }
+    private val handler = Handler(thread.looper)
+
+    private val activityTaskManager: IActivityTaskManager by lazy {
+        IActivityTaskManager.Stub.asInterface(SystemServiceHelper.getSystemService("activity_task"))
+    }
+
+    // Everything below is only touched on the monitor thread
+    private var callback: ITaskMonitorCallback? = null
+    private var intervalMs = MIN_INTERVAL_MS
+    private var lastPackageNames = emptyArray<String>()
+    private var lastClassNames = emptyArray<String>()
+    private var lastFocusedIndex = -1
+
+    private val callbackDeathRecipient = IBinder.DeathRecipient {
+        handler.post {
+            // Nothing to poll for until the app binds again; start() sends fresh tasks then
+            if (callback?.asBinder()?.isBinderAlive == false) {
+                callback = null
+                handler.removeCallbacks(pollRunnable)
+            }
+        }
+    }
+
+    private val pollRunnable = object : Runnable {
+        override fun run() {
+            if (callback == null) return
+            try {
+                poll()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error polling tasks", e)
+            } finally {
+                if (callback != null) handler.postDelayed(this, intervalMs)
+            }
+        }
+    }
+
+    override fun start(callback: ITaskMonitorCallback, intervalMs: Long) {
+        handler.post {
+            unlinkCallback()
+            try {
+                callback.asBinder().linkToDeath(callbackDeathRecipient, 0)
+            } catch (e: RemoteException) {
+                Log.e(TAG, "Client died before monitoring started", e)
+                return@post
+            }
+            this.callback = callback
+            this.intervalMs = intervalMs.coerceAtLeast(MIN_INTERVAL_MS)
+
+            // Forget the last tasks so the new client is sent the current ones right away
+            lastPackageNames = emptyArray()
+            lastClassNames = emptyArray()
+            lastFocusedIndex = -1
+            handler.removeCallbacks(pollRunnable)
+            handler.post(pollRunnable)
+        }
+    }
+
+    override fun stop() {
+        handler.post {
+            handler.removeCallbacks(pollRunnable)
+            unlinkCallback()
+            callback = null
+        }
+    }
+
+    override fun destroy() {
+        thread.quitSafely()
+        exitProcess(0)
+    }
+
+    private fun unlinkCallback() {
+        try {
+            callback?.asBinder()?.unlinkToDeath(callbackDeathRecipient, 0)
+        } catch (_: NoSuchElementException) {
+            // Already dead
+        }
+    }
+
+    private fun poll() {
+        val client = callback ?: return
+
+        val tasks = when {
+            Build.VERSION.SDK_INT < 31 -> activityTaskManager.getTasks(8)
+            else -> activityTaskManager.getTasks(8, false, false, Display.INVALID_DISPLAY)
+        }.orEmpty()
+        val visible = tasks.filter { it.isRunning && it.isVisible && it.topActivity != null }
+        val packageNames = Array(visible.size) { visible[it].topActivity!!.packageName }
+        val classNames = Array(visible.size) { visible[it].topActivity!!.className }
+        val focusedIndex = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            visible.indexOfFirst { it.isFocused }
+        } else {
+            -1
+        }
+
+        if (packageNames.contentEquals(lastPackageNames) &&
+            classNames.contentEquals(lastClassNames) &&
+            focusedIndex == lastFocusedIndex
+        ) {
+            return
+        }
+        lastPackageNames = packageNames
+        lastClassNames = classNames
+        lastFocusedIndex = focusedIndex
+
+        try {
+            client.onVisibleTasksChanged(
+                packageNames,
+                classNames,
+                focusedIndex,
+                System.currentTimeMillis()
+            )
+        } catch (e: RemoteException) {
+            Log.w(TAG, "Failed to deliver tasks", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "TaskMonitorUserService"
+
+        private const val MIN_INTERVAL_MS = 100L
+
+        /** Bump when [ITaskMonitor] changes so Shizuku replaces a running older daemon. */
+        const val VERSION = 2
+    }
+}
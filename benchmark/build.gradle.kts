@@ -0,0 +1,37 @@
+import org.jetbrains.kotlin.gradle.dsl.JvmTarget
+
+plugins {
+    alias(libs.plugins.kotlin.jvm)
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+kotlin {
+    compilerOptions {
+        jvmTarget.set(JvmTarget.JVM_17)
+    }
+
+    // PatternGeometry has no Android dependencies, so it is compiled straight from :patternlock
+    // instead of depending on the Android library.
+    sourceSets.named("main") {
+        kotlin.srcDir("../patternlock/src/main/java")
+        kotlin.include("com/mrhwsn/composelock/PatternGeometry.kt")
+    }
+}
+
+dependencies {
+    implementation(project(":lockcore"))
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    warmupIterations.set(2)
+    iterations.set(3)
+    fork.set(1)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
@@ -0,0 +1,46 @@
+package dev.pranav.lockcore.benchmark
+
+import dev.pranav.lockcore.AppListFilter
+import dev.pranav.lockcore.AppSearchIndex
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AppSearchBenchmark {
+    @Param("50", "500", "5000")
+    @JvmField
+    var packageCount = 0
+
+    private lateinit var apps: List<SyntheticData.App>
+    private lateinit var lockedPackages: Set<String>
+
+    @Setup
+    fun setUp() {
+        apps = SyntheticData.apps(packageCount)
+        lockedPackages = SyntheticData.lockedPackages(apps)
+    }
+
+    @Benchmark
+    fun buildIndex(): AppSearchIndex<SyntheticData.App> =
+        AppSearchIndex.build(apps) { it.label }
+
+    @Benchmark
+    fun lockedAppsNoQuery(): List<SyntheticData.App> = filter(locked = true, query = "")
+
+    @Benchmark
+    fun unlockedAppsNoQuery(): List<SyntheticData.App> = filter(locked = false, query = "")
+
+    @Benchmark
+    fun unlockedAppsWithQuery(): List<SyntheticData.App> = filter(locked = false, query = "me")
+
+    private fun filter(locked: Boolean, query: String) = AppListFilter.filter(
+        apps = apps,
+        lockedPackages = lockedPackages,
+        locked = locked,
+        query = query,
+        packageName = { it.packageName },
+        label = { it.label }
+    )
+}
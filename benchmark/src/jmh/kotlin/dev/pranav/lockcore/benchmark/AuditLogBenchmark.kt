@@ -0,0 +1,82 @@
+package dev.pranav.lockcore.benchmark
+
+import dev.pranav.lockcore.AuditLog
+import org.openjdk.jmh.annotations.*
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.File
+import java.io.StringReader
+import java.io.StringWriter
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+import java.util.concurrent.TimeUnit
+
+/**
+ * Audit log line formatting, appending and purging. The log holds one decision line per package
+ * plus a stack trace every tenth line; half of the lines are older than the purge cutoff.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AuditLogBenchmark {
+    @Param("50", "500", "5000")
+    @JvmField
+    var packageCount = 0
+
+    private val now = Instant.ofEpochMilli(SyntheticData.NOW)
+    private val cutoff = now.minus(7, ChronoUnit.DAYS)
+
+    private lateinit var logContents: String
+    private lateinit var packageName: String
+    private lateinit var logFile: File
+
+    @Setup
+    fun setUp() {
+        val apps = SyntheticData.apps(packageCount)
+        packageName = apps.first().packageName
+        logContents = buildString {
+            apps.forEachIndexed { index, app ->
+                val age = if (index % 2 == 0) 1L else 10L
+                append(
+                    AuditLog.formatLine(
+                        now.minus(age, ChronoUnit.DAYS),
+                        'D',
+                        "UsageLockService",
+                        "checkAndLockApp: pkg=${app.packageName}, duration=5 min"
+                    )
+                )
+                if (index % 10 == 0) {
+                    append("java.lang.IllegalStateException: synthetic\n\tat Example.run(Example.kt:1)\n")
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    fun createLogFile() {
+        logFile = File.createTempFile("audit_log", ".txt")
+    }
+
+    @TearDown(Level.Iteration)
+    fun deleteLogFile() {
+        logFile.delete()
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    fun formatLine(): String =
+        AuditLog.formatLine(now, 'D', "UsageLockService", "Locked app: $packageName. Showing overlay.")
+
+    @Benchmark
+    fun appendLine() {
+        AuditLog.append(logFile, "$now D UsageLockService: Locked app: $packageName\n")
+    }
+
+    @Benchmark
+    fun purge(): AuditLog.PurgeResult {
+        val writer = StringWriter(logContents.length)
+        return BufferedReader(StringReader(logContents)).use { reader ->
+            BufferedWriter(writer).use { AuditLog.purge(reader, it, cutoff) }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package dev.pranav.lockcore.benchmark
+
+import dev.pranav.lockcore.LockDecider
+import dev.pranav.lockcore.LockDecision
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class LockDecisionBenchmark {
+    @Param("50", "500", "5000")
+    @JvmField
+    var packageCount = 0
+
+    private lateinit var lockedApps: Set<String>
+    private lateinit var lockedPackage: String
+    private lateinit var unlockedPackage: String
+
+    @Setup
+    fun setUp() {
+        val apps = SyntheticData.apps(packageCount)
+        lockedApps = SyntheticData.lockedPackages(apps)
+        lockedPackage = apps.first { it.packageName in lockedApps }.packageName
+        unlockedPackage = apps.first { it.packageName !in lockedApps }.packageName
+    }
+
+    @Benchmark
+    fun unlockedPackage(): LockDecision = LockDecider.decide(
+        unlockedPackage, lockedApps, false, 5, 0L, false, SyntheticData.NOW
+    )
+
+    @Benchmark
+    fun lockedPackage(): LockDecision = LockDecider.decide(
+        lockedPackage, lockedApps, false, 5, 0L, false, SyntheticData.NOW
+    )
+
+    @Benchmark
+    fun lockedPackageWithinUnlockDuration(): LockDecision = LockDecider.decide(
+        lockedPackage, lockedApps, false, 5, SyntheticData.NOW - 60_000L, false, SyntheticData.NOW
+    )
+}
@@ -0,0 +1,38 @@
+package dev.pranav.lockcore.benchmark
+
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Membership checks against the locked and trigger-excluded sets. The repository hands out a
+ * copy of the stored set on every read, which [copyThenContains] reproduces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class PackageSetBenchmark {
+    @Param("50", "500", "5000")
+    @JvmField
+    var packageCount = 0
+
+    private lateinit var storedSet: Set<String>
+    private lateinit var hashSet: HashSet<String>
+    private lateinit var probe: String
+
+    @Setup
+    fun setUp() {
+        val apps = SyntheticData.apps(packageCount)
+        storedSet = SyntheticData.lockedPackages(apps).toSet()
+        hashSet = HashSet(storedSet)
+        probe = apps.last().packageName
+    }
+
+    @Benchmark
+    fun hashSetContains(): Boolean = probe in hashSet
+
+    @Benchmark
+    fun linkedHashSetContains(): Boolean = probe in storedSet
+
+    @Benchmark
+    fun copyThenContains(): Boolean = probe in storedSet.toSet()
+}
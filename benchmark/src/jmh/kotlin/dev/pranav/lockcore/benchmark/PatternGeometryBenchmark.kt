@@ -0,0 +1,38 @@
+package dev.pranav.lockcore.benchmark
+
+import com.mrhwsn.composelock.PatternGeometry
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Intermediate-dot resolution for the longest possible stroke, corner to opposite corner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class PatternGeometryBenchmark {
+    @Param("3", "4", "6")
+    @JvmField
+    var dimension = 0
+
+    private lateinit var xs: FloatArray
+    private lateinit var ys: FloatArray
+    private lateinit var excluded: BooleanArray
+
+    @Setup
+    fun setUp() {
+        val count = dimension * dimension
+        val cell = 1080f / (dimension + 1)
+        xs = FloatArray(count) { (it / dimension + 1) * cell }
+        ys = FloatArray(count) { (it % dimension + 1) * cell }
+        excluded = BooleanArray(count)
+    }
+
+    @Benchmark
+    fun diagonalStroke(): IntArray =
+        PatternGeometry.intermediateIndices(0, xs.size - 1, xs, ys, excluded)
+
+    @Benchmark
+    fun adjacentStroke(): IntArray =
+        PatternGeometry.intermediateIndices(0, 1, xs, ys, excluded)
+}
@@ -0,0 +1,34 @@
+package dev.pranav.lockcore.benchmark
+
+import kotlin.random.Random
+
+/**
+ * Deterministic package names and labels shaped like a real device's app list.
+ */
+object SyntheticData {
+    const val NOW = 1_700_000_000_000L
+
+    private val vendors = listOf(
+        "com.google.android", "com.android", "com.samsung.android", "org.telegram",
+        "com.whatsapp", "com.spotify", "com.microsoft", "net.example", "dev.pranav", "io.github"
+    )
+    private val words = listOf(
+        "Messages", "Camera", "Photos", "Wallet", "Notes", "Mail", "Music", "Maps", "Bank",
+        "Chat", "Files", "Calendar", "Clock", "Weather", "Drive", "Keep", "Store", "Health"
+    )
+
+    class App(val packageName: String, val label: String)
+
+    fun apps(count: Int): List<App> {
+        val random = Random(count)
+        return List(count) { index ->
+            val vendor = vendors[random.nextInt(vendors.size)]
+            val word = words[random.nextInt(words.size)]
+            App("$vendor.${word.lowercase()}$index", "$word ${index % 97}")
+        }
+    }
+
+    /** Every fifth package, which is in line with how many apps users actually lock. */
+    fun lockedPackages(apps: List<App>): Set<String> =
+        apps.filterIndexed { index, _ -> index % 5 == 0 }.mapTo(HashSet()) { it.packageName }
+}
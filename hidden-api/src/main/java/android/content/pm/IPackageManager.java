@@ -27,6 +27,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.PersistableBundle;
 import android.os.UserHandle;
 
 import java.util.List;
@@ -254,6 +255,34 @@ public interface IPackageManager {
 
     String getSuspendingPackage(String packageName, int userId);
 
+    /**
+     * Android 10 to 13.
+     */
+    String[] setPackagesSuspendedAsUser(String[] packageNames, boolean suspended,
+                                        PersistableBundle appExtras,
+                                        PersistableBundle launcherExtras,
+                                        SuspendDialogInfo dialogInfo, String callingPackage,
+                                        int userId);
+
+    /**
+     * Android 14.
+     */
+    String[] setPackagesSuspendedAsUser(String[] packageNames, boolean suspended,
+                                        PersistableBundle appExtras,
+                                        PersistableBundle launcherExtras,
+                                        SuspendDialogInfo dialogInfo, int flags,
+                                        String callingPackage, int userId);
+
+    /**
+     * Android 15 and later.
+     */
+    String[] setPackagesSuspendedAsUser(String[] packageNames, boolean suspended,
+                                        PersistableBundle appExtras,
+                                        PersistableBundle launcherExtras,
+                                        SuspendDialogInfo dialogInfo, int flags,
+                                        String suspendingPackage, int suspendingUserId,
+                                        int targetUserId);
+
     /**
      * Backup/restore support - only the system uid may use these.
      */
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.os.Parcelable;
+
+/**
+ * A container to describe the dialog to be shown when the user tries to launch a suspended
+ * application.
+ *
+ * @hide
+ */
+public abstract class SuspendDialogInfo implements Parcelable {
+    public static final int BUTTON_ACTION_MORE_DETAILS = 0;
+    public static final int BUTTON_ACTION_UNSUSPEND = 1;
+
+    public static final class Builder {
+        public Builder setTitle(String title) {
+            throw new RuntimeException("Stub!");
+        }
+
+        public Builder setMessage(String message) {
+            throw new RuntimeException("Stub!");
+        }
+
+        public Builder setNeutralButtonAction(int buttonAction) {
+            throw new RuntimeException("Stub!");
+        }
+
+        public SuspendDialogInfo build() {
+            throw new RuntimeException("Stub!");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import org.jetbrains.kotlin.gradle.dsl.JvmTarget
+
+plugins {
+    alias(libs.plugins.kotlin.jvm)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+kotlin.compilerOptions {
+    jvmTarget.set(JvmTarget.JVM_17)
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
+
+tasks.register<JavaExec>("replayTraces") {
+    group = "verification"
+    description = "Replays detection traces and reports lock decision mismatches and events/s. " +
+            "Pass -Ptraces=<file or directory> to replay recordings pulled from a device."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("dev.pranav.lockcore.replay.ReplayMainKt")
+    args(
+        "--repeat", "1000",
+        providers.gradleProperty("traces").getOrElse("src/test/resources/traces")
+    )
+}
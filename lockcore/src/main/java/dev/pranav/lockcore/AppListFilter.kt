@@ -0,0 +1,65 @@
+package dev.pranav.lockcore
+
+/**
+ * Search and lock-state filtering behind the app list. Labels are resolved once per app rather
+ * than once per comparison, which matters because resolving a label goes to PackageManager.
+ */
+object AppListFilter {
+
+    /**
+     * Returns the apps whose membership in [lockedPackages] equals [locked] and whose label
+     * contains [query] (ignoring case), sorted by label. A blank query matches everything.
+     */
+    fun <T> filter(
+        apps: Collection<T>,
+        lockedPackages: Set<String>,
+        locked: Boolean,
+        query: String,
+        packageName: (T) -> String,
+        label: (T) -> String
+    ): List<T> {
+        val matchAll = query.isBlank()
+        val matches = ArrayList<LabeledApp<T>>()
+
+        for (app in apps) {
+            if ((packageName(app) in lockedPackages) != locked) continue
+
+            val appLabel = label(app)
+            if (!matchAll && !appLabel.contains(query, ignoreCase = true)) continue
+
+            matches.add(LabeledApp(app, appLabel))
+        }
+
+        matches.sortBy { it.label }
+        return matches.map { it.app }
+    }
+
+    private class LabeledApp<T>(val app: T, val label: String)
+}
+
+/**
+ * Lowercased labels plus a one-to-three character prefix index over them, built when the app list
+ * is loaded.
+ */
+class AppSearchIndex<T> private constructor(
+    val sortedApps: List<T>,
+    val names: Map<T, String>,
+    val prefixes: Map<String, List<T>>
+) {
+    companion object {
+        private const val MAX_PREFIX_LENGTH = 3
+
+        fun <T> build(apps: List<T>, label: (T) -> String): AppSearchIndex<T> {
+            val names = apps.associateWithTo(HashMap()) { label(it).lowercase() }
+            val prefixes = HashMap<String, MutableList<T>>()
+
+            names.forEach { (app, name) ->
+                for (length in 1..minOf(name.length, MAX_PREFIX_LENGTH)) {
+                    prefixes.getOrPut(name.substring(0, length)) { mutableListOf() }.add(app)
+                }
+            }
+
+            return AppSearchIndex(apps.sortedBy { names[it] }, names, prefixes)
+        }
+    }
+}
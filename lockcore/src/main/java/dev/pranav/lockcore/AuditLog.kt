@@ -0,0 +1,55 @@
+package dev.pranav.lockcore
+
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.File
+import java.time.Instant
+
+/**
+ * Line format, append and age-based purge of the audit log. Every line starts with an ISO-8601
+ * timestamp; continuation lines (stack traces) do not and are always kept by [purge].
+ */
+object AuditLog {
+
+    data class PurgeResult(val kept: Int, val purged: Int)
+
+    fun formatLine(timestamp: Instant, level: Char, tag: String, message: String): String {
+        return "$timestamp $level $tag: $message\n"
+    }
+
+    fun append(file: File, line: String) {
+        if (!file.exists()) {
+            file.createNewFile()
+        }
+        file.appendText(line)
+    }
+
+    /**
+     * Copies the lines from [reader] to [writer], dropping those timestamped at or before
+     * [cutoff].
+     */
+    fun purge(reader: BufferedReader, writer: BufferedWriter, cutoff: Instant): PurgeResult {
+        var purgedCount = 0
+        var keptCount = 0
+
+        reader.forEachLine { line ->
+            try {
+                val timestamp = Instant.parse(line.substringBefore(" "))
+
+                if (timestamp.isAfter(cutoff)) {
+                    writer.write(line)
+                    writer.newLine()
+                    keptCount++
+                } else {
+                    purgedCount++
+                }
+            } catch (_: Exception) {
+                writer.write(line)
+                writer.newLine()
+                keptCount++
+            }
+        }
+
+        return PurgeResult(keptCount, purgedCount)
+    }
+}
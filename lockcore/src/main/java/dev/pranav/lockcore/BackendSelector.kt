@@ -0,0 +1,69 @@
+package dev.pranav.lockcore
+
+/**
+ * What calibrating one backend measured: how long it took to notice each scripted launch of a
+ * test activity (-1 where it never did), and the CPU time and wakeups it cost while idle.
+ */
+class BackendMeasurement(
+    val backend: String,
+    val latenciesMs: LongArray,
+    val cpuMsPerMinute: Long,
+    val wakeupsPerMinute: Long
+) {
+    val detected: Int
+        get() = latenciesMs.count { it >= 0 }
+
+    /** Median of the detected launches, or -1 if it detected none. */
+    val medianLatencyMs: Long
+        get() {
+            val sorted = latenciesMs.filter { it >= 0 }.sorted()
+            return if (sorted.isEmpty()) -1 else sorted[sorted.size / 2]
+        }
+}
+
+/**
+ * Picks the backend to use from calibration results, and stores the results as one string for
+ * the settings.
+ *
+ * Only backends that noticed every launch qualify. Among them detection latency decides, except
+ * that latencies within [LATENCY_TIE_MS] of the fastest count as equal; those are ordered by CPU
+ * time and then wakeups, so a backend does not win on battery for a few milliseconds of speed.
+ */
+object BackendSelector {
+    const val LATENCY_TIE_MS = 100L
+
+    fun choose(measurements: List<BackendMeasurement>): BackendMeasurement? {
+        val reliable = measurements.filter {
+            it.latenciesMs.isNotEmpty() && it.detected == it.latenciesMs.size
+        }
+        val fastest = reliable.minOfOrNull { it.medianLatencyMs } ?: return null
+        return reliable
+            .filter { it.medianLatencyMs - fastest <= LATENCY_TIE_MS }
+            .minWith(
+                compareBy<BackendMeasurement> { it.cpuMsPerMinute }
+                    .thenBy { it.wakeupsPerMinute }
+                    .thenBy { it.medianLatencyMs }
+            )
+    }
+
+    /** One `backend:latency,latency:cpu:wakeups` entry per backend, separated by `;`. */
+    fun encode(measurements: List<BackendMeasurement>): String =
+        measurements.joinToString(";") {
+            "${it.backend}:${it.latenciesMs.joinToString(",")}:${it.cpuMsPerMinute}:${it.wakeupsPerMinute}"
+        }
+
+    /** Reverses [encode], skipping entries it cannot read. */
+    fun decode(encoded: String): List<BackendMeasurement> =
+        encoded.split(';').mapNotNull { entry ->
+            val fields = entry.split(':')
+            if (fields.size != 4) return@mapNotNull null
+            val latencies = fields[1].split(',').filter { it.isNotEmpty() }
+                .map { it.toLongOrNull() ?: return@mapNotNull null }
+            BackendMeasurement(
+                fields[0],
+                latencies.toLongArray(),
+                fields[2].toLongOrNull() ?: return@mapNotNull null,
+                fields[3].toLongOrNull() ?: return@mapNotNull null
+            )
+        }
+}
@@ -0,0 +1,226 @@
+package dev.pranav.lockcore
+
+/**
+ * Normalized foreground events every backend translates its raw signals into.
+ */
+enum class ForegroundEvent {
+    /** An app came to (or is still in) the foreground. */
+    APP_FOREGROUND,
+
+    /** The launcher came to the foreground. */
+    HOME,
+
+    /** Recents opened; app events until the next one are the user picking a task. */
+    RECENTS,
+    SCREEN_OFF,
+
+    /** The keyguard was dismissed. */
+    USER_PRESENT
+}
+
+/**
+ * Where the user is, as far as locking is concerned.
+ */
+enum class ForegroundPhase {
+    SCREEN_OFF,
+
+    /** The device was just unlocked and no app has come up yet. */
+    RETURNED,
+    HOME,
+    RECENTS,
+    APP
+}
+
+/**
+ * What [ForegroundStateMachine.onEvent] made of an event. Only [LOCK] asks the caller to show the
+ * lock screen; the rest say why it did not, for logging and the flight recorder.
+ */
+enum class Transition {
+    NONE,
+    IGNORED,
+    DEVICE_LOCKED,
+    NOT_LOCKED,
+    TRIGGER_EXCLUDED,
+    TEMPORARILY_UNLOCKED,
+    GRACE_PERIOD_RESTORED,
+    UNLOCK_DURATION_ACTIVE,
+    LOCK_SCREEN_SHOWN,
+    LOCK
+}
+
+/**
+ * The home, recents, screen off and unlock session rules shared by every backend.
+ *
+ * Backends only translate what they observe into [ForegroundEvent]s: the accessibility service
+ * through [dev.pranav.lockcore.detection.AccessibilityTransitionDetector], usage stats through
+ * [dev.pranav.lockcore.detection.UsageForegroundResolver] and Shizuku through
+ * [dev.pranav.lockcore.detection.TaskForegroundDetector]. Which phase an event leads to and
+ * what it does to the unlock sessions is one lookup in a transition table; an app event then
+ * runs the lock checks in a fixed order:
+ *
+ * 1. Our own app and system-excluded apps are ignored and change nothing.
+ * 2. An app opened from a trigger-excluded app is not locked, for as long as it stays in front.
+ * 3. Switching to another app (unless it is trigger-excluded) ends the temporary unlock of the
+ *    app left; coming back to it within the grace period restores it.
+ * 4. The temporarily unlocked app, an app within its unlock duration and an app whose lock
+ *    screen is already up are not locked again.
+ *
+ * Not thread-safe: each backend feeds its own instance from one thread. The unlock sessions are
+ * shared through the [UnlockSessionTable]. Nothing here allocates unless the unlock sessions
+ * change.
+ */
+class ForegroundStateMachine(
+    private val sessions: UnlockSessionTable,
+    private val ownPackage: String,
+    private val isExcluded: (String) -> Boolean,
+    private val isLocked: (String) -> Boolean,
+    private val isTriggerExcluded: (String) -> Boolean,
+    private val isLockScreenShown: () -> Boolean,
+    private val gracePeriodMs: Long = DEFAULT_GRACE_PERIOD_MS
+) {
+    var phase = ForegroundPhase.RETURNED
+        private set
+
+    /** The app the last event was about, or the launcher after [ForegroundEvent.HOME]. */
+    var foregroundPackage = ""
+        private set
+
+    /** The app in front before [foregroundPackage] came up. */
+    var triggeringPackage = ""
+        private set
+
+    /** The app whose temporary unlock the last event ended, or empty. */
+    var leftUnlockedApp = ""
+        private set
+
+    /**
+     * Feeds one event. [packageName] is the app for [ForegroundEvent.APP_FOREGROUND] and the
+     * launcher, if known, for [ForegroundEvent.HOME].
+     */
+    fun onEvent(event: ForegroundEvent, packageName: String = "", time: Long = 0L): Transition {
+        leftUnlockedApp = ""
+        if (event == ForegroundEvent.APP_FOREGROUND && phase != ForegroundPhase.SCREEN_OFF &&
+            (packageName == ownPackage || isExcluded(packageName))
+        ) {
+            return Transition.IGNORED
+        }
+
+        val row = TRANSITIONS[phase.ordinal * EVENT_COUNT + event.ordinal]
+        phase = row.next
+        val actions = row.actions
+
+        if (actions and CLEAR_ALL != 0) sessions.clear()
+        if (actions and CLEAR_TEMPORARY != 0) sessions.clearTemporarilyUnlocked()
+        if (actions and RESET_FOREGROUND != 0) {
+            foregroundPackage = ""
+            triggeringPackage = ""
+        }
+        if (actions and SET_FOREGROUND != 0 && packageName != foregroundPackage) {
+            triggeringPackage = foregroundPackage
+            foregroundPackage = packageName
+        }
+        if (actions and DEVICE_LOCKED != 0) return Transition.DEVICE_LOCKED
+        if (actions and EVALUATE == 0) return Transition.NONE
+
+        return evaluate(packageName, time, leaveFirst = actions and LEAVE_FIRST != 0)
+    }
+
+    /**
+     * Feeds [ForegroundEvent.SCREEN_OFF] or [ForegroundEvent.USER_PRESENT] if the phase disagrees
+     * with [isDeviceLocked], for when a broadcast was missed, e.g. the screen coming back within
+     * the lock delay without the keyguard. Returns whether it did.
+     */
+    fun syncDeviceLocked(isDeviceLocked: Boolean, time: Long): Boolean {
+        if (isDeviceLocked == (phase == ForegroundPhase.SCREEN_OFF)) return false
+        onEvent(if (isDeviceLocked) ForegroundEvent.SCREEN_OFF else ForegroundEvent.USER_PRESENT, time = time)
+        return true
+    }
+
+    private fun evaluate(packageName: String, time: Long, leaveFirst: Boolean): Transition {
+        val changed = packageName != foregroundPackage
+        if (changed) {
+            triggeringPackage = foregroundPackage
+            foregroundPackage = packageName
+        }
+
+        // Picking a task from recents ends the unlock whatever the app was opened from
+        if (changed && leaveFirst) leaveUnlockedApp(packageName, time)
+        if (triggeringPackage.isNotEmpty() && isTriggerExcluded(triggeringPackage)) {
+            return Transition.TRIGGER_EXCLUDED
+        }
+        if (changed && !leaveFirst) leaveUnlockedApp(packageName, time)
+
+        if (!isLocked(packageName)) return Transition.NOT_LOCKED
+        if (sessions.isTemporarilyUnlocked(packageName)) return Transition.TEMPORARILY_UNLOCKED
+        if (changed && sessions.restoreRecentlyLeft(packageName, time, gracePeriodMs)) {
+            return Transition.GRACE_PERIOD_RESTORED
+        }
+
+        sessions.expire(packageName, time)
+        return when (LockDecider.decideForLockedApp(
+            sessions.isWithinUnlockDuration(packageName, time),
+            isLockScreenShown()
+        )) {
+            LockDecision.UNLOCK_DURATION_ACTIVE -> Transition.UNLOCK_DURATION_ACTIVE
+            LockDecision.LOCK_SCREEN_SHOWN -> Transition.LOCK_SCREEN_SHOWN
+            else -> Transition.LOCK
+        }
+    }
+
+    private fun leaveUnlockedApp(packageName: String, time: Long) {
+        val unlockedApp = sessions.temporarilyUnlockedApp
+        if (unlockedApp.isEmpty() || unlockedApp == packageName || isTriggerExcluded(packageName)) {
+            return
+        }
+        sessions.setRecentlyLeft(unlockedApp, time)
+        sessions.clearTemporarilyUnlocked()
+        leftUnlockedApp = unlockedApp
+    }
+
+    private class Row(val next: ForegroundPhase, val actions: Int)
+
+    companion object {
+        /** How soon returning to the app just left restores its temporary unlock. */
+        const val DEFAULT_GRACE_PERIOD_MS = 300L
+
+        private const val CLEAR_ALL = 1
+        private const val CLEAR_TEMPORARY = 1 shl 1
+        private const val RESET_FOREGROUND = 1 shl 2
+        private const val SET_FOREGROUND = 1 shl 3
+        private const val EVALUATE = 1 shl 4
+        private const val LEAVE_FIRST = 1 shl 5
+        private const val DEVICE_LOCKED = 1 shl 6
+
+        private val EVENT_COUNT = ForegroundEvent.entries.size
+
+        private val TRANSITIONS: Array<Row> = run {
+            val table = arrayOfNulls<Row>(ForegroundPhase.entries.size * EVENT_COUNT)
+            fun on(from: ForegroundPhase, event: ForegroundEvent, to: ForegroundPhase, actions: Int) {
+                table[from.ordinal * EVENT_COUNT + event.ordinal] = Row(to, actions)
+            }
+
+            for (phase in ForegroundPhase.entries) {
+                // Screen off ends every unlock, and the next app after it is always checked
+                on(phase, ForegroundEvent.SCREEN_OFF, ForegroundPhase.SCREEN_OFF, CLEAR_ALL or RESET_FOREGROUND)
+                on(phase, ForegroundEvent.USER_PRESENT, ForegroundPhase.RETURNED, RESET_FOREGROUND)
+
+                if (phase == ForegroundPhase.SCREEN_OFF) {
+                    on(phase, ForegroundEvent.APP_FOREGROUND, phase, DEVICE_LOCKED)
+                    on(phase, ForegroundEvent.HOME, phase, 0)
+                    on(phase, ForegroundEvent.RECENTS, phase, 0)
+                    continue
+                }
+
+                on(phase, ForegroundEvent.HOME, ForegroundPhase.HOME, CLEAR_TEMPORARY or SET_FOREGROUND)
+                on(phase, ForegroundEvent.RECENTS, ForegroundPhase.RECENTS, 0)
+                on(
+                    phase,
+                    ForegroundEvent.APP_FOREGROUND,
+                    ForegroundPhase.APP,
+                    if (phase == ForegroundPhase.RECENTS) EVALUATE or LEAVE_FIRST else EVALUATE
+                )
+            }
+            table.requireNoNulls()
+        }
+    }
+}
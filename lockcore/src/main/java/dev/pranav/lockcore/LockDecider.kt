@@ -0,0 +1,95 @@
+package dev.pranav.lockcore
+
+/**
+ * Outcome of [LockDecider.decide] for a package that came to the foreground.
+ */
+enum class LockDecision {
+    NOT_LOCKED,
+    TEMPORARILY_UNLOCKED,
+    UNLOCK_DURATION_ACTIVE,
+    LOCK_SCREEN_SHOWN,
+    LOCK
+}
+
+/**
+ * The lock decision shared by all backends, free of Android types so it can be benchmarked and
+ * replayed on a plain JVM. Callers read the state (locked apps, unlock timestamps, whether the
+ * lock screen is up) and act on the returned [LockDecision]; nothing here allocates.
+ */
+object LockDecider {
+    /** Unlock durations at or above this many minutes never expire. */
+    const val UNLIMITED_UNLOCK_MINUTES = 10_000
+
+    fun decide(
+        packageName: String,
+        lockedApps: Set<String>,
+        isTemporarilyUnlocked: Boolean,
+        unlockDurationMinutes: Int,
+        unlockTimestamp: Long,
+        isLockScreenShown: Boolean,
+        currentTime: Long
+    ): LockDecision {
+        if (packageName !in lockedApps) return LockDecision.NOT_LOCKED
+        if (isTemporarilyUnlocked) return LockDecision.TEMPORARILY_UNLOCKED
+
+        return decideForLockedApp(
+            unlockDurationMinutes,
+            unlockTimestamp,
+            isLockScreenShown,
+            currentTime
+        )
+    }
+
+    /**
+     * The part of [decide] that runs once the package is known to be locked and not temporarily
+     * unlocked. Backends that have side effects between those checks call this directly.
+     */
+    fun decideForLockedApp(
+        unlockDurationMinutes: Int,
+        unlockTimestamp: Long,
+        isLockScreenShown: Boolean,
+        currentTime: Long
+    ): LockDecision {
+        return decideForLockedApp(
+            isWithinUnlockDuration(unlockDurationMinutes, unlockTimestamp, currentTime),
+            isLockScreenShown
+        )
+    }
+
+    /**
+     * [decideForLockedApp] for callers that already know whether the app's unlock session is
+     * active, e.g. from [UnlockSessionTable.isWithinUnlockDuration].
+     */
+    fun decideForLockedApp(
+        isWithinUnlockDuration: Boolean,
+        isLockScreenShown: Boolean
+    ): LockDecision {
+        if (isWithinUnlockDuration) return LockDecision.UNLOCK_DURATION_ACTIVE
+        if (isLockScreenShown) return LockDecision.LOCK_SCREEN_SHOWN
+        return LockDecision.LOCK
+    }
+
+    fun isWithinUnlockDuration(
+        unlockDurationMinutes: Int,
+        unlockTimestamp: Long,
+        currentTime: Long
+    ): Boolean {
+        if (unlockDurationMinutes <= 0 || unlockTimestamp <= 0) return false
+        if (unlockDurationMinutes >= UNLIMITED_UNLOCK_MINUTES) return true
+
+        return currentTime - unlockTimestamp < unlockDurationMinutes.toLong() * 60_000L
+    }
+
+    /**
+     * True when an unlock timestamp is recorded but its duration has run out, i.e. the caller
+     * should drop the timestamp.
+     */
+    fun isUnlockExpired(
+        unlockDurationMinutes: Int,
+        unlockTimestamp: Long,
+        currentTime: Long
+    ): Boolean {
+        return unlockDurationMinutes > 0 && unlockTimestamp > 0 &&
+                !isWithinUnlockDuration(unlockDurationMinutes, unlockTimestamp, currentTime)
+    }
+}
@@ -0,0 +1,40 @@
+package dev.pranav.lockcore
+
+/**
+ * Which decision waits for the lock handler when a backend decides faster than the handler runs.
+ *
+ * The backends hand their [ForegroundStateMachine] verdicts to the lock screen through a single
+ * slot, so a burst of app switches does not queue up lock screens for apps the user already left.
+ * A pending [Transition.LOCK] is only given up for something that shows its app is gone:
+ *
+ * - another lock, which is the one to show now;
+ * - a verdict that was not about an app ([Transition.NONE] for home, recents and the keyguard,
+ *   [Transition.DEVICE_LOCKED]);
+ * - the locked app's own next verdict;
+ * - a verdict about another app, once the locked app is no longer visible.
+ *
+ * The last rule matters for split-screen and freeform, where one task snapshot reports a locked
+ * and an unlocked app side by side and the locked one is not reported again while it stays
+ * visible.
+ */
+object LockHandoff {
+
+    /**
+     * Whether [nextTransition] for [nextPackage] takes the slot from [pendingTransition] for
+     * [pendingPackage]. [isVisible] says whether an app is still on screen; backends that only
+     * see one foreground app pass one that is always false.
+     */
+    fun replaces(
+        pendingTransition: Transition,
+        pendingPackage: String,
+        nextTransition: Transition,
+        nextPackage: String,
+        isVisible: (String) -> Boolean
+    ): Boolean {
+        if (pendingTransition != Transition.LOCK) return true
+        return when (nextTransition) {
+            Transition.LOCK, Transition.NONE, Transition.DEVICE_LOCKED -> true
+            else -> nextPackage == pendingPackage || !isVisible(pendingPackage)
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package dev.pranav.lockcore
+
+/**
+ * The unlock state of every app: the timed unlock session of each package the user unlocked,
+ * the app that stays unlocked until the user leaves it, and the app just left, which may be
+ * restored within a short grace period.
+ *
+ * All of it lives in one immutable [State] that writers replace under the table's lock, so
+ * readers on any thread see either the old or the new state and never a mix; the checks on the
+ * detection hot path are a single volatile read with no locking or allocation. Each session
+ * carries its precomputed expiry, and a hashed timing wheel driven by [advance] drops sessions
+ * once they run out, so stale sessions do not pile up until the next screen off.
+ */
+class UnlockSessionTable(
+    private val tickMs: Long = DEFAULT_TICK_MS,
+    wheelSize: Int = DEFAULT_WHEEL_SIZE
+) {
+    /**
+     * An unlock of [packageName] at [unlockedAt], within its unlock duration until [expiresAt].
+     */
+    class Session(val packageName: String, val unlockedAt: Long, val expiresAt: Long)
+
+    class State internal constructor(
+        val sessions: Map<String, Session>,
+        val temporarilyUnlockedApp: String,
+        val recentlyLeftApp: String,
+        val recentlyLeftTime: Long
+    ) {
+        internal fun copy(
+            sessions: Map<String, Session> = this.sessions,
+            temporarilyUnlockedApp: String = this.temporarilyUnlockedApp,
+            recentlyLeftApp: String = this.recentlyLeftApp,
+            recentlyLeftTime: Long = this.recentlyLeftTime
+        ) = State(sessions, temporarilyUnlockedApp, recentlyLeftApp, recentlyLeftTime)
+    }
+
+    @Volatile
+    var state = EMPTY
+        private set(value) {
+            field = value
+            onStateChanged?.invoke(value)
+        }
+
+    /**
+     * Called with every new state, under the table's lock so calls arrive in order. Used to
+     * mirror the state somewhere that outlives the process.
+     */
+    @Volatile
+    var onStateChanged: ((State) -> Unit)? = null
+
+    // Everything below is guarded by the table's lock
+    private var durationMs = 0L
+    private val wheel = Array(wheelSize) { ArrayList<Session>(2) }
+    private var lastTick = -1L
+
+    @Volatile
+    private var scheduledCount = 0
+
+    val temporarilyUnlockedApp: String
+        get() = state.temporarilyUnlockedApp
+
+    /** Whether a session is waiting on the timing wheel, i.e. [advance] still has work. */
+    val hasPendingExpiries: Boolean
+        get() = scheduledCount > 0
+
+    fun isTemporarilyUnlocked(packageName: String): Boolean =
+        state.temporarilyUnlockedApp == packageName
+
+    fun isWithinUnlockDuration(packageName: String, currentTime: Long): Boolean {
+        val session = state.sessions[packageName] ?: return false
+        return currentTime < session.expiresAt
+    }
+
+    /** The time [packageName] was last unlocked, or 0 if it has no session. */
+    fun unlockTimestamp(packageName: String): Long =
+        state.sessions[packageName]?.unlockedAt ?: 0L
+
+    /**
+     * Sets the unlock duration and moves every session's expiry to match. Durations at or above
+     * [LockDecider.UNLIMITED_UNLOCK_MINUTES] never expire, and zero disables timed sessions.
+     */
+    @Synchronized
+    fun setUnlockDuration(minutes: Int) {
+        val newDurationMs = when {
+            minutes <= 0 -> 0L
+            minutes >= LockDecider.UNLIMITED_UNLOCK_MINUTES -> Long.MAX_VALUE
+            else -> minutes * 60_000L
+        }
+        if (newDurationMs == durationMs) return
+        durationMs = newDurationMs
+
+        clearWheel()
+        val current = state
+        val sessions = HashMap<String, Session>(current.sessions.size)
+        for ((packageName, session) in current.sessions) {
+            val moved = newSession(packageName, session.unlockedAt)
+            sessions[packageName] = moved
+            schedule(moved)
+        }
+        state = current.copy(sessions = sessions)
+    }
+
+    /**
+     * Records that the user unlocked [packageName]: it starts a timed session and stays
+     * unlocked until the user leaves it.
+     */
+    @Synchronized
+    fun unlock(packageName: String, time: Long) {
+        val session = newSession(packageName, time)
+        val current = state
+        state = current.copy(
+            sessions = HashMap(current.sessions).apply { put(packageName, session) },
+            temporarilyUnlockedApp = packageName
+        )
+        schedule(session)
+    }
+
+    /**
+     * Replaces the state with [unlockTimes] (package to unlock time) and [temporarilyUnlockedApp]
+     * saved by a previous process, recomputing the expiries for the current unlock duration.
+     */
+    @Synchronized
+    fun restore(unlockTimes: Map<String, Long>, temporarilyUnlockedApp: String) {
+        clearWheel()
+        val sessions = HashMap<String, Session>(unlockTimes.size)
+        for ((packageName, unlockedAt) in unlockTimes) {
+            val session = newSession(packageName, unlockedAt)
+            sessions[packageName] = session
+            schedule(session)
+        }
+        state = State(sessions, temporarilyUnlockedApp, "", 0L)
+    }
+
+    @Synchronized
+    fun clearTemporarilyUnlocked() {
+        val current = state
+        if (current.temporarilyUnlockedApp.isEmpty()) return
+        state = current.copy(temporarilyUnlockedApp = "")
+    }
+
+    @Synchronized
+    fun setRecentlyLeft(packageName: String, time: Long) {
+        state = state.copy(recentlyLeftApp = packageName, recentlyLeftTime = time)
+    }
+
+    /**
+     * Makes [packageName] the temporarily unlocked app again if it is the app left within the
+     * last [gracePeriodMs]. Returns whether it was restored; either way the app left is
+     * forgotten once it has been asked about.
+     */
+    @Synchronized
+    fun restoreRecentlyLeft(packageName: String, currentTime: Long, gracePeriodMs: Long): Boolean {
+        val current = state
+        if (packageName.isEmpty() || packageName != current.recentlyLeftApp) return false
+
+        val restored = currentTime - current.recentlyLeftTime <= gracePeriodMs
+        state = current.copy(
+            temporarilyUnlockedApp = if (restored) packageName else current.temporarilyUnlockedApp,
+            recentlyLeftApp = "",
+            recentlyLeftTime = 0L
+        )
+        return restored
+    }
+
+    /**
+     * Drops the session of [packageName] if its unlock duration has run out by [currentTime].
+     * Returns whether it did, so callers can reset whatever else depended on the session.
+     */
+    @Synchronized
+    fun expire(packageName: String, currentTime: Long): Boolean {
+        if (durationMs == 0L) return false
+        val current = state
+        val session = current.sessions[packageName] ?: return false
+        if (currentTime < session.expiresAt) return false
+
+        state = current.copy(sessions = HashMap(current.sessions).apply { remove(packageName) })
+        return true
+    }
+
+    /** Forgets every trace of [packageName], e.g. when it is no longer locked. */
+    @Synchronized
+    fun clearPackage(packageName: String) {
+        var next = state
+        if (packageName in next.sessions) {
+            next = next.copy(sessions = HashMap(next.sessions).apply { remove(packageName) })
+        }
+        if (next.temporarilyUnlockedApp == packageName) {
+            next = next.copy(temporarilyUnlockedApp = "")
+        }
+        if (next.recentlyLeftApp == packageName) {
+            next = next.copy(recentlyLeftApp = "", recentlyLeftTime = 0L)
+        }
+        state = next
+    }
+
+    /** Drops every timed session but keeps the temporarily unlocked app. */
+    @Synchronized
+    fun clearSessions() {
+        clearWheel()
+        val current = state
+        if (current.sessions.isEmpty()) return
+        state = current.copy(sessions = emptyMap())
+    }
+
+    /** Forgets everything at once, as the screen turning off requires. */
+    @Synchronized
+    fun clear() {
+        clearWheel()
+        state = EMPTY
+    }
+
+    /**
+     * Turns the timing wheel up to [currentTime] and drops the sessions that ran out. Returns
+     * their packages. Callers run it every [tickMs] while [hasPendingExpiries].
+     */
+    @Synchronized
+    fun advance(currentTime: Long): List<String> {
+        val nowTick = currentTime / tickMs
+        if (lastTick < 0) lastTick = nowTick - 1
+        if (nowTick <= lastTick || scheduledCount == 0) {
+            lastTick = maxOf(lastTick, nowTick)
+            return emptyList()
+        }
+
+        val ticks = minOf(nowTick - lastTick, wheel.size.toLong()).toInt()
+        val firstTick = nowTick - ticks + 1
+        lastTick = nowTick
+
+        var expired: ArrayList<String>? = null
+        var sessions: HashMap<String, Session>? = null
+        val current = state
+        for (i in 0 until ticks) {
+            val slot = wheel[slotOf(firstTick + i)]
+            val iterator = slot.iterator()
+            while (iterator.hasNext()) {
+                val session = iterator.next()
+                if (session.expiresAt > currentTime) continue // Due on a later turn
+                iterator.remove()
+                scheduledCount--
+
+                // Sessions replaced by a newer unlock or already cleared are just dropped
+                if (current.sessions[session.packageName] !== session) continue
+                if (sessions == null) sessions = HashMap(current.sessions)
+                sessions.remove(session.packageName)
+                if (expired == null) expired = ArrayList()
+                expired.add(session.packageName)
+            }
+        }
+
+        if (sessions != null) state = current.copy(sessions = sessions)
+        return expired ?: emptyList()
+    }
+
+    private fun newSession(packageName: String, unlockedAt: Long): Session {
+        val expiresAt = when (durationMs) {
+            0L -> 0L
+            Long.MAX_VALUE -> Long.MAX_VALUE
+            else -> unlockedAt + durationMs
+        }
+        return Session(packageName, unlockedAt, expiresAt)
+    }
+
+    private fun schedule(session: Session) {
+        // Sessions that never become active or never expire have nothing to schedule
+        if (durationMs == 0L || durationMs == Long.MAX_VALUE) return
+        if (lastTick < 0) lastTick = session.unlockedAt / tickMs
+        val tick = session.expiresAt / tickMs
+        // A deadline the wheel already passed goes in the next slot to be visited
+        wheel[slotOf(maxOf(tick, lastTick + 1))].add(session)
+        scheduledCount++
+    }
+
+    private fun clearWheel() {
+        if (scheduledCount == 0) return
+        wheel.forEach { it.clear() }
+        scheduledCount = 0
+    }
+
+    private fun slotOf(tick: Long): Int = Math.floorMod(tick, wheel.size.toLong()).toInt()
+
+    companion object {
+        const val DEFAULT_TICK_MS = 1_000L
+        const val DEFAULT_WHEEL_SIZE = 64
+
+        private val EMPTY = State(emptyMap(), "", "", 0L)
+    }
+}
@@ -0,0 +1,89 @@
+package dev.pranav.lockcore.detection
+
+/**
+ * What a window event meant for recents/home tracking.
+ */
+enum class WindowTransition {
+    NONE,
+    RECENTS_OPENED,
+    HOME_FROM_RECENTS,
+    HOME,
+    SWITCHED_FROM_RECENTS
+}
+
+/**
+ * Recents and home screen tracking for the accessibility backend. It is fed the relevant fields of
+ * each window state / content change event; [isRecentsOpen] stays true from the recents pane
+ * appearing until the user goes home or picks an app.
+ */
+class AccessibilityTransitionDetector(
+    private val signatures: LauncherSignatures = LauncherSignatures.DEFAULT
+) {
+
+    companion object {
+        // Mirrors of the android.view.accessibility.AccessibilityEvent constants
+        const val TYPE_WINDOW_STATE_CHANGED = 0x00000020
+        const val TYPE_WINDOW_CONTENT_CHANGED = 0x00000800
+        const val CONTENT_CHANGE_TYPE_PANE_APPEARED = 0x00000010
+        const val CONTENT_CHANGE_TYPE_PANE_DISAPPEARED = 0x00000020
+
+        private const val SYSTEM_UI_PACKAGE = "com.android.systemui"
+    }
+
+    var isRecentsOpen = false
+        private set
+
+    fun reset() {
+        isRecentsOpen = false
+    }
+
+    /**
+     * @param text the event's text items; matched case-insensitively
+     * @param launcherPackage the default launcher, cached by the caller
+     */
+    fun onWindowEvent(
+        packageName: CharSequence?,
+        className: CharSequence?,
+        contentChangeTypes: Int,
+        text: List<CharSequence?>,
+        launcherPackage: String
+    ): WindowTransition {
+        val fromLauncher = packageName != null && launcherPackage.contentEquals(packageName)
+        // Any app can show these words, so text only counts where recents can actually be
+        val fromRecentsHost = fromLauncher ||
+                (packageName != null && SYSTEM_UI_PACKAGE.contentEquals(packageName))
+        val classState = signatures.classState(packageName, className)
+        val textState = if (fromRecentsHost) signatures.textState(packageName, text) else null
+
+        val isRecentlyOpened =
+            (fromLauncher && contentChangeTypes == CONTENT_CHANGE_TYPE_PANE_APPEARED) ||
+                    textState == ScreenState.RECENTS || classState == ScreenState.RECENTS
+        // Quickstep hosts home and recents in one activity, so the class alone is not enough
+        val isHomeScreen = fromLauncher &&
+                classState == ScreenState.HOME && textState == ScreenState.HOME
+
+        return when {
+            isRecentlyOpened -> {
+                isRecentsOpen = true
+                WindowTransition.RECENTS_OPENED
+            }
+
+            contentChangeTypes == CONTENT_CHANGE_TYPE_PANE_DISAPPEARED && fromLauncher && isRecentsOpen -> {
+                isRecentsOpen = false
+                WindowTransition.HOME_FROM_RECENTS
+            }
+
+            isHomeScreen -> {
+                isRecentsOpen = false
+                WindowTransition.HOME
+            }
+
+            !fromLauncher && isRecentsOpen -> {
+                isRecentsOpen = false
+                WindowTransition.SWITCHED_FROM_RECENTS
+            }
+
+            else -> WindowTransition.NONE
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dev.pranav.lockcore.detection
+
+/**
+ * Collapses bursts of content-change events. Apps redrawing (lists scrolling, progress bars,
+ * clocks) send many identical `TYPE_WINDOW_CONTENT_CHANGED` events in quick succession, and each
+ * would otherwise go through detection and the lock decision again with the same outcome.
+ *
+ * The first event of a burst is processed; later ones from the same package with the same change
+ * types are dropped until [windowMillis] has passed. Pane appear/disappear events, which drive
+ * recents detection, and every other event type always pass and end the burst.
+ */
+class ContentChangeCoalescer(private val windowMillis: Long = FRAME_MILLIS) {
+
+    companion object {
+        const val FRAME_MILLIS = 16L
+
+        private const val PANE_CHANGES =
+            AccessibilityTransitionDetector.CONTENT_CHANGE_TYPE_PANE_APPEARED or
+                    AccessibilityTransitionDetector.CONTENT_CHANGE_TYPE_PANE_DISAPPEARED
+    }
+
+    private var lastPackage: CharSequence? = null
+    private var lastContentChangeTypes = 0
+    private var lastTime = 0L
+
+    /**
+     * @param time event time in milliseconds, from any monotonic or wall clock
+     * @return false if the event repeats the one processed just before it
+     */
+    fun shouldProcess(
+        eventType: Int,
+        packageName: CharSequence?,
+        contentChangeTypes: Int,
+        time: Long
+    ): Boolean {
+        if (eventType != AccessibilityTransitionDetector.TYPE_WINDOW_CONTENT_CHANGED ||
+            packageName == null || contentChangeTypes and PANE_CHANGES != 0
+        ) {
+            lastPackage = null
+            return true
+        }
+
+        val previous = lastPackage
+        val elapsed = time - lastTime
+        if (previous != null &&
+            contentChangeTypes == lastContentChangeTypes &&
+            elapsed >= 0 && elapsed < windowMillis &&
+            previous.contentEquals(packageName)
+        ) {
+            return false
+        }
+
+        lastPackage = packageName
+        lastContentChangeTypes = contentChangeTypes
+        lastTime = time
+        return true
+    }
+
+    fun reset() {
+        lastPackage = null
+    }
+}
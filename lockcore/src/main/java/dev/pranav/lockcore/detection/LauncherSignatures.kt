@@ -0,0 +1,181 @@
+package dev.pranav.lockcore.detection
+
+import java.io.BufferedReader
+
+/**
+ * What a launcher window or activity shows.
+ */
+enum class ScreenState {
+    HOME,
+    RECENTS,
+    APP
+}
+
+/**
+ * Launcher and recents signatures: which activity classes and which (localized) pane titles and
+ * content descriptions mean home, recents or an ordinary app screen, per launcher package.
+ *
+ * The table is bundled as `launcher_signatures.tsv` next to this class and compiled once into
+ * hash lookups: a class name costs one map probe, and event text costs one probe per character
+ * into a table of markers keyed by their first character, instead of a lowercased copy of the
+ * text and a scan per marker. Nothing is allocated per lookup.
+ */
+class LauncherSignatures private constructor(
+    private val classes: HashMap<String, Array<Signature>>,
+    private val markers: MarkerTable
+) {
+
+    private class Signature(val packageName: String?, val state: ScreenState)
+
+    private class Marker(val text: String, val packageName: String?, val state: ScreenState)
+
+    companion object {
+        const val ANY_PACKAGE = "*"
+
+        private const val KIND_CLASS = "class"
+        private const val KIND_TEXT = "text"
+        private const val RESOURCE = "launcher_signatures.tsv"
+
+        /** The bundled table, compiled on first use. */
+        val DEFAULT: LauncherSignatures by lazy {
+            val stream = LauncherSignatures::class.java.getResourceAsStream(RESOURCE)
+                ?: throw IllegalStateException("$RESOURCE is missing from the classpath")
+            stream.bufferedReader().use(::parse)
+        }
+
+        /**
+         * Parses a signature table: one `package  kind  value  state` line per signature,
+         * tab-separated, where package is [ANY_PACKAGE] for every package and kind is `class` or
+         * `text`. Blank lines and lines starting with `#` are ignored.
+         *
+         * @throws IllegalArgumentException if a line is malformed
+         */
+        fun parse(reader: BufferedReader): LauncherSignatures {
+            val classes = HashMap<String, ArrayList<Signature>>()
+            val markers = ArrayList<Marker>()
+
+            reader.lineSequence().forEach { line ->
+                if (line.isBlank() || line.startsWith("#")) return@forEach
+
+                val fields = line.split('\t')
+                require(fields.size == 4 && fields[2].isNotEmpty()) {
+                    "Expected 4 tab-separated fields in: $line"
+                }
+                val packageName = fields[0].takeIf { it != ANY_PACKAGE }
+                val state = ScreenState.valueOf(fields[3])
+
+                when (fields[1]) {
+                    KIND_CLASS -> classes.getOrPut(fields[2]) { ArrayList() }
+                        .add(Signature(packageName, state))
+
+                    KIND_TEXT -> markers.add(Marker(fold(fields[2]), packageName, state))
+                    else -> throw IllegalArgumentException("Unknown signature kind in: $line")
+                }
+            }
+
+            val compiled = HashMap<String, Array<Signature>>(classes.size * 2)
+            classes.forEach { (className, signatures) ->
+                // Package-specific signatures first, so they win over wildcard ones
+                compiled[className] = signatures.sortedBy { it.packageName == null }.toTypedArray()
+            }
+            return LauncherSignatures(compiled, MarkerTable(markers))
+        }
+
+        private fun fold(text: String): String {
+            val chars = CharArray(text.length) { text[it].lowercaseChar() }
+            return String(chars)
+        }
+
+        private fun appliesTo(packageName: String?, eventPackage: CharSequence?): Boolean {
+            return packageName == null ||
+                    (eventPackage != null && packageName.contentEquals(eventPackage))
+        }
+    }
+
+    /**
+     * @return the state a window or activity class stands for in [packageName], or null if the
+     * class is not in the table
+     */
+    fun classState(packageName: CharSequence?, className: CharSequence?): ScreenState? {
+        if (className == null) return null
+        val signatures = classes[className.toString()] ?: return null
+        for (signature in signatures) {
+            if (appliesTo(signature.packageName, packageName)) return signature.state
+        }
+        return null
+    }
+
+    /**
+     * @return the state of the first marker found in any of [texts], matched case-insensitively
+     * anywhere in the text, or null if none matches
+     */
+    fun textState(packageName: CharSequence?, texts: List<CharSequence?>): ScreenState? {
+        for (i in 0 until texts.size) {
+            val text = texts[i] ?: continue
+            val state = textState(packageName, text)
+            if (state != null) return state
+        }
+        return null
+    }
+
+    fun textState(packageName: CharSequence?, text: CharSequence): ScreenState? {
+        for (start in 0 until text.length) {
+            val candidates = markers[text[start].lowercaseChar()] ?: continue
+            for (marker in candidates) {
+                if (appliesTo(marker.packageName, packageName) &&
+                    regionMatchesFolded(text, start, marker.text)
+                ) {
+                    return marker.state
+                }
+            }
+        }
+        return null
+    }
+
+    private fun regionMatchesFolded(text: CharSequence, start: Int, folded: String): Boolean {
+        if (start + folded.length > text.length) return false
+        for (i in folded.indices) {
+            if (text[start + i].lowercaseChar() != folded[i]) return false
+        }
+        return true
+    }
+
+    /**
+     * Open-addressing table from a marker's first character to the markers starting with it,
+     * so a lookup neither boxes the character nor allocates.
+     */
+    private class MarkerTable(markers: List<Marker>) {
+        private val keys: CharArray
+        private val values: Array<Array<Marker>?>
+        private val mask: Int
+
+        init {
+            val byFirstChar = markers.groupBy { it.text[0] }
+            var capacity = 8
+            while (capacity < byFirstChar.size * 2) capacity *= 2
+            keys = CharArray(capacity)
+            values = arrayOfNulls(capacity)
+            mask = capacity - 1
+
+            byFirstChar.forEach { (first, group) ->
+                var slot = first.code and mask
+                while (values[slot] != null) slot = (slot + 1) and mask
+                keys[slot] = first
+                // Package-specific markers first, as for classes, then longer ones first, so the
+                // most specific one wins
+                values[slot] = group.sortedWith(
+                    compareBy<Marker> { it.packageName == null }.thenByDescending { it.text.length }
+                ).toTypedArray()
+            }
+        }
+
+        operator fun get(first: Char): Array<Marker>? {
+            var slot = first.code and mask
+            while (true) {
+                val value = values[slot] ?: return null
+                if (keys[slot] == first) return value
+                slot = (slot + 1) and mask
+            }
+        }
+    }
+}
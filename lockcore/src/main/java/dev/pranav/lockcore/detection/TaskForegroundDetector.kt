@@ -0,0 +1,136 @@
+package dev.pranav.lockcore.detection
+
+/**
+ * What to do with one visible task from a task snapshot.
+ *
+ * @property report whether the task's package should be reported as the foreground app
+ * @property stop whether the remaining tasks of the snapshot should be skipped
+ */
+enum class TaskVerdict(val report: Boolean, val stop: Boolean) {
+    OWN_APP(false, true),
+    UNCHANGED(false, false),
+    FOREGROUND(true, false)
+}
+
+/**
+ * Foreground tracking for the Shizuku backend, fed each poll's visible tasks top first between
+ * [beginSnapshot] and [endSnapshot].
+ *
+ * With split-screen or freeform windows several apps are visible at once, so this tracks the set
+ * of visible packages and only reports a package when it joins that set; apps that stay visible
+ * are not reported again, whichever of them has focus. Whether a reported app gets locked is up
+ * to the [dev.pranav.lockcore.ForegroundStateMachine]; the reports of a snapshot are meant to be
+ * fed to it after [endSnapshot], so the unlock state this reads does not change mid-snapshot.
+ *
+ * After the screen turns off or the device is unlocked every visible app is reported again,
+ * even the one the user left, so it gets checked again. Once our own app (the lock screen) stops
+ * covering the others, every app that was visible behind it is reported again unless it is the
+ * temporarily unlocked one, so dismissing the lock screen without unlocking locks again.
+ *
+ * Snapshots hold at most a handful of tasks, so the sets are small arrays searched linearly and
+ * a snapshot allocates nothing.
+ */
+class TaskForegroundDetector(
+    private val ownPackage: String,
+    private val isTemporarilyUnlocked: (String) -> Boolean
+) {
+    /** The package that had focus in the last complete snapshot. */
+    var lastForegroundApp = ""
+        private set
+
+    private var visible = PackageSet()
+    private var current = PackageSet()
+    private var focusedPackage = ""
+    private var taskIndex = 0
+    private var coveredByOwnApp = false
+    private var recheckVisible = false
+    private var snapshotAborted = false
+
+    /** Whether [packageName] was visible in the last complete snapshot. */
+    fun isVisible(packageName: String): Boolean = packageName in visible
+
+    fun onScreenOff() {
+        lastForegroundApp = ""
+        visible.clear()
+    }
+
+    fun onUserPresent() {
+        visible.clear()
+    }
+
+    fun beginSnapshot() {
+        current.clear()
+        focusedPackage = ""
+        taskIndex = 0
+        recheckVisible = false
+        snapshotAborted = false
+    }
+
+    /**
+     * Classifies the next visible task of the current snapshot. [focused] marks the task with
+     * input focus when the platform reports it; otherwise the top task counts as focused.
+     */
+    fun onVisibleTask(packageName: String, focused: Boolean = false): TaskVerdict {
+        val isTop = taskIndex++ == 0
+
+        if (packageName == ownPackage) {
+            coveredByOwnApp = true
+            snapshotAborted = true
+            return TaskVerdict.OWN_APP
+        }
+
+        if (isTop && coveredByOwnApp) {
+            coveredByOwnApp = false
+            recheckVisible = true
+        }
+
+        if (focused || isTop) focusedPackage = packageName
+
+        if (!current.add(packageName)) return TaskVerdict.UNCHANGED
+        if (packageName in visible &&
+            (!recheckVisible || isTemporarilyUnlocked(packageName))
+        ) {
+            return TaskVerdict.UNCHANGED
+        }
+
+        return TaskVerdict.FOREGROUND
+    }
+
+    /**
+     * Makes the current snapshot the one the next is compared to. A snapshot cut short by
+     * [TaskVerdict.OWN_APP] is dropped.
+     */
+    fun endSnapshot() {
+        if (snapshotAborted) return
+
+        val previous = visible
+        visible = current
+        current = previous
+        if (focusedPackage.isNotEmpty()) lastForegroundApp = focusedPackage
+    }
+
+    private class PackageSet {
+        private var packages = arrayOfNulls<String>(8)
+        private var size = 0
+
+        operator fun contains(packageName: String): Boolean {
+            for (i in 0 until size) {
+                if (packages[i] == packageName) return true
+            }
+            return false
+        }
+
+        /** Returns false if [packageName] was already in the set. */
+        fun add(packageName: String): Boolean {
+            if (packageName in this) return false
+            if (size == packages.size) packages = packages.copyOf(size * 2)
+            packages[size++] = packageName
+            return true
+        }
+
+        fun clear() {
+            packages.fill(null, 0, size)
+            size = 0
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dev.pranav.lockcore.detection
+
+/**
+ * Picks the foreground app out of one usage-events query window for the usage stats backend.
+ *
+ * Call [begin] before each query and feed the events oldest first through [onEvent]. The last
+ * resumed or interacted-with activity wins, with two exceptions: a home activity from
+ * [LauncherSignatures] resets the result (and reports it, since going home ends temporary
+ * unlocks), and an event sharing its timestamp with a locked app's event does not displace that
+ * locked app. Recents activities clear the result.
+ */
+class UsageForegroundResolver(
+    private val ownPackage: String,
+    private val isLocked: (String) -> Boolean,
+    private val signatures: LauncherSignatures = LauncherSignatures.DEFAULT
+) {
+
+    companion object {
+        // Mirrors of the android.app.usage.UsageEvents.Event constants
+        const val ACTIVITY_RESUMED = 1
+        const val USER_INTERACTION = 7
+    }
+
+    var foregroundPackage: String? = null
+        private set
+    var foregroundClass: String? = null
+        private set
+    private var foregroundTime = 0L
+
+    fun begin() {
+        foregroundPackage = null
+        foregroundClass = null
+        foregroundTime = 0L
+    }
+
+    /**
+     * @return true if this event is the launcher coming to the front
+     */
+    fun onEvent(eventType: Int, packageName: String, className: String?, timeStamp: Long): Boolean {
+        if (eventType != ACTIVITY_RESUMED && eventType != USER_INTERACTION) return false
+
+        val screenState = signatures.classState(packageName, className)
+        if (packageName == ownPackage || screenState == ScreenState.RECENTS) {
+            foregroundPackage = null
+            foregroundClass = null
+            return false
+        }
+
+        if (screenState == ScreenState.HOME && timeStamp != foregroundTime) {
+            foregroundPackage = null
+            foregroundClass = null
+            return true
+        }
+
+        val current = foregroundPackage
+        if (foregroundTime == timeStamp && current != null && isLocked(current)) {
+            return false
+        }
+
+        foregroundTime = timeStamp
+        foregroundPackage = packageName
+        foregroundClass = className
+        return false
+    }
+}
@@ -0,0 +1,58 @@
+package dev.pranav.lockcore.replay
+
+import java.io.File
+import kotlin.system.exitProcess
+
+/**
+ * Replays every `.trace` file under the given paths and prints the outcome and throughput of each.
+ * Exits with status 1 if any trace's lock decisions differ from its expectations.
+ *
+ * Usage: `ReplayMain [--repeat N] <file or directory>...`
+ */
+fun main(args: Array<String>) {
+    var repeat = 1
+    val paths = ArrayList<String>()
+    var i = 0
+    while (i < args.size) {
+        if (args[i] == "--repeat" && i + 1 < args.size) {
+            repeat = args[i + 1].toInt()
+            i += 2
+        } else {
+            paths.add(args[i++])
+        }
+    }
+
+    val traces = paths.flatMap { path ->
+        File(path).walkTopDown().filter { it.isFile && it.extension == "trace" }.sorted().toList()
+    }
+    if (traces.isEmpty()) {
+        println("No .trace files found in ${paths.joinToString()}")
+        exitProcess(1)
+    }
+
+    var failed = 0
+    for (trace in traces) {
+        val records = TraceFormat.read(trace)
+
+        var result = TraceReplayer.replay(records)
+        var totalRecords = result.records.toLong()
+        var totalNanos = result.elapsedNanos
+        repeat(repeat - 1) {
+            result = TraceReplayer.replay(records)
+            totalRecords += result.records
+            totalNanos += result.elapsedNanos
+        }
+        val eventsPerSecond = if (totalNanos == 0L) 0.0 else totalRecords * 1e9 / totalNanos
+
+        val status = if (result.passed) "PASS" else "FAIL"
+        println(
+            "$status ${trace.name} [${result.backend}] ${result.records} records, " +
+                    "${result.locks.size} locks, ${"%.0f".format(eventsPerSecond)} events/s"
+        )
+        result.mismatches.forEach { println("    $it") }
+        if (!result.passed) failed++
+    }
+
+    println("${traces.size - failed}/${traces.size} traces passed")
+    if (failed > 0) exitProcess(1)
+}
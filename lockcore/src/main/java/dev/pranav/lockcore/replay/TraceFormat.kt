@@ -0,0 +1,225 @@
+package dev.pranav.lockcore.replay
+
+import java.io.BufferedReader
+import java.io.File
+
+/**
+ * One line of a detection trace.
+ *
+ * A trace is plain text, one record per line, fields separated by tabs. Blank lines and lines
+ * starting with `#` are ignored. Times are wall-clock milliseconds.
+ *
+ * ```
+ * C  key  value                                   configuration (backend, locked, ...)
+ * A  time  eventType  contentChangeTypes  package  class  text
+ * Q  time                                          start of a usage-events query window
+ * U  time  eventType  package  class               usage event within the current window
+ * T  time  package/class  package/class ...        visible tasks, top first
+ * S  time  action  [package]                       screen, keyguard and lock screen changes
+ * X  time  package                                 expected lock decision
+ * ```
+ */
+sealed class TraceRecord {
+    abstract val time: Long
+
+    data class Config(val key: String, val value: String) : TraceRecord() {
+        override val time: Long get() = 0L
+    }
+
+    data class AccessibilityEvent(
+        override val time: Long,
+        val eventType: Int,
+        val contentChangeTypes: Int,
+        val packageName: String?,
+        val className: String?,
+        val text: String
+    ) : TraceRecord()
+
+    data class UsageQuery(override val time: Long) : TraceRecord()
+
+    data class UsageEvent(
+        override val time: Long,
+        val eventType: Int,
+        val packageName: String,
+        val className: String?
+    ) : TraceRecord()
+
+    data class TaskSnapshot(override val time: Long, val tasks: List<Task>) : TraceRecord()
+
+    data class Task(val packageName: String, val className: String)
+
+    data class System(
+        override val time: Long,
+        val action: SystemAction,
+        val packageName: String = ""
+    ) : TraceRecord()
+
+    data class ExpectLock(override val time: Long, val packageName: String) : TraceRecord()
+}
+
+enum class SystemAction {
+    /** Screen turned off; the keyguard is assumed to come up with it. */
+    SCREEN_OFF,
+
+    /** Keyguard dismissed. */
+    USER_PRESENT,
+
+    /** Home pressed while the launcher was on top (Shizuku backend). */
+    HOME,
+
+    /** The user unlocked the package from the lock screen. */
+    UNLOCK,
+
+    /** The lock screen went away without an unlock. */
+    DISMISS
+}
+
+object TraceFormat {
+    const val KEY_BACKEND = "backend"
+    const val KEY_OWN_PACKAGE = "own"
+    const val KEY_LAUNCHER = "launcher"
+    const val KEY_LOCKED = "locked"
+    const val KEY_TRIGGER_EXCLUDED = "triggerExcluded"
+    const val KEY_EXCLUDED = "excluded"
+    const val KEY_UNLOCK_DURATION = "unlockDuration"
+
+    private const val SEPARATOR = '\t'
+    private const val NULL = "\\N"
+
+    fun format(record: TraceRecord): String = buildString {
+        when (record) {
+            is TraceRecord.Config -> fields("C", record.key, record.value)
+            is TraceRecord.AccessibilityEvent -> fields(
+                "A",
+                record.time.toString(),
+                record.eventType.toString(),
+                record.contentChangeTypes.toString(),
+                record.packageName,
+                record.className,
+                record.text
+            )
+
+            is TraceRecord.UsageQuery -> fields("Q", record.time.toString())
+            is TraceRecord.UsageEvent -> fields(
+                "U",
+                record.time.toString(),
+                record.eventType.toString(),
+                record.packageName,
+                record.className
+            )
+
+            is TraceRecord.TaskSnapshot -> {
+                fields("T", record.time.toString())
+                record.tasks.forEach { task ->
+                    append(SEPARATOR)
+                    append(escape(task.packageName + "/" + task.className))
+                }
+            }
+
+            is TraceRecord.System -> fields(
+                "S",
+                record.time.toString(),
+                record.action.name,
+                record.packageName
+            )
+
+            is TraceRecord.ExpectLock -> fields("X", record.time.toString(), record.packageName)
+        }
+    }
+
+    /**
+     * Parses one line, returning null for blank lines and comments.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    fun parse(line: String): TraceRecord? {
+        if (line.isBlank() || line.startsWith("#")) return null
+
+        val fields = line.split(SEPARATOR).map(::unescape)
+        fun field(index: Int): String? {
+            require(index < fields.size) { "Missing field $index in: $line" }
+            return fields[index]
+        }
+        fun text(index: Int): String = field(index).orEmpty()
+        fun long(index: Int): Long = text(index).toLong()
+        fun int(index: Int): Int = text(index).toInt()
+
+        return when (fields[0]) {
+            "C" -> TraceRecord.Config(text(1), if (fields.size > 2) text(2) else "")
+            "A" -> TraceRecord.AccessibilityEvent(
+                long(1), int(2), int(3), field(4), field(5), text(6)
+            )
+
+            "Q" -> TraceRecord.UsageQuery(long(1))
+            "U" -> TraceRecord.UsageEvent(long(1), int(2), text(3), field(4))
+            "T" -> TraceRecord.TaskSnapshot(long(1), fields.drop(2).map { task ->
+                val packageName = task.orEmpty().substringBefore('/')
+                TraceRecord.Task(packageName, task.orEmpty().substringAfter('/', ""))
+            })
+
+            "S" -> TraceRecord.System(
+                long(1),
+                SystemAction.valueOf(text(2)),
+                if (fields.size > 3) text(3) else ""
+            )
+
+            "X" -> TraceRecord.ExpectLock(long(1), text(2))
+            else -> throw IllegalArgumentException("Unknown record type in: $line")
+        }
+    }
+
+    fun read(reader: BufferedReader): List<TraceRecord> {
+        return reader.lineSequence().mapNotNull(::parse).toList()
+    }
+
+    fun read(file: File): List<TraceRecord> = file.bufferedReader().use(::read)
+
+    /** Splits a comma-separated config value into a set. */
+    fun packageSet(value: String): Set<String> =
+        value.split(',').filterTo(HashSet()) { it.isNotEmpty() }
+
+    private fun StringBuilder.fields(vararg values: String?) {
+        values.forEachIndexed { index, value ->
+            if (index > 0) append(SEPARATOR)
+            append(if (value == null) NULL else escape(value))
+        }
+    }
+
+    private fun escape(value: String): String {
+        if (value.none { it == '\\' || it == '\t' || it == '\n' || it == '\r' }) return value
+        return buildString(value.length + 8) {
+            value.forEach { c ->
+                when (c) {
+                    '\\' -> append("\\\\")
+                    '\t' -> append("\\t")
+                    '\n' -> append("\\n")
+                    '\r' -> append("\\r")
+                    else -> append(c)
+                }
+            }
+        }
+    }
+
+    private fun unescape(value: String): String? {
+        if (value == NULL) return null
+        if ('\\' !in value) return value
+        return buildString(value.length) {
+            var i = 0
+            while (i < value.length) {
+                val c = value[i]
+                if (c == '\\' && i + 1 < value.length) {
+                    when (value[i + 1]) {
+                        't' -> append('\t')
+                        'n' -> append('\n')
+                        'r' -> append('\r')
+                        else -> append(value[i + 1])
+                    }
+                    i += 2
+                } else {
+                    append(c)
+                    i++
+                }
+            }
+        }
+    }
+}
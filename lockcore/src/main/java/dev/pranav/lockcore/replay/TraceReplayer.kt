@@ -0,0 +1,359 @@
+package dev.pranav.lockcore.replay
+
+import dev.pranav.lockcore.ForegroundEvent
+import dev.pranav.lockcore.ForegroundStateMachine
+import dev.pranav.lockcore.LockHandoff
+import dev.pranav.lockcore.Transition
+import dev.pranav.lockcore.UnlockSessionTable
+import dev.pranav.lockcore.detection.AccessibilityTransitionDetector
+import dev.pranav.lockcore.detection.ContentChangeCoalescer
+import dev.pranav.lockcore.detection.TaskForegroundDetector
+import dev.pranav.lockcore.detection.UsageForegroundResolver
+import dev.pranav.lockcore.detection.WindowTransition
+
+data class LockEvent(val time: Long, val packageName: String)
+
+class ReplayResult(
+    val backend: String,
+    val records: Int,
+    val elapsedNanos: Long,
+    val locks: List<LockEvent>,
+    val mismatches: List<String>
+) {
+    val passed: Boolean get() = mismatches.isEmpty()
+
+    val eventsPerSecond: Double
+        get() = if (elapsedNanos == 0L) 0.0 else records * 1_000_000_000.0 / elapsedNanos
+}
+
+/**
+ * Feeds a recorded trace through the same detectors and [ForegroundStateMachine] the services
+ * use, with the repository and lock screen state mirrored in memory, and compares the resulting
+ * lock decisions with the trace's `X` records.
+ *
+ * The backend is taken from the trace's `backend` config record.
+ */
+object TraceReplayer {
+
+    fun replay(records: List<TraceRecord>): ReplayResult {
+        val backendName = records.asSequence()
+            .filterIsInstance<TraceRecord.Config>()
+            .firstOrNull { it.key == TraceFormat.KEY_BACKEND }
+            ?.value
+            ?: throw IllegalArgumentException("Trace has no backend config record")
+
+        val state = ReplayState()
+        val backend: ReplayBackend = when (backendName) {
+            "ACCESSIBILITY" -> AccessibilityReplay(state)
+            "USAGE_STATS" -> UsageReplay(state)
+            "SHIZUKU" -> ShizukuReplay(state)
+            else -> throw IllegalArgumentException("Unknown backend $backendName")
+        }
+
+        val expected = ArrayList<LockEvent>()
+        val start = System.nanoTime()
+        for (record in records) {
+            when (record) {
+                is TraceRecord.Config -> state.configure(record.key, record.value)
+                is TraceRecord.ExpectLock -> expected.add(LockEvent(record.time, record.packageName))
+                is TraceRecord.System -> {
+                    // The backend goes first so it can finish a pending poll on the old state
+                    backend.onSystem(record)
+                    backend.deliver()
+                    state.onSystem(record)
+                }
+
+                else -> {
+                    backend.onRecord(record)
+                    backend.deliver()
+                }
+            }
+        }
+        backend.finish()
+        backend.deliver()
+        val elapsed = System.nanoTime() - start
+
+        return ReplayResult(
+            backend = backendName,
+            records = records.size,
+            elapsedNanos = elapsed,
+            locks = state.locks,
+            mismatches = compare(expected, state.locks)
+        )
+    }
+
+    private fun compare(expected: List<LockEvent>, actual: List<LockEvent>): List<String> {
+        val mismatches = ArrayList<String>()
+        for (i in 0 until maxOf(expected.size, actual.size)) {
+            val want = expected.getOrNull(i)
+            val got = actual.getOrNull(i)
+            when {
+                want == null -> mismatches.add("Unexpected lock #${i + 1}: ${got!!.packageName} at ${got.time}")
+                got == null -> mismatches.add("Missing lock #${i + 1}: ${want.packageName} at ${want.time}")
+                want.packageName != got.packageName -> mismatches.add(
+                    "Lock #${i + 1}: expected ${want.packageName} at ${want.time}, got ${got.packageName} at ${got.time}"
+                )
+            }
+        }
+        return mismatches
+    }
+}
+
+/**
+ * The parts of AppLockManager and AppLockRepository the services read while deciding.
+ */
+private class ReplayState {
+    var ownPackage = "dev.pranav.applock"
+    var launcherPackage = ""
+    var lockedApps: Set<String> = emptySet()
+    var triggerExcludedApps: Set<String> = emptySet()
+    var excludedApps: Set<String> = emptySet()
+
+    var isDeviceLocked = false
+    var isLockScreenShown = false
+    val sessions = UnlockSessionTable()
+
+    val locks = ArrayList<LockEvent>()
+
+    fun configure(key: String, value: String) {
+        when (key) {
+            TraceFormat.KEY_OWN_PACKAGE -> ownPackage = value
+            TraceFormat.KEY_LAUNCHER -> launcherPackage = value
+            TraceFormat.KEY_LOCKED -> lockedApps = TraceFormat.packageSet(value)
+            TraceFormat.KEY_TRIGGER_EXCLUDED -> triggerExcludedApps = TraceFormat.packageSet(value)
+            TraceFormat.KEY_EXCLUDED -> excludedApps = TraceFormat.packageSet(value)
+            TraceFormat.KEY_UNLOCK_DURATION -> sessions.setUnlockDuration(value.toInt())
+        }
+    }
+
+    fun onSystem(record: TraceRecord.System) {
+        when (record.action) {
+            SystemAction.SCREEN_OFF -> {
+                isDeviceLocked = true
+                isLockScreenShown = false
+            }
+
+            SystemAction.USER_PRESENT -> isDeviceLocked = false
+            SystemAction.UNLOCK -> {
+                isLockScreenShown = false
+                sessions.unlock(record.packageName, record.time)
+            }
+
+            SystemAction.DISMISS -> isLockScreenShown = false
+            SystemAction.HOME -> Unit
+        }
+    }
+
+    /** A state machine wired to this state, as each service builds its own. */
+    fun newStateMachine() = ForegroundStateMachine(
+        sessions = sessions,
+        ownPackage = ownPackage,
+        isExcluded = { it in excludedApps },
+        isLocked = { it in lockedApps },
+        isTriggerExcluded = { it in triggerExcludedApps },
+        isLockScreenShown = { isLockScreenShown }
+    )
+
+    /** The services' checkAndLockApp, for what the state machine made of an event. */
+    fun onTransition(transition: Transition, packageName: String, time: Long) {
+        if (transition != Transition.LOCK) return
+        isLockScreenShown = true
+        locks.add(LockEvent(time, packageName))
+    }
+}
+
+/**
+ * One backend's adapter: raw trace records in, [ForegroundEvent]s out. Created on first use so
+ * the trace's config records have been applied.
+ *
+ * Verdicts wait in a [LockHandoff] slot as they do in ForegroundEventBus, and the lock handler
+ * runs after each record, as the main thread does after a batch of detection work.
+ */
+private abstract class ReplayBackend(protected val state: ReplayState) {
+    protected val machine by lazy { state.newStateMachine() }
+
+    private var pendingTransition = Transition.NONE
+    private var pendingPackage = ""
+    private var pendingTime = 0L
+    private var hasPending = false
+
+    abstract fun onRecord(record: TraceRecord)
+
+    /** Whether an app is still on screen, for [LockHandoff.replaces]. */
+    protected open fun isVisible(packageName: String) = false
+
+    fun deliver() {
+        if (!hasPending) return
+        hasPending = false
+        state.onTransition(pendingTransition, pendingPackage, pendingTime)
+    }
+
+    open fun onSystem(record: TraceRecord.System) {
+        when (record.action) {
+            SystemAction.SCREEN_OFF -> machine.onEvent(ForegroundEvent.SCREEN_OFF, time = record.time)
+            SystemAction.USER_PRESENT -> machine.onEvent(ForegroundEvent.USER_PRESENT, time = record.time)
+            else -> Unit
+        }
+    }
+
+    open fun finish() {}
+
+    protected fun onEvent(event: ForegroundEvent, packageName: String, time: Long) {
+        // The services turn the timing wheel on a timer; once per event is as often as it matters
+        state.sessions.advance(time)
+        val transition = machine.onEvent(event, packageName, time)
+        if (transition == Transition.IGNORED) return
+        if (hasPending && !LockHandoff.replaces(
+                pendingTransition,
+                pendingPackage,
+                transition,
+                packageName,
+                ::isVisible
+            )
+        ) return
+
+        pendingTransition = transition
+        pendingPackage = packageName
+        pendingTime = time
+        hasPending = true
+    }
+}
+
+/** Mirrors AppLockAccessibilityService.handleAccessibilityEvent. */
+private class AccessibilityReplay(state: ReplayState) : ReplayBackend(state) {
+    private val detector = AccessibilityTransitionDetector()
+    private val coalescer = ContentChangeCoalescer()
+
+    override fun onRecord(record: TraceRecord) {
+        if (record !is TraceRecord.AccessibilityEvent) return
+        if (!coalescer.shouldProcess(
+                record.eventType,
+                record.packageName,
+                record.contentChangeTypes,
+                record.time
+            )
+        ) return
+        if (record.eventType != AccessibilityTransitionDetector.TYPE_WINDOW_STATE_CHANGED &&
+            record.eventType != AccessibilityTransitionDetector.TYPE_WINDOW_CONTENT_CHANGED
+        ) return
+
+        val packageName = record.packageName
+        when (detector.onWindowEvent(
+            packageName,
+            record.className,
+            record.contentChangeTypes,
+            listOf(record.text),
+            state.launcherPackage
+        )) {
+            WindowTransition.RECENTS_OPENED -> {
+                onEvent(ForegroundEvent.RECENTS, "", record.time)
+                return
+            }
+
+            WindowTransition.HOME_FROM_RECENTS, WindowTransition.HOME -> {
+                onEvent(ForegroundEvent.HOME, packageName.orEmpty(), record.time)
+                return
+            }
+
+            else -> Unit
+        }
+
+        if (detector.isRecentsOpen || packageName == null) return
+        onEvent(ForegroundEvent.APP_FOREGROUND, packageName, record.time)
+    }
+}
+
+/** Mirrors UsageLockService.safeMonitorForegroundApp, one `Q` window per poll. */
+private class UsageReplay(state: ReplayState) : ReplayBackend(state) {
+    private val resolver by lazy {
+        UsageForegroundResolver(
+            ownPackage = state.ownPackage,
+            isLocked = { it in state.lockedApps }
+        )
+    }
+    private var pollTime = -1L
+    private var lastHomeTime = 0L
+
+    override fun onSystem(record: TraceRecord.System) {
+        finishPoll()
+        super.onSystem(record)
+    }
+
+    override fun onRecord(record: TraceRecord) {
+        when (record) {
+            is TraceRecord.UsageQuery -> {
+                finishPoll()
+                pollTime = record.time
+                resolver.begin()
+            }
+
+            is TraceRecord.UsageEvent -> {
+                if (pollTime < 0) return
+                val isHome = resolver.onEvent(
+                    record.eventType,
+                    record.packageName,
+                    record.className,
+                    record.time
+                )
+                // Windows overlap, so each launch of the launcher is only fed once
+                if (isHome && record.time > lastHomeTime) {
+                    lastHomeTime = record.time
+                    onEvent(ForegroundEvent.HOME, record.packageName, pollTime)
+                }
+            }
+
+            else -> finishPoll()
+        }
+    }
+
+    override fun finish() = finishPoll()
+
+    private fun finishPoll() {
+        if (pollTime < 0) return
+        val time = pollTime
+        pollTime = -1L
+
+        val packageName = resolver.foregroundPackage ?: return
+        onEvent(ForegroundEvent.APP_FOREGROUND, packageName, time)
+    }
+}
+
+/** Mirrors ShizukuActivityManager.checkForegroundApp and ShizukuAppLockService's callback. */
+private class ShizukuReplay(state: ReplayState) : ReplayBackend(state) {
+    private val detector by lazy {
+        TaskForegroundDetector(
+            ownPackage = state.ownPackage,
+            isTemporarilyUnlocked = state.sessions::isTemporarilyUnlocked
+        )
+    }
+    private val reported = ArrayList<String>()
+
+    override fun isVisible(packageName: String) = detector.isVisible(packageName)
+
+    override fun onSystem(record: TraceRecord.System) {
+        super.onSystem(record)
+        when (record.action) {
+            SystemAction.SCREEN_OFF -> detector.onScreenOff()
+            SystemAction.USER_PRESENT -> detector.onUserPresent()
+            SystemAction.HOME -> onEvent(ForegroundEvent.HOME, "", record.time)
+            else -> Unit
+        }
+    }
+
+    override fun onRecord(record: TraceRecord) {
+        if (record !is TraceRecord.TaskSnapshot || state.isDeviceLocked) return
+
+        reported.clear()
+        detector.beginSnapshot()
+        for (task in record.tasks) {
+            val verdict = detector.onVisibleTask(task.packageName)
+            if (verdict.report) reported.add(task.packageName)
+            if (verdict.stop) break
+        }
+        detector.endSnapshot()
+
+        for (packageName in reported) {
+            onEvent(ForegroundEvent.APP_FOREGROUND, packageName, record.time)
+        }
+    }
+}
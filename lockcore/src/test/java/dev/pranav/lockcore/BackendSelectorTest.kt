@@ -0,0 +1,43 @@
+package dev.pranav.lockcore
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class BackendSelectorTest {
+    private fun measurement(backend: String, vararg latencies: Long, cpu: Long, wakeups: Long) =
+        BackendMeasurement(backend, latencies, cpu, wakeups)
+
+    @Test
+    fun closeLatenciesAreDecidedByCostAndMissedLaunchesDisqualify() {
+        val accessibility = measurement("ACCESSIBILITY", 120, 90, 150, cpu = 40, wakeups = 900)
+        val usage = measurement("USAGE_STATS", 260, 310, 180, cpu = 25, wakeups = 240)
+        val shizuku = measurement("SHIZUKU", 60, -1, 70, cpu = 5, wakeups = 120)
+
+        // Usage stats is 140ms slower than accessibility, too much to trade for its lower cost
+        assertEquals("ACCESSIBILITY", BackendSelector.choose(listOf(accessibility, usage, shizuku))?.backend)
+
+        val cheaperUsage = measurement("USAGE_STATS", 200, 210, 180, cpu = 25, wakeups = 240)
+        assertEquals("USAGE_STATS", BackendSelector.choose(listOf(accessibility, cheaperUsage))?.backend)
+
+        assertNull(BackendSelector.choose(listOf(shizuku)))
+    }
+
+    @Test
+    fun measurementsSurviveEncoding() {
+        val measurements = listOf(
+            measurement("SHIZUKU", 60, -1, 70, cpu = 5, wakeups = 120),
+            measurement("USAGE_STATS", cpu = 0, wakeups = 0)
+        )
+
+        val decoded = BackendSelector.decode(BackendSelector.encode(measurements) + ";garbage")
+
+        assertEquals(2, decoded.size)
+        assertEquals("SHIZUKU", decoded[0].backend)
+        assertArrayEquals(longArrayOf(60, -1, 70), decoded[0].latenciesMs)
+        assertEquals(70L, decoded[0].medianLatencyMs)
+        assertEquals(120L, decoded[0].wakeupsPerMinute)
+        assertEquals(-1L, decoded[1].medianLatencyMs)
+    }
+}
@@ -0,0 +1,75 @@
+package dev.pranav.lockcore
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class ForegroundStateMachineTest {
+    private val sessions = UnlockSessionTable()
+    private var lockScreenShown = false
+    private val machine = ForegroundStateMachine(
+        sessions = sessions,
+        ownPackage = "dev.pranav.applock",
+        isExcluded = { it == "com.android.systemui" },
+        isLocked = { it == LOCKED || it == OTHER_LOCKED },
+        isTriggerExcluded = { it == "com.android.vending" },
+        isLockScreenShown = { lockScreenShown }
+    )
+
+    private fun app(packageName: String, time: Long) =
+        machine.onEvent(ForegroundEvent.APP_FOREGROUND, packageName, time)
+
+    @Test
+    fun leavingTheUnlockedAppEndsItsUnlockUnlessTheUserComesStraightBack() {
+        assertEquals(Transition.LOCK, app(LOCKED, 1_000))
+        sessions.unlock(LOCKED, 2_000)
+
+        assertEquals(Transition.NOT_LOCKED, app("com.android.chrome", 3_000))
+        assertEquals(LOCKED, machine.leftUnlockedApp)
+        assertEquals(Transition.GRACE_PERIOD_RESTORED, app(LOCKED, 3_200))
+
+        assertEquals(Transition.NOT_LOCKED, app("com.android.chrome", 4_000))
+        assertEquals(Transition.LOCK, app(LOCKED, 5_000))
+    }
+
+    @Test
+    fun appsOpenedFromATriggerExcludedAppStayUnlockedWhileInFront() {
+        assertEquals(Transition.NOT_LOCKED, app("com.android.vending", 1_000))
+        assertEquals(Transition.TRIGGER_EXCLUDED, app(LOCKED, 1_100))
+        assertEquals(Transition.TRIGGER_EXCLUDED, app(LOCKED, 1_200))
+        // Overlays and our own lock screen neither count as a switch nor as a trigger
+        assertEquals(Transition.IGNORED, app("com.android.systemui", 1_300))
+        assertEquals(Transition.TRIGGER_EXCLUDED, app(LOCKED, 1_400))
+
+        assertEquals(Transition.LOCK, app(OTHER_LOCKED, 2_000))
+    }
+
+    @Test
+    fun homeRecentsAndScreenOffEndTheUnlock() {
+        sessions.unlock(LOCKED, 0)
+        assertEquals(Transition.TEMPORARILY_UNLOCKED, app(LOCKED, 1_000))
+
+        machine.onEvent(ForegroundEvent.RECENTS, time = 2_000)
+        assertEquals(ForegroundPhase.RECENTS, machine.phase)
+        assertEquals(Transition.TEMPORARILY_UNLOCKED, app(LOCKED, 2_100))
+        machine.onEvent(ForegroundEvent.RECENTS, time = 2_200)
+        assertEquals(Transition.LOCK, app(OTHER_LOCKED, 2_300))
+        lockScreenShown = true
+        assertEquals(Transition.LOCK_SCREEN_SHOWN, app(OTHER_LOCKED, 2_400))
+        lockScreenShown = false
+
+        sessions.unlock(OTHER_LOCKED, 3_000)
+        machine.onEvent(ForegroundEvent.HOME, "com.google.android.apps.nexuslauncher", 4_000)
+        assertEquals("", sessions.temporarilyUnlockedApp)
+
+        sessions.unlock(LOCKED, 5_000)
+        machine.onEvent(ForegroundEvent.SCREEN_OFF, time = 6_000)
+        assertEquals(Transition.DEVICE_LOCKED, app(LOCKED, 6_100))
+        machine.onEvent(ForegroundEvent.USER_PRESENT, time = 7_000)
+        assertEquals(Transition.LOCK, app(LOCKED, 7_100))
+    }
+
+    private companion object {
+        const val LOCKED = "org.telegram.messenger"
+        const val OTHER_LOCKED = "com.whatsapp"
+    }
+}
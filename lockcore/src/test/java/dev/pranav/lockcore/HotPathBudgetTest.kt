@@ -0,0 +1,292 @@
+package dev.pranav.lockcore
+
+import dev.pranav.lockcore.detection.AccessibilityTransitionDetector
+import dev.pranav.lockcore.detection.ContentChangeCoalescer
+import dev.pranav.lockcore.detection.TaskForegroundDetector
+import dev.pranav.lockcore.detection.UsageForegroundResolver
+import dev.pranav.lockcore.replay.TraceFormat
+import dev.pranav.lockcore.replay.TraceRecord
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.lang.management.ManagementFactory
+
+/**
+ * Allocation and CPU budgets for the code the always-on services run per event. A failure here
+ * means a change made the hot path allocate (GC pauses on a service that runs for days) or got
+ * markedly slower; fix the regression rather than raising the budget.
+ *
+ * Each block is run until the JIT has compiled it before it is measured, so the numbers reflect
+ * the steady state the services reach, not interpreter overhead.
+ */
+class HotPathBudgetTest {
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 20_000
+        private const val MEASURED_ITERATIONS = 50_000
+
+        /** Lock decisions for packages that are not locked, the common case, must not allocate. */
+        private const val UNLOCKED_DECISION_BYTES = 0L
+
+        /** Per accessibility event: coalescing, recents/home detection and the lock decision. */
+        private const val ACCESSIBILITY_EVENT_BYTES = 0L
+
+        /** Per Shizuku task snapshot of a few visible tasks, e.g. split-screen. */
+        private const val TASK_SNAPSHOT_BYTES = 0L
+
+        /** Per unlock session check, the read every backend makes for a locked app. */
+        private const val SESSION_CHECK_BYTES = 0L
+
+        /** Per foreground event through the state machine that leaves the unlock state as is. */
+        private const val STATE_MACHINE_EVENT_BYTES = 0L
+
+        /** CPU for 1000 usage stats poll ticks, each resolving a full window of usage events. */
+        private const val POLL_TICKS = 1_000
+        private const val POLL_TICKS_CPU_NANOS = 10_000_000L
+
+        private val threadBean =
+            ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    }
+
+    private val lockedApps = (0 until 200).mapTo(HashSet()) { "com.example.locked$it" }
+    private val unlockedPackages = Array(200) { "com.example.unlocked$it" }
+
+    @Before
+    fun requireCounters() {
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported)
+        threadBean.isThreadAllocatedMemoryEnabled = true
+    }
+
+    @Test
+    fun unlockedPackageDecision_allocatesNothing() {
+        var sink = 0
+        val bytes = allocatedBytesPerIteration {
+            val decision = LockDecider.decide(
+                unlockedPackages[it % unlockedPackages.size],
+                lockedApps,
+                isTemporarilyUnlocked = false,
+                unlockDurationMinutes = 5,
+                unlockTimestamp = 0L,
+                isLockScreenShown = false,
+                currentTime = it.toLong()
+            )
+            sink += decision.ordinal
+        }
+
+        assertBudget("bytes per unlocked lock decision", bytes, UNLOCKED_DECISION_BYTES)
+        assertTrue(sink == 0)
+    }
+
+    @Test
+    fun replayedAccessibilityEvent_staysWithinBudget() {
+        val records = traceRecords("accessibility_home_and_recents.trace")
+        val config = records.filterIsInstance<TraceRecord.Config>().associate { it.key to it.value }
+        val launcherPackage = config.getValue(TraceFormat.KEY_LAUNCHER)
+        val locked = TraceFormat.packageSet(config.getValue(TraceFormat.KEY_LOCKED))
+        val events = records.filterIsInstance<TraceRecord.AccessibilityEvent>().toTypedArray()
+        // AccessibilityEvent.getText() hands out its own list, so only wrap the recorded text once
+        val texts = Array(events.size) { listOf<CharSequence?>(events[it].text) }
+        val coalescer = ContentChangeCoalescer()
+        val detector = AccessibilityTransitionDetector()
+        var sink = 0
+
+        val bytes = allocatedBytesPerIteration {
+            val index = it % events.size
+            val event = events[index]
+            val time = it * 5L
+            if (!coalescer.shouldProcess(
+                    event.eventType,
+                    event.packageName,
+                    event.contentChangeTypes,
+                    time
+                )
+            ) return@allocatedBytesPerIteration
+            sink += detector.onWindowEvent(
+                event.packageName,
+                event.className,
+                event.contentChangeTypes,
+                texts[index],
+                launcherPackage
+            ).ordinal
+            val packageName = event.packageName
+            if (!detector.isRecentsOpen && packageName != null) {
+                sink += LockDecider.decide(
+                    packageName, locked, false, 0, 0L, false, time
+                ).ordinal
+            }
+        }
+
+        assertBudget("bytes per replayed accessibility event", bytes, ACCESSIBILITY_EVENT_BYTES)
+        assertTrue(sink >= 0)
+    }
+
+    @Test
+    fun taskSnapshot_allocatesNothing() {
+        var temporarilyUnlocked = ""
+        val detector = TaskForegroundDetector(
+            ownPackage = "dev.pranav.applock",
+            isTemporarilyUnlocked = { it == temporarilyUnlocked }
+        )
+        var sink = 0
+
+        val bytes = allocatedBytesPerIteration {
+            if (it % 64 == 0) detector.onScreenOff()
+            temporarilyUnlocked = unlockedPackages[(it / 8) % unlockedPackages.size]
+            detector.beginSnapshot()
+            for (task in 0 until 3) {
+                val packageName = unlockedPackages[(it / 4 + task) % unlockedPackages.size]
+                sink += detector.onVisibleTask(packageName, focused = task == 1).ordinal
+            }
+            detector.endSnapshot()
+        }
+
+        assertBudget("bytes per task snapshot", bytes, TASK_SNAPSHOT_BYTES)
+        assertTrue(sink >= 0)
+    }
+
+    @Test
+    fun unlockSessionCheck_allocatesNothing() {
+        val sessions = UnlockSessionTable()
+        sessions.setUnlockDuration(5)
+        lockedApps.forEachIndexed { index, packageName -> sessions.unlock(packageName, index * 1_000L) }
+        val packages = lockedApps.toTypedArray()
+        var sink = 0
+
+        val bytes = allocatedBytesPerIteration {
+            val packageName = packages[it % packages.size]
+            val time = it * 10L
+            if (sessions.isTemporarilyUnlocked(packageName)) sink++
+            sink += LockDecider.decideForLockedApp(
+                sessions.isWithinUnlockDuration(packageName, time),
+                isLockScreenShown = false
+            ).ordinal
+        }
+
+        assertBudget("bytes per unlock session check", bytes, SESSION_CHECK_BYTES)
+        assertTrue(sink >= 0)
+    }
+
+    @Test
+    fun stateMachineEvent_allocatesNothing() {
+        val sessions = UnlockSessionTable()
+        sessions.setUnlockDuration(LockDecider.UNLIMITED_UNLOCK_MINUTES)
+        lockedApps.forEach { sessions.unlock(it, 0L) }
+        sessions.clearTemporarilyUnlocked()
+        val machine = ForegroundStateMachine(
+            sessions = sessions,
+            ownPackage = "dev.pranav.applock",
+            isExcluded = { false },
+            isLocked = { it in lockedApps },
+            isTriggerExcluded = { false },
+            isLockScreenShown = { false }
+        )
+        // Locked apps within their unlock duration, unlocked apps, home and recents
+        val packages = lockedApps.toTypedArray()
+        var sink = 0
+
+        val bytes = allocatedBytesPerIteration {
+            val transition = when (it % 8) {
+                0 -> machine.onEvent(ForegroundEvent.HOME, "com.google.android.apps.nexuslauncher", it.toLong())
+                3 -> machine.onEvent(ForegroundEvent.RECENTS, time = it.toLong())
+                1, 4, 6 -> machine.onEvent(
+                    ForegroundEvent.APP_FOREGROUND,
+                    packages[it % packages.size],
+                    it.toLong()
+                )
+
+                else -> machine.onEvent(
+                    ForegroundEvent.APP_FOREGROUND,
+                    unlockedPackages[it % unlockedPackages.size],
+                    it.toLong()
+                )
+            }
+            sink += transition.ordinal
+        }
+
+        assertBudget("bytes per state machine event", bytes, STATE_MACHINE_EVENT_BYTES)
+        assertTrue(sink >= 0)
+    }
+
+    @Test
+    fun usagePollTicks_stayWithinCpuBudget() {
+        assumeTrue(threadBean.isCurrentThreadCpuTimeSupported)
+        threadBean.isThreadCpuTimeEnabled = true
+
+        // A poll window as long as the busiest the service sees: a few dozen resumes and
+        // interactions across locked and unlocked apps, the launcher and recents.
+        val window = ArrayList<TraceRecord.UsageEvent>()
+        for (i in 0 until 48) {
+            val packageName = when (i % 6) {
+                0 -> "com.example.locked${i % 20}"
+                1 -> "com.google.android.apps.nexuslauncher"
+                else -> unlockedPackages[i]
+            }
+            val className = when (i % 6) {
+                1 -> "com.android.launcher3.uioverrides.QuickstepLauncher"
+                4 -> "com.android.quickstep.RecentsActivity"
+                else -> "$packageName.MainActivity"
+            }
+            window.add(TraceRecord.UsageEvent(i / 2L, if (i % 3 == 0) 7 else 1, packageName, className))
+        }
+        val events = window.toTypedArray()
+        val resolver = UsageForegroundResolver(
+            ownPackage = "dev.pranav.applock",
+            isLocked = { it in lockedApps }
+        )
+        var sink = 0
+
+        fun pollTicks() {
+            for (tick in 0 until POLL_TICKS) {
+                resolver.begin()
+                for (event in events) {
+                    if (resolver.onEvent(event.eventType, event.packageName, event.className, event.time)) {
+                        sink++
+                    }
+                }
+                val foreground = resolver.foregroundPackage ?: continue
+                sink += LockDecider.decide(
+                    foreground, lockedApps, false, 0, 0L, false, tick.toLong()
+                ).ordinal
+            }
+        }
+
+        repeat(WARMUP_ITERATIONS / POLL_TICKS) { pollTicks() }
+
+        // Best of several runs, so a descheduled thread or a GC elsewhere does not fail the build
+        var best = Long.MAX_VALUE
+        var bytes = Long.MAX_VALUE
+        repeat(5) {
+            val allocatedBefore = threadBean.currentThreadAllocatedBytes
+            val before = threadBean.currentThreadCpuTime
+            pollTicks()
+            best = minOf(best, threadBean.currentThreadCpuTime - before)
+            bytes = minOf(bytes, threadBean.currentThreadAllocatedBytes - allocatedBefore)
+        }
+
+        assertBudget("CPU ns per $POLL_TICKS poll ticks", best, POLL_TICKS_CPU_NANOS)
+        assertBudget("bytes per $POLL_TICKS poll ticks", bytes, 0L)
+        assertTrue(sink >= 0)
+    }
+
+    /**
+     * Runs [block] until compiled, then returns the bytes the current thread allocated per
+     * iteration over [MEASURED_ITERATIONS], rounded down.
+     */
+    private inline fun allocatedBytesPerIteration(block: (Int) -> Unit): Long {
+        for (i in 0 until WARMUP_ITERATIONS) block(i)
+
+        val before = threadBean.currentThreadAllocatedBytes
+        for (i in 0 until MEASURED_ITERATIONS) block(i)
+        return (threadBean.currentThreadAllocatedBytes - before) / MEASURED_ITERATIONS
+    }
+
+    private fun assertBudget(what: String, actual: Long, budget: Long) {
+        assertTrue("$what: $actual exceeds the budget of $budget", actual <= budget)
+    }
+
+    private fun traceRecords(name: String): List<TraceRecord> {
+        return TraceFormat.read(File(javaClass.getResource("/traces/$name")!!.toURI()))
+    }
+}
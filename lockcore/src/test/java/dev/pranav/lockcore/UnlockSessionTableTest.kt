@@ -0,0 +1,96 @@
+package dev.pranav.lockcore
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class UnlockSessionTableTest {
+    private val sessions = UnlockSessionTable(tickMs = 1_000, wheelSize = 8)
+
+    @Test
+    fun sessionsExpireOnTheWheelAfterTheUnlockDuration() {
+        sessions.setUnlockDuration(1)
+        sessions.unlock("com.example.a", 10_000)
+        sessions.unlock("com.example.b", 40_000)
+
+        assertTrue(sessions.isWithinUnlockDuration("com.example.a", 69_999))
+        assertEquals(emptyList<String>(), sessions.advance(69_999))
+
+        assertFalse(sessions.isWithinUnlockDuration("com.example.a", 70_000))
+        assertEquals(listOf("com.example.a"), sessions.advance(70_000))
+        assertEquals(0L, sessions.unlockTimestamp("com.example.a"))
+        assertTrue(sessions.hasPendingExpiries)
+
+        // A gap longer than a whole turn of the wheel still expires everything due
+        assertEquals(listOf("com.example.b"), sessions.advance(500_000))
+        assertFalse(sessions.hasPendingExpiries)
+    }
+
+    @Test
+    fun unlockingAgainReplacesTheScheduledSession() {
+        sessions.setUnlockDuration(1)
+        sessions.unlock("com.example.a", 0)
+        sessions.unlock("com.example.a", 30_000)
+
+        assertEquals(emptyList<String>(), sessions.advance(60_000))
+        assertTrue(sessions.isWithinUnlockDuration("com.example.a", 60_000))
+        assertEquals(listOf("com.example.a"), sessions.advance(90_000))
+    }
+
+    @Test
+    fun changingTheDurationMovesExistingSessions() {
+        sessions.setUnlockDuration(1)
+        sessions.unlock("com.example.a", 0)
+        sessions.setUnlockDuration(LockDecider.UNLIMITED_UNLOCK_MINUTES)
+
+        assertFalse(sessions.hasPendingExpiries)
+        assertTrue(sessions.isWithinUnlockDuration("com.example.a", Long.MAX_VALUE - 1))
+        assertFalse(sessions.expire("com.example.a", Long.MAX_VALUE - 1))
+
+        sessions.setUnlockDuration(0)
+        assertFalse(sessions.isWithinUnlockDuration("com.example.a", 1))
+    }
+
+    @Test
+    fun clearForgetsEverythingAtOnce() {
+        sessions.setUnlockDuration(5)
+        sessions.unlock("com.example.a", 0)
+        sessions.setRecentlyLeft("com.example.a", 100)
+        val before = sessions.state
+
+        sessions.clear()
+
+        assertEquals("com.example.a", before.temporarilyUnlockedApp)
+        assertEquals("", sessions.temporarilyUnlockedApp)
+        assertTrue(sessions.state.sessions.isEmpty())
+        assertFalse(sessions.restoreRecentlyLeft("com.example.a", 200, 300))
+        assertFalse(sessions.hasPendingExpiries)
+    }
+
+    @Test
+    fun restoredSessionsGetExpiriesForTheCurrentDuration() {
+        val published = ArrayList<UnlockSessionTable.State>()
+        sessions.onStateChanged = { published.add(it) }
+        sessions.setUnlockDuration(1)
+
+        sessions.restore(mapOf("com.example.a" to 10_000L), "com.example.b")
+
+        assertTrue(sessions.isTemporarilyUnlocked("com.example.b"))
+        assertTrue(sessions.isWithinUnlockDuration("com.example.a", 69_999))
+        assertEquals(listOf("com.example.a"), sessions.advance(70_000))
+        assertEquals(sessions.state, published.last())
+    }
+
+    @Test
+    fun recentlyLeftAppIsRestoredOnlyWithinTheGracePeriod() {
+        sessions.setRecentlyLeft("com.example.a", 1_000)
+        assertTrue(sessions.restoreRecentlyLeft("com.example.a", 1_300, 300))
+        assertTrue(sessions.isTemporarilyUnlocked("com.example.a"))
+
+        sessions.clearTemporarilyUnlocked()
+        sessions.setRecentlyLeft("com.example.a", 2_000)
+        assertFalse(sessions.restoreRecentlyLeft("com.example.a", 2_301, 300))
+        assertFalse(sessions.isTemporarilyUnlocked("com.example.a"))
+    }
+}
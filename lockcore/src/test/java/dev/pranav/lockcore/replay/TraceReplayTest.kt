@@ -0,0 +1,47 @@
+package dev.pranav.lockcore.replay
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class TraceReplayTest {
+
+    private val traces: List<File> by lazy {
+        val directory = File(javaClass.getResource("/traces")!!.toURI())
+        directory.listFiles { file -> file.extension == "trace" }!!.sorted()
+    }
+
+    @Test
+    fun recordedTraces_matchExpectedLockDecisions() {
+        assertTrue("No traces found", traces.isNotEmpty())
+
+        for (trace in traces) {
+            val result = TraceReplayer.replay(TraceFormat.read(trace))
+            assertTrue(
+                "${trace.name}:\n" + result.mismatches.joinToString("\n"),
+                result.passed
+            )
+        }
+    }
+
+    @Test
+    fun format_roundTripsEveryRecordType() {
+        val records = listOf(
+            TraceRecord.Config(TraceFormat.KEY_LOCKED, "a.b,c.d"),
+            TraceRecord.AccessibilityEvent(1, 32, 16, "pkg", null, "[Tab\there, new\nline \\ end]"),
+            TraceRecord.UsageQuery(2),
+            TraceRecord.UsageEvent(3, 1, "pkg", "pkg.Main"),
+            TraceRecord.TaskSnapshot(
+                4,
+                listOf(TraceRecord.Task("pkg", "pkg.Main"), TraceRecord.Task("other", "other.A"))
+            ),
+            TraceRecord.System(5, SystemAction.UNLOCK, "pkg"),
+            TraceRecord.ExpectLock(6, "pkg")
+        )
+
+        for (record in records) {
+            assertEquals(record, TraceFormat.parse(TraceFormat.format(record)))
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.mrhwsn.composelock
+
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Grid geometry used while drawing a pattern. Works on plain coordinate arrays, with no Compose
+ * types, so it can also be built and benchmarked on a plain JVM.
+ */
+object PatternGeometry {
+
+    /**
+     * Returns the indices of the points in [xs]/[ys] that lie on the segment from point [from] to
+     * point [to], nearest to [from] first. Points flagged in [excluded] are skipped.
+     */
+    fun intermediateIndices(
+        from: Int,
+        to: Int,
+        xs: FloatArray,
+        ys: FloatArray,
+        excluded: BooleanArray
+    ): IntArray {
+        val fromX = xs[from]
+        val fromY = ys[from]
+        val dx = xs[to] - fromX
+        val dy = ys[to] - fromY
+        val minX = min(fromX, xs[to])
+        val maxX = max(fromX, xs[to])
+        val minY = min(fromY, ys[to])
+        val maxY = max(fromY, ys[to])
+
+        val found = IntArray(xs.size)
+        var count = 0
+
+        for (candidate in xs.indices) {
+            if (excluded[candidate] || candidate == from || candidate == to) continue
+
+            // Cross product for collinearity check
+            val cross = (xs[candidate] - fromX) * dy - dx * (ys[candidate] - fromY)
+            if (abs(cross) > 1.0f) continue
+
+            // Bounding box to ensure candidate is between from and to
+            if (xs[candidate] in minX..maxX && ys[candidate] in minY..maxY) {
+                found[count++] = candidate
+            }
+        }
+
+        // At most dimension - 2 points, so insertion sort by distance from the start is enough
+        for (i in 1 until count) {
+            val index = found[i]
+            val distance = squaredDistance(xs, ys, from, index)
+            var j = i - 1
+            while (j >= 0 && squaredDistance(xs, ys, from, found[j]) > distance) {
+                found[j + 1] = found[j]
+                j--
+            }
+            found[j + 1] = index
+        }
+
+        return found.copyOf(count)
+    }
+
+    private fun squaredDistance(xs: FloatArray, ys: FloatArray, a: Int, b: Int): Float {
+        val dx = xs[b] - xs[a]
+        val dy = ys[b] - ys[a]
+        return dx * dx + dy * dy
+    }
+}
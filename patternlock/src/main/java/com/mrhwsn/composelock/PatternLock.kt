@@ -20,9 +20,6 @@ import androidx.compose.ui.unit.toSize
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
-import kotlin.math.abs
-import kotlin.math.max
-import kotlin.math.min
 import kotlin.time.Duration.Companion.milliseconds
 
 interface LockCallback {
@@ -191,29 +188,17 @@ private fun findIntermediateDots(
     allDots: List<Dot>,
     selectedIds: Set<Int>
 ): List<Dot> {
-    val intermediates = mutableListOf<Dot>()
-    val dx = to.offset.x - from.offset.x
-    val dy = to.offset.y - from.offset.y
-
-    for (candidate in allDots) {
-        if (candidate.id in selectedIds || candidate.id == from.id || candidate.id == to.id) continue
-
-        // Cross product for collinearity check
-        val cross =
-            (candidate.offset.x - from.offset.x) * dy - dx * (candidate.offset.y - from.offset.y)
-        if (abs(cross) > 1.0f) continue
-
-        // Bounding box to ensure candidate is between from and to
-        val inX =
-            candidate.offset.x in min(from.offset.x, to.offset.x)..max(from.offset.x, to.offset.x)
-        val inY =
-            candidate.offset.y in min(from.offset.y, to.offset.y)..max(from.offset.y, to.offset.y)
-
-        if (inX && inY) {
-            intermediates.add(candidate)
-        }
-    }
-    return intermediates.sortedBy { (it.offset - from.offset).getDistance() }
+    val xs = FloatArray(allDots.size) { allDots[it].offset.x }
+    val ys = FloatArray(allDots.size) { allDots[it].offset.y }
+    val excluded = BooleanArray(allDots.size) { allDots[it].id in selectedIds }
+
+    return PatternGeometry.intermediateIndices(
+        from = allDots.indexOfFirst { it.id == from.id },
+        to = allDots.indexOfFirst { it.id == to.id },
+        xs = xs,
+        ys = ys,
+        excluded = excluded
+    ).map { allDots[it] }
 }
 
 @Preview(showBackground = true)
@@ -24,3 +24,5 @@ include(":app")
 include(":appintro")
 include(":hidden-api")
 include(":patternlock")
+include(":lockcore")
+include(":benchmark")